@@ -0,0 +1,63 @@
+/*
+ Checks DuplicateIndex at every distance it accepts: a SimHash within the distance of one added before is found
+ as a near duplicate, one just outside it is not, and the same words are found as an exact duplicate.
+ Compile src/ and bench/ together and run:
+
+   java -cp <classes> DuplicateIndexCheck
+
+ Prints a line for each distance and exits with status 1 if any check fails.
+*/
+
+import java.util.Random;
+
+public class DuplicateIndexCheck {
+    private static final int PAGES = 20000;     // SimHashes added at each distance
+    private static final int WORDS = 100;       // Enough words to be compared for near duplicates
+
+    public static void main(String[] argv) {
+        Random random = new Random(1);
+        boolean failed = false;
+        for (int distance = 0; distance <= 7; distance++) {
+            DuplicateIndex index = new DuplicateIndex(distance, 50);
+            long[] added = new long[PAGES];
+            int wrong = 0;
+            for (int i = 0; i < PAGES; i++) {
+                added[i] = random.nextLong();
+                if (index.check(new ContentFingerprint(random.nextLong(), added[i], WORDS)) != DuplicateIndex.NEW) {
+                    wrong++;    // Random SimHashes are far apart, at least 20 bits all but surely
+                }
+            }
+            for (int i = 0; i < PAGES; i += 10) {
+                int expected = distance == 0 ? DuplicateIndex.NEW : DuplicateIndex.NEAR;
+                if (index.check(new ContentFingerprint(random.nextLong(), flip(added[i], distance, random), WORDS)) != expected) {
+                    wrong++;
+                }
+            }
+            for (int i = 5; i < PAGES; i += 10) {
+                // Not added, since it is no duplicate, so each is only compared against the SimHashes above
+                if (index.check(new ContentFingerprint(random.nextLong(), flip(added[i], distance + 1, random), WORDS)) != DuplicateIndex.NEW) {
+                    wrong++;
+                }
+            }
+            long exact = random.nextLong();
+            index.check(new ContentFingerprint(exact, random.nextLong(), WORDS));
+            if (index.check(new ContentFingerprint(exact, random.nextLong(), WORDS)) != DuplicateIndex.EXACT) {
+                wrong++;
+            }
+            System.out.println("Distance " + distance + ": " + (wrong == 0 ? "ok" : wrong + " wrong answers"));
+            failed |= wrong > 0;
+        }
+        System.exit(failed ? 1 : 0);
+    }
+
+    /**
+     * @return the SimHash with bits distinct bits flipped
+     */
+    private static long flip(long simHash, int bits, Random random) {
+        long mask = 0;
+        while (Long.bitCount(mask) < bits) {
+            mask |= 1L << random.nextInt(64);
+        }
+        return simHash ^ mask;
+    }
+}
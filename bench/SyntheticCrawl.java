@@ -0,0 +1,130 @@
+/*
+ End-to-end throughput test of the crawler against a synthetic web served from this machine (see SyntheticWeb),
+ so the crawler can be load tested without hammering real sites, with the same web on every run.
+ Starts the server, runs WebCrawler in a JVM of its own against it and reports the pages crawled per second,
+ the harvest rate (the share of pages crawled that were relevant), and whether the crawler was polite:
+ requests to a host closer together than it allows, and requests for paths its robots.txt disallows.
+ Compile src/ and bench/ together and run from the repository root:
+
+   java -cp <classes>:<jsoup jar> SyntheticCrawl [OPTIONS]
+
+ where OPTIONS are any of
+ 			--hosts=H			the number of hosts (default: 50)
+ 			--pages=P			the number of pages on each host (default: 1000)
+ 			--out-degree=D		the number of links on each page (default: 20)
+ 			--relevant=R		the share of pages containing the query (default: 0.1)
+ 			--cross-host=C		the share of links to other hosts (default: 0.3)
+ 			--robots=R			the share of hosts whose robots.txt disallows /private/ (default: 0.5)
+ 			--crawl-delay-hosts=R	the share of hosts asking for a crawl delay (default: 0.1)
+ 			--crawl-delay=S		the crawl delay (seconds) those hosts ask for (default: 0.5)
+ 			--latency=MS		the mean time to answer a request, each host is between half and 1.5 times that (default: 20)
+ 			--error-rate=E		the share of pages answered with 500 (default: 0.02)
+ 			--capacity=N		the requests each host serves at the same time, more are answered with 429 (default: no limit)
+ 			--opaque-paths		don't put relevant pages under /TOPIC/, so only links tell the crawler about a page
+ 			--seed=S			the seed the web is generated from (default: 1)
+ 			--port=PORT			the port of the first host, host h is on PORT+h (default: 18000)
+ 			--topic=WORD		the topic of the relevant pages (default: fox)
+ 			--query=PHRASE		the query phrase of the relevant pages (default: quick fox)
+ 			--max-pages=N		the maximum number of pages to crawl (default: 2000)
+ 			--delay=MS			the least delay the crawler keeps between requests to a host (default: 50, see
+ 						--min-host-delay, 300 with --rate-control=fixed)
+ 			--crawler-options="..."	options passed on to WebCrawler, e.g. "--threads=16 --parser=streaming"
+ 			--serve				only serve the web until killed, to crawl it by hand
+*/
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+public class SyntheticCrawl {
+
+    private static String option(Map<String, String> options, String name, String value) {
+        return options.containsKey(name) ? options.get(name) : value;
+    }
+
+    public static void main(String[] argv) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        WebCrawler.parseOptions(argv, options);
+        String topic = option(options, "topic", "fox");
+        String query = option(options, "query", "quick fox");
+        SyntheticWeb web = new SyntheticWeb(
+                Long.parseLong(option(options, "seed", "1")),
+                Integer.parseInt(option(options, "hosts", "50")),
+                Integer.parseInt(option(options, "pages", "1000")),
+                Integer.parseInt(option(options, "out-degree", "20")),
+                Double.parseDouble(option(options, "relevant", "0.1")),
+                Double.parseDouble(option(options, "cross-host", "0.3")),
+                Double.parseDouble(option(options, "robots", "0.5")),
+                Double.parseDouble(option(options, "crawl-delay-hosts", "0.1")),
+                Double.parseDouble(option(options, "crawl-delay", "0.5")),
+                topic, query,
+                Integer.parseInt(option(options, "port", "18000")));
+        web.setOpaquePaths(options.containsKey("opaque-paths"));
+        SyntheticWebServer server = new SyntheticWebServer(web,
+                Long.parseLong(option(options, "latency", "20")),
+                Double.parseDouble(option(options, "error-rate", "0.02")),
+                Integer.parseInt(option(options, "capacity", "0")));
+        server.start();
+        String seed = web.url(0, 0);
+        System.out.println("Serving " + web.getHosts() + " hosts from " + web.hostName(0) + ", seed: " + seed);
+        if (options.containsKey("serve")) {
+            Thread.sleep(Long.MAX_VALUE);
+        }
+
+        // The crawler runs in a JVM of its own, so its threads and heap are measured alone
+        List<String> command = new ArrayList<String>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("WebCrawler");
+        String crawlerOptions = option(options, "crawler-options", "").trim();
+        if (!crawlerOptions.isEmpty()) {
+            command.addAll(Arrays.asList(crawlerOptions.split("\\s+")));
+        }
+        command.add(seed);
+        command.add(topic);
+        command.add(query);
+        command.add(option(options, "max-pages", "2000"));
+
+        Process crawler = new ProcessBuilder(command).redirectErrorStream(true).start();
+        BufferedReader output = new BufferedReader(new InputStreamReader(crawler.getInputStream(), StandardCharsets.UTF_8));
+        int crawled = 0;
+        int relevant = 0;
+        double seconds = 0;
+        boolean summary = false;
+        for (String line = output.readLine(); line != null; line = output.readLine()) {
+            if (line.startsWith("Search complete, ")) {
+                summary = true;
+                crawled = Integer.parseInt(line.split(" ")[2]);
+            } else if (line.startsWith("Search query ")) {
+                relevant = Integer.parseInt(line.substring(line.lastIndexOf(" found in ") + 10, line.lastIndexOf(" pages")));
+            } else if (line.startsWith("Seconds elapsed during crawl: ")) {
+                seconds = Double.parseDouble(line.substring(line.indexOf(':') + 2));
+            }
+            if (summary) {
+                System.out.println(line);
+            }
+        }
+        int exit = crawler.waitFor();
+        SyntheticWebServer.Report report = server.report(Long.parseLong(option(options, "delay", "50")), 10);
+        server.stop();
+        if (!summary) {
+            System.out.println("The crawler exited with " + exit + " before finishing the crawl");
+            System.exit(1);
+        }
+
+        long inWeb = web.relevantCount();
+        System.out.println(String.format(Locale.ROOT, "Pages per second:        %.1f", seconds == 0 ? 0 : crawled / seconds));
+        System.out.println(String.format(Locale.ROOT, "Harvest rate:            %.3f (%d of %d pages crawled relevant)",
+                crawled == 0 ? 0 : (double) relevant / crawled, relevant, crawled));
+        System.out.println(String.format(Locale.ROOT, "Relevant pages found:    %d of %d in the web", relevant, inWeb));
+        System.out.println("Requests served:         " + report.requests + " (" + report.robotsRequests + " robots.txt, "
+                + report.errors + " errors, " + report.duplicates + " duplicates, " + report.throttled + " answered 429)");
+        System.out.println(String.format(Locale.ROOT, "Politeness compliance:   %.4f (%d of %d gaps too short, least slack %d ms)",
+                report.gaps == 0 ? 1 : 1 - (double) report.politenessViolations / report.gaps,
+                report.politenessViolations, report.gaps, report.gaps == 0 ? 0 : report.minSlackMillis));
+        System.out.println("Robots.txt violations:   " + report.robotsViolations);
+    }
+}
@@ -0,0 +1,223 @@
+import java.util.Random;
+
+/**
+ * A deterministic synthetic web for load testing the crawler without touching real sites.
+ * Nothing is stored: every page, link and robots.txt file is computed from the seed, the host and the
+ * page number, so a web of millions of pages costs no memory and the same seed always gives the same web.
+ *
+ * Host h is served on port basePort + h of the loopback interface, so each host is a separate server
+ * as far as the crawler is concerned. Pages are /pN.html, or /TOPIC/pN.html for the relevant pages,
+ * which contain the query phrase and link to other relevant pages more often than the rest do
+ * (topical locality), so a focused crawler has something to find. Some links lead to /private/pN.html,
+ * which the robots.txt of some hosts disallows, and some hosts ask for a crawl delay.
+ * With opaque paths relevant pages are /pN.html too, so only the links to a page tell a crawler about it.
+ */
+public class SyntheticWeb {
+    private static final String[] WORDS = {
+        "the", "a", "of", "and", "to", "in", "is", "that", "it", "was", "for", "on", "are", "with", "as",
+        "river", "mountain", "city", "market", "garden", "winter", "summer", "history", "music", "science",
+        "table", "window", "letter", "number", "paper", "engine", "harbor", "island", "forest", "valley",
+        "quiet", "bright", "slow", "early", "late", "green", "old", "new", "small", "large", "open", "far"
+    };
+
+    private final long seed;
+    private final int hosts;
+    private final int pagesPerHost;
+    private final int outDegree;
+    private final double relevantFraction;  // The share of pages containing the query
+    private final double crossHostFraction; // The share of links to other hosts
+    private final double robotsFraction;    // The share of hosts whose robots.txt disallows /private/
+    private final double crawlDelayFraction;// The share of hosts asking for a crawl delay
+    private final double crawlDelay;        // The crawl delay (s) those hosts ask for
+    private final String topic;
+    private final String query;
+    private final int basePort;
+    private boolean opaquePaths = false;    // Relevant pages are not under /TOPIC/
+
+    /**
+     * @param seed					The seed everything is computed from
+     * @param hosts					The number of hosts
+     * @param pagesPerHost			The number of pages on each host
+     * @param outDegree				The number of links on each page
+     * @param relevantFraction		The share of pages containing the query, 0 to 1
+     * @param crossHostFraction		The share of links to other hosts, 0 to 1
+     * @param robotsFraction		The share of hosts disallowing /private/, 0 to 1
+     * @param crawlDelayFraction	The share of hosts asking for a crawl delay, 0 to 1
+     * @param crawlDelay			The crawl delay (s) those hosts ask for
+     * @param topic					The topic, a single word, used in the path of relevant pages
+     * @param query					The query phrase the relevant pages contain
+     * @param basePort				The port of host 0
+     */
+    public SyntheticWeb(long seed, int hosts, int pagesPerHost, int outDegree, double relevantFraction,
+                        double crossHostFraction, double robotsFraction, double crawlDelayFraction, double crawlDelay,
+                        String topic, String query, int basePort) {
+        this.seed = seed;
+        this.hosts = hosts;
+        this.pagesPerHost = pagesPerHost;
+        this.outDegree = outDegree;
+        this.relevantFraction = relevantFraction;
+        this.crossHostFraction = crossHostFraction;
+        this.robotsFraction = robotsFraction;
+        this.crawlDelayFraction = crawlDelayFraction;
+        this.crawlDelay = crawlDelay;
+        this.topic = topic;
+        this.query = query;
+        this.basePort = basePort;
+    }
+
+    /**
+     * SplitMix64, a cheap hash that spreads every bit of its input
+     */
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * @return a number in [0, 1) determined by the seed and the arguments
+     */
+    double uniform(long salt, long host, long page) {
+        long h = mix(seed ^ mix(salt * 0x9e3779b97f4a7c15L ^ mix(host * 0xc2b2ae3d27d4eb4fL ^ page)));
+        return (h >>> 11) * 0x1.0p-53;
+    }
+
+    public boolean isRelevant(int host, int page) {
+        return uniform(1, host, page) < relevantFraction;
+    }
+
+    public boolean disallowsPrivate(int host) {
+        return uniform(2, host, -1) < robotsFraction;
+    }
+
+    /**
+     * @return the crawl delay (s) the host asks for, 0 if none
+     */
+    public double crawlDelayOf(int host) {
+        return uniform(3, host, -1) < crawlDelayFraction ? crawlDelay : 0;
+    }
+
+    /**
+     * @param opaquePaths	Don't put relevant pages under /TOPIC/, so their path tells nothing
+     */
+    public void setOpaquePaths(boolean opaquePaths) {
+        this.opaquePaths = opaquePaths;
+    }
+
+    public String hostName(int host) {
+        return "127.0.0.1:" + (basePort + host);
+    }
+
+    /**
+     * @return the path of the page, which tells whether it is relevant or private
+     */
+    public String path(int host, int page, boolean isPrivate) {
+        if (isPrivate) {
+            return "/private/p" + page + ".html";
+        }
+        return isRelevant(host, page) && !opaquePaths ? "/" + topic + "/p" + page + ".html" : "/p" + page + ".html";
+    }
+
+    public String url(int host, int page) {
+        return "http://" + hostName(host) + path(host, page, false);
+    }
+
+    /**
+     * @return the number of pages of the path, or -1 if it is not a page of the host
+     */
+    public int pageOf(int host, String path) {
+        if (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);    // The crawler's canonical form has a trailing /
+        }
+        int slash = path.lastIndexOf('/');
+        if (!path.startsWith("/p", slash) || !path.endsWith(".html")) {
+            return -1;
+        }
+        int page;
+        try {
+            page = Integer.parseInt(path.substring(slash + 2, path.length() - 5));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+        if (page < 0 || page >= pagesPerHost) {
+            return -1;
+        }
+        String prefix = path.substring(0, slash);
+        boolean matches = prefix.equals("/private") || prefix.equals(isRelevant(host, page) && !opaquePaths ? "/" + topic : "");
+        return matches ? page : -1;
+    }
+
+    public String robotsTxt(int host) {
+        StringBuilder robots = new StringBuilder("User-agent: *\n");
+        if (disallowsPrivate(host)) {
+            robots.append("Disallow: /private/\n");
+        }
+        double delay = crawlDelayOf(host);
+        if (delay > 0) {
+            robots.append("Crawl-delay: ").append(delay).append('\n');
+        }
+        return robots.toString();
+    }
+
+    /**
+     * @return the HTML of the page
+     */
+    public String page(int host, int page) {
+        Random random = new Random(mix(seed ^ mix(host * 0x9e3779b97f4a7c15L + page)));
+        boolean relevant = isRelevant(host, page);
+        StringBuilder html = new StringBuilder(4096);
+        html.append("<html><head><title>Page ").append(page).append(" of host ").append(host)
+            .append("</title></head><body>\n<p>");
+        for (int w = 0; w < 200; w++) {
+            if (relevant && w % 60 == 30) {
+                html.append(query).append(' ');
+            }
+            html.append(WORDS[random.nextInt(WORDS.length)]).append(w % 15 == 14 ? ".\n" : " ");
+        }
+        html.append("</p>\n<ul>\n");
+        for (int l = 0; l < outDegree; l++) {
+            int toHost = random.nextDouble() < crossHostFraction ? random.nextInt(hosts) : host;
+            int toPage = random.nextInt(pagesPerHost);
+            // Relevant pages favour relevant pages, like real pages favour their own topic
+            for (int tries = 0; relevant && tries < 8 && !isRelevant(toHost, toPage) && random.nextBoolean(); tries++) {
+                toPage = random.nextInt(pagesPerHost);
+            }
+            boolean isPrivate = random.nextDouble() < 0.05;
+            html.append("<li><a href=\"http://").append(hostName(toHost)).append(path(toHost, toPage, isPrivate))
+                .append("\">").append(WORDS[random.nextInt(WORDS.length)]).append("</a></li>\n");
+        }
+        html.append("</ul>\n</body></html>\n");
+        return html.toString();
+    }
+
+    /**
+     * @return the number of relevant pages in the web, for the recall of a crawl
+     */
+    public long relevantCount() {
+        long count = 0;
+        for (int h = 0; h < hosts; h++) {
+            for (int p = 0; p < pagesPerHost; p++) {
+                if (isRelevant(h, p)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    public int getHosts() {
+        return hosts;
+    }
+
+    public int getBasePort() {
+        return basePort;
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+}
@@ -0,0 +1,245 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Serves a SyntheticWeb from the loopback interface, one port per host, with a latency and an error
+ * rate of its own for each host. A host may serve only so many requests at the same time and answer
+ * the rest with 429 Too Many Requests, like a fragile server. Every request is logged, so after a crawl it can tell whether the
+ * crawler kept to the delay between requests to a host and to the robots.txt rules.
+ */
+public class SyntheticWebServer {
+    private final SyntheticWeb web;
+    private final long latency;         // The mean time (ms) to answer a request
+    private final double errorRate;     // The share of pages answered with 500
+    private final Semaphore[] capacity; // The requests each host serves at the same time, null if unlimited
+    private final List<HttpServer> servers = new ArrayList<HttpServer>();
+    private final ExecutorService executor;
+    private final List<List<Hit>> hits = new ArrayList<List<Hit>>();    // The requests to each host
+
+    /**
+     * A request, as seen by the server
+     */
+    private static class Hit {
+        final long nanos;
+        final String path;
+        final boolean throttled;        // Answered with 429
+
+        Hit(long nanos, String path, boolean throttled) {
+            this.nanos = nanos;
+            this.path = path;
+            this.throttled = throttled;
+        }
+    }
+
+    /**
+     * What the server saw of a crawl
+     */
+    public static class Report {
+        public long requests;
+        public long robotsRequests;
+        public long errors;             // Requests answered with 500 or 404
+        public long gaps;               // Pairs of consecutive page requests to a host
+        public long politenessViolations;   // Pairs closer together than the host allows
+        public long minSlackMillis = Long.MAX_VALUE;    // The least a gap exceeded the gap the host allows by
+        public long robotsViolations;   // Requests for paths robots.txt disallows
+        public long duplicates;         // Pages requested more than once
+        public long throttled;          // Requests answered with 429 because the host was busy
+    }
+
+    /**
+     * @param web		The web to serve
+     * @param latency	The mean time (ms) to answer a request, each host is between half and one and a half times that
+     * @param errorRate	The share of pages answered with 500, 0 to 1
+     * @param capacity	The requests each host serves at the same time, more are answered with 429, 0 for no limit
+     */
+    public SyntheticWebServer(SyntheticWeb web, long latency, double errorRate, int capacity) {
+        this.web = web;
+        this.latency = latency;
+        this.errorRate = errorRate;
+        if (capacity > 0) {
+            this.capacity = new Semaphore[web.getHosts()];
+            for (int h = 0; h < web.getHosts(); h++) {
+                this.capacity[h] = new Semaphore(capacity);
+            }
+        } else {
+            this.capacity = null;
+        }
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "synthetic-web");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        for (int h = 0; h < web.getHosts(); h++) {
+            hits.add(Collections.synchronizedList(new ArrayList<Hit>()));
+        }
+    }
+
+    /**
+     * Starts a server for each host
+     * @throws IOException if a port could not be opened
+     */
+    public void start() throws IOException {
+        for (int h = 0; h < web.getHosts(); h++) {
+            final int host = h;
+            HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), web.getBasePort() + h), 256);
+            server.createContext("/", new HttpHandler() {
+                @Override
+                public void handle(HttpExchange exchange) throws IOException {
+                    serve(host, exchange);
+                }
+            });
+            server.setExecutor(executor);
+            server.start();
+            servers.add(server);
+        }
+    }
+
+    public void stop() {
+        for (HttpServer server : servers) {
+            server.stop(0);
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return the mean latency (ms) of the host
+     */
+    long latencyOf(int host) {
+        return Math.round(latency * (0.5 + web.uniform(5, host, -1)));
+    }
+
+    private void serve(int host, HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        if (capacity != null && !capacity[host].tryAcquire()) {
+            hits.get(host).add(new Hit(System.nanoTime(), path, true));
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            exchange.sendResponseHeaders(429, -1);
+            exchange.close();
+            return;
+        }
+        try {
+            hits.get(host).add(new Hit(System.nanoTime(), path, false));
+            serveAllowed(host, path, exchange);
+        } finally {
+            if (capacity != null) {
+                capacity[host].release();
+            }
+        }
+    }
+
+    private void serveAllowed(int host, String path, HttpExchange exchange) throws IOException {
+        int status = 200;
+        String body;
+        String type = "text/html; charset=utf-8";
+        if (path.equals("/robots.txt")) {
+            body = web.robotsTxt(host);
+            type = "text/plain";
+        } else {
+            int page = web.pageOf(host, path);
+            if (page < 0) {
+                status = 404;
+                body = "<html><body>Not found</body></html>";
+            } else if (web.uniform(4, host, page) < errorRate) {
+                status = 500;
+                body = "<html><body>Internal error</body></html>";
+            } else {
+                body = web.page(host, page);
+            }
+        }
+        long delay = latencyOf(host);
+        if (delay > 0) {
+            try {
+                Thread.sleep(Math.round(delay * ThreadLocalRandom.current().nextDouble(0.8, 1.2)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", type);
+        if (status == 200) {
+            // The pages never change, so a crawler that sends back the ETag gets 304 Not Modified
+            String etag = "\"" + Long.toHexString(PageStore.hashOf(bytes)) + "\"";
+            exchange.getResponseHeaders().set("ETag", etag);
+            if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+        }
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    /**
+     * Goes through the requests logged so far
+     * @param minDelay	The delay (ms) the crawler keeps between requests to a host when robots.txt asks for none
+     * @param tolerance	The time (ms) a gap may fall short of the delay, for the jitter of timing on the server side
+     * @return what the server saw
+     */
+    public Report report(long minDelay, long tolerance) {
+        Report report = new Report();
+        for (int h = 0; h < hits.size(); h++) {
+            List<Hit> hostHits;
+            synchronized (hits.get(h)) {
+                hostHits = new ArrayList<Hit>(hits.get(h));
+            }
+            Collections.sort(hostHits, new Comparator<Hit>() {
+                @Override
+                public int compare(Hit a, Hit b) {
+                    return Long.compare(a.nanos, b.nanos);
+                }
+            });
+            long allowedGap = Math.max(minDelay, Math.round(web.crawlDelayOf(h) * 1000));
+            Set<String> pages = new HashSet<String>();
+            long last = -1;
+            for (Hit hit : hostHits) {
+                report.requests++;
+                if (hit.path.equals("/robots.txt")) {
+                    report.robotsRequests++;
+                    continue;   // The crawler reads robots.txt before it starts keeping the delay
+                }
+                String path = hit.path.endsWith("/") ? hit.path.substring(0, hit.path.length() - 1) : hit.path;
+                int page = web.pageOf(h, path);
+                if (hit.throttled) {
+                    report.throttled++;
+                } else if (page < 0 || web.uniform(4, h, page) < errorRate) {
+                    report.errors++;
+                }
+                if (!hit.throttled && !pages.add(path)) {
+                    report.duplicates++;
+                }
+                if (path.startsWith("/private/") && web.disallowsPrivate(h)) {
+                    report.robotsViolations++;
+                }
+                if (last >= 0) {
+                    long gap = (hit.nanos - last) / 1000000;
+                    report.gaps++;
+                    report.minSlackMillis = Math.min(report.minSlackMillis, gap - allowedGap);
+                    if (gap < allowedGap - tolerance) {
+                        report.politenessViolations++;
+                    }
+                }
+                last = hit.nanos;
+            }
+        }
+        return report;
+    }
+}
@@ -0,0 +1,101 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The checked-in inputs of the benchmarks, read from bench/corpus:
+ * pages/index.txt lists the HTML pages and the url each is parsed as, its first comment line tells what
+ * the corpus is (e.g. synthetic), urls.txt holds links like those found on pages (one per line)
+ * and robots/ holds robots.txt files.
+ */
+public class Corpus {
+    private final File dir;
+    private final List<String> pageUrls = new ArrayList<String>();
+    private final List<byte[]> pages = new ArrayList<byte[]>();
+    private final List<String> urls = new ArrayList<String>();
+    private final List<String> robots = new ArrayList<String>();
+    private String description = "no description";     // What the corpus is, from pages/index.txt
+
+    /**
+     * @param dir	The corpus directory
+     * @throws IOException if the corpus can't be read
+     */
+    public Corpus(File dir) throws IOException {
+        this.dir = dir;
+        File index = new File(dir, "pages/index.txt");
+        for (String line : Files.readAllLines(index.toPath(), StandardCharsets.UTF_8)) {
+            if (line.startsWith("#")) {
+                description = line.substring(1).trim();
+                break;
+            }
+        }
+        for (String line : readLines(index)) {
+            String[] parts = line.split(" ");
+            pages.add(Files.readAllBytes(new File(dir, "pages/" + parts[0]).toPath()));
+            pageUrls.add(parts[1]);
+        }
+        urls.addAll(readLines(new File(dir, "urls.txt")));
+        File[] robotFiles = new File(dir, "robots").listFiles();
+        if (robotFiles == null) {
+            throw new IOException("No robots.txt files in " + dir);
+        }
+        Arrays.sort(robotFiles);
+        for (File file : robotFiles) {
+            robots.add(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+        }
+    }
+
+    private static List<String> readLines(File file) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    /**
+     * @return what the corpus is and how much of it there is, for the benchmark output
+     */
+    public String describe() {
+        return dir + " (" + description + "): " + pages.size() + " pages, " + urls.size() + " links, "
+                + robots.size() + " robots.txt files";
+    }
+
+    /**
+     * @return the raw bytes of each page
+     */
+    public List<byte[]> getPages() {
+        return pages;
+    }
+
+    /**
+     * @return the url of each page, in the same order as getPages()
+     */
+    public List<String> getPageUrls() {
+        return pageUrls;
+    }
+
+    /**
+     * @return the links, absolute or not, canonical or not
+     */
+    public List<String> getUrls() {
+        return urls;
+    }
+
+    /**
+     * @return the content of each robots.txt file
+     */
+    public List<String> getRobots() {
+        return robots;
+    }
+}
@@ -0,0 +1,102 @@
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import crawlerbench.HotPaths;
+
+/**
+ * The crawler's hot paths over the inputs of a corpus, for the JMH benchmarks in crawlerbench.
+ * Everything but the frontier is set up once, the frontier again by each call to newFrontier().
+ */
+public class CorpusHotPaths implements HotPaths {
+    private final Corpus corpus;
+    private final List<String> canonicalUrls = new ArrayList<String>();     // The http(s) links of the corpus, canonicalized
+    private final List<URL> parsedUrls = new ArrayList<URL>();              // The same links parsed
+    private final List<String> bodies = new ArrayList<String>();            // The body text of each page
+    private final URLCanonicalizer cached = new URLCanonicalizer();
+    private final URLCanonicalizer uncached = new URLCanonicalizer(0);
+    private final WebCrawler crawler = new WebCrawler();
+    private final double[] unrelated = new double[1];      // Found on a page not relevant to the query
+    private final RobotTxtParser robots = new RobotTxtParser("RuBot", null, Long.MAX_VALUE / 2, false);
+    private final HTMLParser jsoupParser = new HTMLParser(false);
+    private final HTMLParser streamingParser = new HTMLParser(true);
+    private volatile Frontier frontier;
+
+    /**
+     * @param dir	The corpus directory
+     * @throws Exception if the corpus can't be read or parsed
+     */
+    public CorpusHotPaths(File dir) throws Exception {
+        corpus = new Corpus(dir);
+        System.out.println("Corpus " + corpus.describe());
+        for (String url : corpus.getUrls()) {
+            String canonical = uncached.getCanonicalURL(url);
+            if (canonical != null) {
+                canonicalUrls.add(canonical);
+            }
+        }
+        for (int i = 0; i < corpus.getPages().size(); i++) {
+            bodies.add(jsoupParser.parse(corpus.getPageUrls().get(i), corpus.getPages().get(i), null).getBody());
+        }
+        crawler.setQuery("háskóli", "Reykjavík University");
+
+        // Give each host of the corpus one of the robots.txt files
+        Map<String, Integer> hosts = new HashMap<String, Integer>();
+        for (String url : canonicalUrls) {
+            try {
+                URL u = new URL(url);
+                String host = Frontier.hostKey(u);
+                if (!hosts.containsKey(host)) {
+                    hosts.put(host, hosts.size());
+                    String content = corpus.getRobots().get(hosts.get(host) % corpus.getRobots().size());
+                    robots.putRules(host, robots.parseContent(content, Long.MAX_VALUE));
+                }
+                parsedUrls.add(u);
+            } catch (MalformedURLException e) {
+                // The canonicalizer only returns well formed urls
+            }
+        }
+        newFrontier();
+    }
+
+    public String canonicalize(int link, boolean cached) {
+        String url = corpus.getUrls().get(link % corpus.getUrls().size());
+        return (cached ? this.cached : uncached).getCanonicalURL(url);
+    }
+
+    public void newFrontier() {
+        frontier = new Frontier(0, false);     // A fresh seen set, and no politeness delay
+    }
+
+    public Object addRemove(long n) {
+        // Made up as they are added, so every url is new however long the benchmark runs
+        String url = canonicalUrls.get((int) (n % canonicalUrls.size())) + "?n=" + n;
+        frontier.add(url, url.length() % 7);
+        URLScore taken = frontier.removeNext();
+        if (taken != null) {
+            frontier.done(taken);
+        }
+        return taken;
+    }
+
+    public double rateUrl(int link) {
+        return crawler.rateURL(canonicalUrls.get(link % canonicalUrls.size()), unrelated);
+    }
+
+    public boolean isRelevantText(int page) {
+        return crawler.isRelevantText(bodies.get(page % bodies.size()));
+    }
+
+    public boolean isUrlAllowed(int link) {
+        return robots.isUrlAllowed(parsedUrls.get(link % parsedUrls.size()));
+    }
+
+    public Object parse(int page, boolean streaming) throws Exception {
+        page %= corpus.getPages().size();
+        return (streaming ? streamingParser : jsoupParser).parse(corpus.getPageUrls().get(page), corpus.getPages().get(page), null);
+    }
+}
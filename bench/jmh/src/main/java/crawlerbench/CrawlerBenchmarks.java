@@ -0,0 +1,121 @@
+package crawlerbench;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.infra.ThreadParams;
+
+/**
+ * Benchmarks of the crawler's CPU hot paths: URLCanonicalizer with and without its cache, Frontier add and
+ * removeNext on one and on four threads, WebCrawler.rateURL() and isRelevantText(), RobotTxtParser.isUrlAllowed()
+ * and both HTMLParser modes. Each thread walks the inputs of the corpus in turn, see HotPaths.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CrawlerBenchmarks {
+    @Param("bench/corpus")
+    public String corpus;           // The corpus directory, relative to where the benchmarks are run from
+
+    private HotPaths paths;
+
+    /**
+     * The position of a thread in the inputs. With T threads, thread t takes inputs t, t+T, t+2T...
+     * so no two threads work on the same input at once.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private long next;
+        private int stride;
+
+        @Setup
+        public void setUp(ThreadParams thread) {
+            next = thread.getThreadIndex();
+            stride = thread.getThreadCount();
+        }
+
+        long next() {
+            long n = next;
+            next += stride;
+            return n;
+        }
+
+        int nextIndex() {
+            return (int) (next() & Integer.MAX_VALUE);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        paths = (HotPaths) Class.forName("CorpusHotPaths").getConstructor(File.class).newInstance(new File(corpus));
+    }
+
+    @Setup(Level.Iteration)
+    public void newFrontier() {
+        paths.newFrontier();
+    }
+
+    @Benchmark
+    public String canonicalizeCached(Cursor cursor) {
+        return paths.canonicalize(cursor.nextIndex(), true);
+    }
+
+    @Benchmark
+    public String canonicalizeUncached(Cursor cursor) {
+        return paths.canonicalize(cursor.nextIndex(), false);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Object frontierAddRemove(Cursor cursor) {
+        return paths.addRemove(cursor.next());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object frontierAddRemoveContended(Cursor cursor) {
+        return paths.addRemove(cursor.next());
+    }
+
+    @Benchmark
+    public double rateUrl(Cursor cursor) {
+        return paths.rateUrl(cursor.nextIndex());
+    }
+
+    @Benchmark
+    public boolean isRelevantText(Cursor cursor) {
+        return paths.isRelevantText(cursor.nextIndex());
+    }
+
+    @Benchmark
+    public boolean robotsIsUrlAllowed(Cursor cursor) {
+        return paths.isUrlAllowed(cursor.nextIndex());
+    }
+
+    @Benchmark
+    public void parsePageJsoup(Cursor cursor, Blackhole sink) throws Exception {
+        sink.consume(paths.parse(cursor.nextIndex(), false));
+    }
+
+    @Benchmark
+    public void parsePageStreaming(Cursor cursor, Blackhole sink) throws Exception {
+        sink.consume(paths.parse(cursor.nextIndex(), true));
+    }
+}
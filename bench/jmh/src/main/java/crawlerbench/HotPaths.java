@@ -0,0 +1,46 @@
+package crawlerbench;
+
+/**
+ * The crawler's hot paths as the benchmarks call them. The crawler is in the default package, which
+ * a benchmark can't be in (JMH won't have it) nor import from, so the default package class CorpusHotPaths
+ * implements this over the corpus and the benchmarks load it by name, see CrawlerBenchmarks.
+ * Each input is picked by an index, taken modulo the number of inputs of its kind.
+ */
+public interface HotPaths {
+    /**
+     * @return the link canonicalized by a URLCanonicalizer with a cache, or without one if uncached
+     */
+    String canonicalize(int link, boolean cached);
+
+    /**
+     * Starts over with an empty frontier that has no politeness delay
+     */
+    void newFrontier();
+
+    /**
+     * Adds a URL never added before to the frontier, then takes the next URL out and is done with it
+     * @param n	Tells the URL from all others added to the same frontier
+     * @return the URL taken out or null if none was ready
+     */
+    Object addRemove(long n);
+
+    /**
+     * @return the score WebCrawler.rateURL() gives a canonical link found on a page not relevant to the query
+     */
+    double rateUrl(int link);
+
+    /**
+     * @return true if the query phrase is in the body text of the page
+     */
+    boolean isRelevantText(int page);
+
+    /**
+     * @return true if robots.txt lets the crawler fetch the canonical link
+     */
+    boolean isUrlAllowed(int link);
+
+    /**
+     * @return the page parsed by HTMLParser, in streaming mode or with jsoup
+     */
+    Object parse(int page, boolean streaming) throws Exception;
+}
@@ -0,0 +1,48 @@
+/**
+ * Caps the bandwidth of the whole crawl with a token bucket. The bucket fills at the allowed number
+ * of bytes per second, up to a second's worth, and each response takes its size out once it has arrived.
+ * The size of a response is not known until then, so the bucket may go into debt: no new fetch
+ * is started until it has filled up again, which keeps the average within the cap.
+ */
+public class BandwidthLimiter {
+    private final long bytesPerSecond;
+    private double tokens;                      // Bytes that may be downloaded now, negative when in debt
+    private long lastFill;                      // When (ns) the bucket was last filled
+
+    /**
+     * @param bytesPerSecond	The most bytes downloaded per second, on average
+     */
+    public BandwidthLimiter(long bytesPerSecond) {
+        this.bytesPerSecond = Math.max(1, bytesPerSecond);
+        tokens = this.bytesPerSecond;
+        lastFill = System.nanoTime();
+    }
+
+    private void fill() {
+        long now = System.nanoTime();
+        tokens = Math.min(bytesPerSecond, tokens + (now - lastFill) * bytesPerSecond / 1e9);
+        lastFill = now;
+    }
+
+    /**
+     * Takes a response out of the bucket
+     * @param bytes	The size of the response
+     */
+    public synchronized void consume(long bytes) {
+        fill();
+        tokens -= bytes;
+    }
+
+    /**
+     * Waits until the bucket is out of debt, so another fetch may start
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized void acquire() throws InterruptedException {
+        fill();
+        while (tokens < 0) {
+            long millis = (long) Math.ceil(-tokens * 1000 / bytesPerSecond);
+            wait(Math.max(1, millis));
+            fill();
+        }
+    }
+}
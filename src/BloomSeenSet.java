@@ -0,0 +1,127 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An approximate seen set for very large crawls, a Bloom filter over the URL fingerprints.
+ * It is sized up front for an expected number of urls and a false positive rate: a url that
+ * was never added is reported as seen with roughly that probability (and is then skipped
+ * by the crawler), while a url that was added is always reported as seen.
+ *
+ * The bits live in an AtomicLongArray and are set with compare-and-set, so the set is lock-free.
+ */
+public class BloomSeenSet implements SeenSet {
+    static final int TYPE = 2;                          // Identifies the set in writeTo()
+
+    private final AtomicLongArray bits;
+    private final long bitCount;
+    private final int hashCount;
+    private final AtomicLong size = new AtomicLong();   // The number of adds that set at least one bit
+
+    /**
+     * @param expectedSize		The number of urls the filter is sized for
+     * @param falsePositiveRate	The acceptable false positive rate at expectedSize urls, e.g. 0.001
+     */
+    public BloomSeenSet(long expectedSize, double falsePositiveRate) {
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("False positive rate must be between 0 and 1: " + falsePositiveRate);
+        }
+        expectedSize = Math.max(1, expectedSize);
+        // The optimal size and number of hash functions for the given rate
+        long m = (long) Math.ceil(-expectedSize * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        int words = (int) Math.min(Integer.MAX_VALUE - 8, (m + 63) / 64);
+        bits = new AtomicLongArray(words);
+        bitCount = (long) words * 64;
+        hashCount = Math.max(1, (int) Math.round((double) bitCount / expectedSize * Math.log(2)));
+    }
+
+    public boolean add(String url) {
+        return addFingerprint(URLFingerprint.of(url));
+    }
+
+    public boolean contains(String url) {
+        return containsFingerprint(URLFingerprint.of(url));
+    }
+
+    /**
+     * @param fingerprint	The fingerprint of the url, see URLFingerprint
+     * @return true if the fingerprint had (probably) not been added before
+     */
+    public boolean addFingerprint(long fingerprint) {
+        // Double hashing: bit i is h1 + i*h2, the two halves derived from the fingerprint
+        long h1 = fingerprint;
+        long h2 = URLFingerprint.mix(fingerprint) | 1;
+        boolean added = false;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Math.floorMod(h1 + i * h2, bitCount);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long old;
+            do {
+                old = bits.get(word);
+                if ((old & mask) != 0) {
+                    break;
+                }
+            } while (!bits.compareAndSet(word, old, old | mask));
+            if ((old & mask) == 0) {
+                added = true;
+            }
+        }
+        if (added) {
+            size.incrementAndGet();
+        }
+        return added;
+    }
+
+    public boolean containsFingerprint(long fingerprint) {
+        long h1 = fingerprint;
+        long h2 = URLFingerprint.mix(fingerprint) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Math.floorMod(h1 + i * h2, bitCount);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of urls added, not counting false positives
+     */
+    public long size() {
+        return size.get();
+    }
+
+    /**
+     * Writes the bits of the filter, bits set while it is being written may or may not be included
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeByte(TYPE);
+        out.writeLong(bitCount);
+        out.writeInt(hashCount);
+        out.writeLong(size.get());
+        for (int i = 0; i < bits.length(); i++) {
+            out.writeLong(bits.get(i));
+        }
+    }
+
+    public void readFrom(DataInput in) throws IOException {
+        if (in.readByte() != TYPE) {
+            throw new IOException("Not a Bloom filter, use the same --seen-set as the crawl that wrote it");
+        }
+        if (in.readLong() != bitCount || in.readInt() != hashCount) {
+            throw new IOException("The Bloom filter was sized differently, use the same --expected-urls and --false-positive-rate");
+        }
+        long added = in.readLong();
+        for (int i = 0; i < bits.length(); i++) {
+            long saved = in.readLong();
+            long old;
+            do {
+                old = bits.get(i);
+            } while (!bits.compareAndSet(i, old, old | saved));
+        }
+        size.addAndGet(added);
+    }
+}
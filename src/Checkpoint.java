@@ -0,0 +1,166 @@
+/*
+ Checkpoints of the crawl state, so a crawl that dies can be resumed instead of started over.
+ A checkpoint holds the counters of the crawl, the robots.txt rules of each host, the queued urls
+ and the seen set. It is written in the background at a fixed interval while the crawl goes on,
+ streaming each part straight to the file (see Frontier.writeTo()) rather than copying the state first.
+ The file is written next to the last checkpoint and only replaces it once complete, so a crash
+ while writing leaves the last checkpoint intact.
+
+ File layout: magic (int), version (int), the time written (long), then a zlib stream of
+ pages crawled (int), pages relevant (int), the number of profiles (int) and the pages relevant to each (int),
+ next url index (int), the robots.txt rules (see RobotTxtParser.writeRules()) and the frontier (see Frontier.writeTo()).
+*/
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+public class Checkpoint {
+    private static final int MAGIC = 0x43434b50;    // "CCKP"
+    private static final int VERSION = 1;
+
+    private final File file;
+    private final Frontier frontier;
+    private final RobotTxtParser robots;
+    private final AtomicInteger pagesCrawled;       // The counters of the crawl, shared with the crawler
+    private final AtomicInteger pagesRelevant;
+    private final List<QueryProfile> profiles;      // Count the pages relevant to each
+    private ScheduledExecutorService scheduler;     // Writes the periodic checkpoints, null until start()
+    private boolean debug = false;
+
+    /**
+     * @param file			The checkpoint file
+     * @param frontier		The frontier to checkpoint
+     * @param robots		The robots.txt rules to checkpoint
+     * @param pagesCrawled	The number of pages crawled
+     * @param pagesRelevant	The number of relevant pages found
+     * @param profiles		The topics and queries of the crawl
+     * @param debug			Print diagnostic output
+     */
+    public Checkpoint(File file, Frontier frontier, RobotTxtParser robots,
+                      AtomicInteger pagesCrawled, AtomicInteger pagesRelevant, List<QueryProfile> profiles, boolean debug) {
+        this.file = file;
+        this.frontier = frontier;
+        this.robots = robots;
+        this.pagesCrawled = pagesCrawled;
+        this.pagesRelevant = pagesRelevant;
+        this.profiles = profiles;
+        this.debug = debug;
+    }
+
+    /**
+     * Writes a checkpoint every interval on a background thread
+     * @param interval	Time (s) between checkpoints
+     */
+    public void start(long interval) {
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "checkpoint");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write();
+                } catch (IOException e) {
+                    System.out.println("Could not write checkpoint " + file + ": " + e.getMessage());
+                }
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops the periodic checkpoints, waiting for one being written to finish
+     */
+    public void stop() {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.HOURS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes a checkpoint now
+     * @throws IOException if the checkpoint could not be written, the last checkpoint is then kept
+     */
+    public synchronized void write() throws IOException {
+        long start = System.currentTimeMillis();
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream header = new DataOutputStream(new FileOutputStream(temp));
+        try {
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            header.writeLong(start);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new DeflaterOutputStream(header, new Deflater(Deflater.BEST_SPEED), 1 << 16), 1 << 16));
+            out.writeInt(pagesCrawled.get());
+            out.writeInt(pagesRelevant.get());
+            out.writeInt(profiles.size());
+            for (QueryProfile profile : profiles) {
+                out.writeInt(profile.getRelevant().get());
+            }
+            out.writeInt(frontier.getNextIndex());
+            robots.writeRules(out);
+            frontier.writeTo(out);
+            out.close();
+        } finally {
+            header.close();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        if (debug) System.out.println("Checkpoint-Wrote " + file + " in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Restores the crawl state from the checkpoint file, before the crawl starts
+     * @return the number of urls queued
+     * @throws IOException if the checkpoint could not be read
+     */
+    public int restore() throws IOException {
+        DataInputStream header = new DataInputStream(new FileInputStream(file));
+        try {
+            if (header.readInt() != MAGIC) {
+                throw new IOException("Not a checkpoint: " + file);
+            }
+            int version = header.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported checkpoint version " + version + ": " + file);
+            }
+            header.readLong();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new InflaterInputStream(header), 1 << 16));
+            pagesCrawled.set(in.readInt());
+            pagesRelevant.set(in.readInt());
+            int profileCount = in.readInt();
+            for (int i = 0; i < profileCount; i++) {
+                int relevant = in.readInt();
+                if (profileCount == profiles.size()) {
+                    profiles.get(i).getRelevant().set(relevant);     // Else the crawl is resumed with other profiles
+                }
+            }
+            int nextIndex = in.readInt();
+            robots.readRules(in);
+            int queued = frontier.readFrom(in);
+            frontier.setNextIndex(Math.max(nextIndex, frontier.getNextIndex()));
+            return queued;
+        } finally {
+            header.close();
+        }
+    }
+}
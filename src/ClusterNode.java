@@ -0,0 +1,477 @@
+/*
+ One node of a crawler cluster. The hosts are partitioned among the nodes with a consistent hash ring
+ (see HashRing), each node crawls the hosts it owns with its own frontier and robots.txt cache, and
+ forwards the links it finds to hosts owned by other nodes to their owner.
+
+ Links are sent over plain TCP connections, one from each node to each other node. Each peer has a
+ queue of links and a thread that sends them in batches, compressed with deflate, so a busy crawler
+ sends a few large messages rather than a message per link. A link is only forwarded once by each node.
+
+ A node joins by listing one or more nodes of the cluster: on connecting it sends them its list of
+ members, they add it to their rings and tell it about the others. Only the hosts on the arcs of
+ the ring taken over by the new node change owner, their queued urls are handed over as they come up.
+
+ A node that can't be reached for MAX_UNREACHABLE is given up on: the links queued for it and those found
+ for it later are dropped (and counted), and it no longer keeps the other nodes from counting as idle,
+ so they can finish their crawls. It is tried again if it says hello, e.g. when it is restarted.
+
+ Message layout: magic (int), type (byte), payload length (int), payload.
+ HELLO payload: the sender's id and the ids of the members it knows (UTF each, after a count (int)).
+ LINKS payload: deflated count (int), then for each link score (double), url length (int) and UTF-8 url.
+*/
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+public class ClusterNode {
+    private static final int MAGIC = 0x434c4e4b;        // "CLNK"
+    private static final int HELLO = 1;
+    private static final int LINKS = 2;
+    private static final int MAX_MESSAGE = 64 << 20;    // Larger messages are a protocol error
+    private static final int MAX_QUEUED = 1000000;      // Links waiting for a peer, more are dropped
+    private static final long FLUSH_INTERVAL = 200;     // Max time (ms) a link waits for its batch to fill up
+    private static final long MAX_RETRY_DELAY = 10000;  // Max time (ms) between attempts to reach a peer
+    private static final long MAX_UNREACHABLE = 60000;  // Time (ms) a peer can't be reached before it is given up on
+
+    /**
+     * Receives the links other nodes forward to this one
+     */
+    public interface LinkSink {
+        void received(String url, double score);
+    }
+
+    private final String self;                  // The id of this node, host:port
+    private final Set<String> members = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile HashRing ring;
+    private final ConcurrentHashMap<String, Peer> peers = new ConcurrentHashMap<String, Peer>();
+    private final FingerprintSet forwarded = new FingerprintSet();  // The links already forwarded
+    private final LinkSink sink;
+    private final int batchSize;
+    private final long idleTime;                // See isIdle()
+    private ServerSocket server;
+    private volatile boolean closed = false;
+    private final AtomicLong lastActivity = new AtomicLong(System.currentTimeMillis());
+    private final AtomicLong forwardedCount = new AtomicLong();
+    private final AtomicLong receivedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private boolean debug = false;
+
+    /**
+     * A link on its way to another node
+     */
+    private static class Link {
+        final String url;
+        final double score;
+
+        Link(String url, double score) {
+            this.url = url;
+            this.score = score;
+        }
+    }
+
+    /**
+     * The connection to another node, and the links waiting to be sent to it
+     */
+    private class Peer implements Runnable {
+        final String id;
+        final LinkedBlockingQueue<Link> queue = new LinkedBlockingQueue<Link>(MAX_QUEUED);
+        volatile boolean sending = false;       // true while a batch is taken from the queue but not yet sent
+        volatile boolean dead = false;          // true once the peer has been unreachable for MAX_UNREACHABLE
+        Socket socket;
+        DataOutputStream out;
+
+        Peer(String id) {
+            this.id = id;
+        }
+
+        public void run() {
+            List<Link> batch = new ArrayList<Link>();
+            long retryDelay = 100;
+            long failingSince = 0;              // When the attempts to reach the peer started failing, 0 if they don't
+            while (!closed || !queue.isEmpty() || !batch.isEmpty()) {
+                try {
+                    if (out == null) {
+                        connect();
+                    }
+                    if (batch.isEmpty()) {
+                        Link first = queue.poll(FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+                        if (first == null) {
+                            continue;
+                        }
+                        sending = true;
+                        batch.add(first);
+                        long deadline = System.currentTimeMillis() + FLUSH_INTERVAL;
+                        while (batch.size() < batchSize) {
+                            Link next = queue.poll(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                            if (next == null) break;
+                            batch.add(next);
+                        }
+                    }
+                    sendLinks(out, batch);
+                    batch.clear();
+                    sending = false;
+                    retryDelay = 100;
+                    failingSince = 0;
+                } catch (IOException e) {
+                    if (debug) System.out.println("ClusterNode-Could not reach " + id + ": " + e.getMessage());
+                    disconnect();
+                    long now = System.currentTimeMillis();
+                    if (failingSince == 0) {
+                        failingSince = now;
+                    }
+                    if (closed || now - failingSince >= MAX_UNREACHABLE) {
+                        // Don't hold up the crawl for a node that is gone
+                        dead = true;
+                        droppedCount.addAndGet(batch.size() + queue.size());
+                        queue.clear();
+                        sending = false;
+                        if (!closed) System.out.println("Node " + id + " could not be reached for "
+                                + MAX_UNREACHABLE / 1000 + " seconds, dropping the links for it");
+                        return;
+                    }
+                    sleep(retryDelay);
+                    retryDelay = Math.min(MAX_RETRY_DELAY, retryDelay * 2);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            disconnect();
+        }
+
+        private void connect() throws IOException {
+            String[] hostPort = id.split(":");
+            socket = new Socket();
+            socket.connect(new InetSocketAddress(hostPort[0], Integer.parseInt(hostPort[1])), 5000);
+            socket.setTcpNoDelay(true);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+            sendHello(out);
+            if (debug) System.out.println("ClusterNode-Connected to " + id);
+        }
+
+        private void disconnect() {
+            try {
+                if (socket != null) socket.close();
+            } catch (IOException e) {
+                // Already broken
+            }
+            socket = null;
+            out = null;
+        }
+    }
+
+    /**
+     * @param self		The id of this node, the host:port it listens on
+     * @param cluster	The ids of the nodes of the cluster, may or may not include this node
+     * @param batchSize	The maximum number of links sent in one message
+     * @param idleTime	Time (ms) without links sent or received before the node counts as idle
+     * @param sink		Receives the links forwarded to this node
+     * @param debug		Print diagnostic output
+     */
+    public ClusterNode(String self, Collection<String> cluster, int batchSize, long idleTime, LinkSink sink, boolean debug) {
+        this.self = self;
+        this.batchSize = batchSize;
+        this.idleTime = idleTime;
+        this.sink = sink;
+        this.debug = debug;
+        members.add(self);
+        members.addAll(cluster);
+        ring = new HashRing(members);
+    }
+
+    /**
+     * Starts listening for other nodes and connecting to them
+     * @throws IOException if this node's port could not be opened
+     */
+    public void start() throws IOException {
+        String[] hostPort = self.split(":");
+        server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(hostPort[0], Integer.parseInt(hostPort[1])));
+        daemon(new Runnable() {
+            public void run() {
+                accept();
+            }
+        }, "cluster-accept");
+        for (String member : members) {
+            peerOf(member);
+        }
+    }
+
+    private Peer peerOf(String id) {
+        if (id.equals(self)) {
+            return null;
+        }
+        Peer peer = peers.get(id);
+        if (peer == null) {
+            Peer created = new Peer(id);
+            peer = peers.putIfAbsent(id, created);
+            if (peer == null) {
+                peer = created;
+                daemon(created, "cluster-peer-" + id);
+            }
+        }
+        return peer;
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                final Socket socket = server.accept();
+                daemon(new Runnable() {
+                    public void run() {
+                        receive(socket);
+                    }
+                }, "cluster-receive");
+            } catch (IOException e) {
+                if (!closed && debug) System.out.println("ClusterNode-Accept failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Reads messages from another node until it disconnects
+     */
+    private void receive(Socket socket) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+            while (true) {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("Not a cluster message");
+                }
+                int type = in.readByte();
+                int length = in.readInt();
+                if (length < 0 || length > MAX_MESSAGE) {
+                    throw new IOException("Bad message length " + length);
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                if (type == HELLO) {
+                    receiveHello(new DataInputStream(new ByteArrayInputStream(payload)));
+                } else if (type == LINKS) {
+                    receiveLinks(new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(payload))));
+                }
+            }
+        } catch (EOFException e) {
+            // The other node closed the connection
+        } catch (IOException e) {
+            if (!closed && debug) System.out.println("ClusterNode-Receive failed: " + e.getMessage());
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing more to do
+            }
+        }
+    }
+
+    private void receiveHello(DataInputStream in) throws IOException {
+        List<String> known = new ArrayList<String>();
+        known.add(in.readUTF());
+        for (int n = in.readInt(); n > 0; n--) {
+            known.add(in.readUTF());
+        }
+        Peer sender = peers.get(known.get(0));
+        if (sender != null && sender.dead && peers.remove(sender.id, sender)) {
+            peerOf(sender.id);      // The node is back, send it links again
+        }
+        addMembers(known);
+    }
+
+    private void receiveLinks(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            double score = in.readDouble();
+            byte[] utf8 = new byte[in.readInt()];
+            in.readFully(utf8);
+            sink.received(new String(utf8, StandardCharsets.UTF_8), score);
+        }
+        receivedCount.addAndGet(count);
+        lastActivity.set(System.currentTimeMillis());
+    }
+
+    /**
+     * Adds the nodes to the ring, and connects to them, unless they are known already
+     */
+    private synchronized void addMembers(List<String> ids) {
+        List<String> added = new ArrayList<String>();
+        for (String id : ids) {
+            if (members.add(id)) {
+                added.add(id);
+            }
+        }
+        if (!added.isEmpty()) {
+            ring = new HashRing(members);
+            for (String id : added) {
+                peerOf(id);
+            }
+            System.out.println("Node " + added + " joined the cluster, " + members.size() + " nodes");
+        }
+    }
+
+    private void sendHello(DataOutputStream out) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream payload = new DataOutputStream(bytes);
+        payload.writeUTF(self);
+        List<String> known = new ArrayList<String>(members);
+        payload.writeInt(known.size());
+        for (String id : known) {
+            payload.writeUTF(id);
+        }
+        payload.flush();
+        writeMessage(out, HELLO, bytes.toByteArray());
+    }
+
+    private void sendLinks(DataOutputStream out, List<Link> batch) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        DataOutputStream payload = new DataOutputStream(new DeflaterOutputStream(bytes, deflater));
+        payload.writeInt(batch.size());
+        for (Link link : batch) {
+            byte[] utf8 = link.url.getBytes(StandardCharsets.UTF_8);
+            payload.writeDouble(link.score);
+            payload.writeInt(utf8.length);
+            payload.write(utf8);
+        }
+        payload.close();
+        deflater.end();
+        writeMessage(out, LINKS, bytes.toByteArray());
+        lastActivity.set(System.currentTimeMillis());
+    }
+
+    private static void writeMessage(DataOutputStream out, int type, byte[] payload) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(type);
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.flush();
+    }
+
+    /**
+     * @param url	The canonical url
+     * @return the node owning the url's host, this node for a url the frontier would not queue anyway
+     */
+    private String ownerOf(String url) {
+        String host = Frontier.hostKey(url);    // The same key the frontier partitions by
+        return host == null ? self : ring.ownerOf(host);
+    }
+
+    /**
+     * @param url	The canonical url
+     * @return true if this node crawls the url's host
+     */
+    public boolean isLocal(String url) {
+        return self.equals(ownerOf(url));
+    }
+
+    /**
+     * Sends a link found on a page to the node owning its host, unless it has been sent before
+     * @param url		The canonical url, of a host owned by another node
+     * @param scorer	Scores the url if it is sent
+     */
+    public void forward(String url, Frontier.Scorer scorer) {
+        if (forwarded.add(url)) {
+            send(url, scorer.score(url));
+        }
+    }
+
+    /**
+     * Sends a url to the node owning its host, whether or not it has been sent before,
+     * e.g. a queued url of a host taken over by a node that joined
+     * @param url	The canonical url
+     * @param score	Its score
+     */
+    public void handOff(String url, double score) {
+        send(url, score);
+    }
+
+    private void send(String url, double score) {
+        Peer peer = peerOf(ownerOf(url));
+        if (peer == null) {
+            sink.received(url, score);      // The ring changed under us, the url is ours after all
+            return;
+        }
+        if (!peer.dead && peer.queue.offer(new Link(url, score))) {
+            forwardedCount.incrementAndGet();
+            lastActivity.set(System.currentTimeMillis());
+        } else {
+            droppedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return true if no links are waiting to be sent and none have been sent or received for a while,
+     * so a node with nothing left to crawl may assume the other nodes won't send it more.
+     * Nodes given up on don't count.
+     */
+    public boolean isIdle() {
+        for (Peer peer : peers.values()) {
+            if (!peer.dead && (!peer.queue.isEmpty() || peer.sending)) {
+                return false;
+            }
+        }
+        return System.currentTimeMillis() - lastActivity.get() > idleTime;
+    }
+
+    /**
+     * Sends the links still queued, waiting at most a few seconds, and closes the connections
+     */
+    public void close() {
+        long deadline = System.currentTimeMillis() + 5000;
+        for (Peer peer : peers.values()) {
+            while (!peer.dead && (!peer.queue.isEmpty() || peer.sending) && System.currentTimeMillis() < deadline) {
+                sleep(50);
+            }
+        }
+        closed = true;
+        try {
+            server.close();
+        } catch (IOException e) {
+            // Nothing more to do
+        }
+    }
+
+    public String getId() {
+        return self;
+    }
+
+    public int size() {
+        return members.size();
+    }
+
+    public long forwardedCount() {
+        return forwardedCount.get();
+    }
+
+    public long receivedCount() {
+        return receivedCount.get();
+    }
+
+    public long droppedCount() {
+        return droppedCount.get();
+    }
+
+    private static void daemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * Fingerprints of the text of a page, to find pages with the same or nearly the same content
+ * under different urls: mirrors, printer-friendly versions, session-id variants.
+ * The text is read as a sequence of words, ignoring case, punctuation and markup, so the exact
+ * fingerprint is the same for texts differing only in those. The SimHash is a 64-bit fingerprint
+ * where texts sharing most of their three-word shingles differ in only a few bits, see DuplicateIndex.
+ */
+public class ContentFingerprint {
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final long exact;
+    private final long simHash;
+    private final int words;
+
+    ContentFingerprint(long exact, long simHash, int words) {
+        this.exact = exact;
+        this.simHash = simHash;
+        this.words = words;
+    }
+
+    /**
+     * Each shingle of three consecutive words votes for the bits set in its hash and against the others,
+     * the SimHash has the bits that won the vote
+     * @param text	The text of the page
+     * @return the fingerprints of the text
+     */
+    public static ContentFingerprint of(CharSequence text) {
+        int[] votes = new int[64];  // The number of shingles with each bit set
+        int shingles = 0;
+        long exact = FNV_OFFSET;
+        long previous = 0;          // The hashes of the two words before this one
+        long beforePrevious = 0;
+        int words = 0;
+        int i = 0;
+        int length = text.length();
+        while (i < length) {
+            while (i < length && !Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            if (i == length) {
+                break;
+            }
+            long word = FNV_OFFSET;
+            while (i < length && Character.isLetterOrDigit(text.charAt(i))) {
+                word ^= Character.toLowerCase(text.charAt(i++));
+                word *= FNV_PRIME;
+            }
+            exact = (exact ^ word) * FNV_PRIME;
+            words++;
+            if (words >= 3) {
+                vote(votes, URLFingerprint.mix(word ^ Long.rotateLeft(previous, 21) ^ Long.rotateLeft(beforePrevious, 42)));
+                shingles++;
+            }
+            beforePrevious = previous;
+            previous = word;
+        }
+        if (words > 0 && words < 3) {
+            vote(votes, URLFingerprint.mix(exact));     // Too short for a shingle, the text is its own shingle
+            shingles++;
+        }
+        long simHash = 0;
+        for (int bit = 0; bit < 64; bit++) {
+            if (votes[bit] * 2 > shingles) {
+                simHash |= 1L << bit;
+            }
+        }
+        return new ContentFingerprint(URLFingerprint.mix(exact), simHash, words);
+    }
+
+    private static void vote(int[] votes, long hash) {
+        for (int bit = 0; bit < 64; bit++) {
+            votes[bit] += (int) (hash >>> bit & 1);
+        }
+    }
+
+    /**
+     * @return the fingerprint of the exact sequence of words
+     */
+    public long getExact() {
+        return exact;
+    }
+
+    public long getSimHash() {
+        return simHash;
+    }
+
+    /**
+     * @return the number of words in the text
+     */
+    public int getWords() {
+        return words;
+    }
+}
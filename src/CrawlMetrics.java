@@ -0,0 +1,310 @@
+/*
+ Live metrics of a crawl, to tell whether a slow crawl is waiting on the network, the parser or the frontier.
+ Each stage of handling a url is timed into a latency histogram:
+ 	robots		checking the url against the robots.txt rules of its host
+ 	dequeue		taking the next url from the frontier, including the wait for a polite host
+ 	fetch-wait	waiting for a free connection slot before the request is sent
+ 	first-byte	from sending the request until the response headers arrive (includes connecting)
+ 	download	from the response headers until the body is complete
+ 	parse		parsing the page into links and text
+ 	dedup		fingerprinting the text and looking for a page crawled before with the same content
+ 	match		finding the query in the page
+ 	score		scoring the new links of a page
+ 	enqueue		adding the links of a page to the frontier, not counting the scoring
+ The counters are LongAdders and the histograms lock-free, so recording costs little more than reading the clock.
+ The sizes of the frontier and the work in flight are read when the metrics are, and not tracked in between.
+
+ The metrics are served over JMX (the CrawlMetrics bean in the WebCrawler domain) and as plain text from
+ http://127.0.0.1:PORT/metrics, one "name value" line per metric, in the Prometheus text format.
+*/
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+public class CrawlMetrics implements CrawlMetricsMBean {
+    private static final int DEEPEST_HOSTS = 10;    // The number of hosts whose queue depth is reported
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+    private static final String[] QUANTILES = { "0.5", "0.9", "0.99", "0.999" };  // The percentiles as labelled in the report
+
+    public final LatencyHistogram robots = new LatencyHistogram();
+    public final LatencyHistogram dequeue = new LatencyHistogram();
+    public final LatencyHistogram fetchWait = new LatencyHistogram();
+    public final LatencyHistogram firstByte = new LatencyHistogram();
+    public final LatencyHistogram download = new LatencyHistogram();
+    public final LatencyHistogram parse = new LatencyHistogram();
+    public final LatencyHistogram dedup = new LatencyHistogram();
+    public final LatencyHistogram match = new LatencyHistogram();
+    public final LatencyHistogram score = new LatencyHistogram();
+    public final LatencyHistogram enqueue = new LatencyHistogram();
+    private final Map<String, LatencyHistogram> stages = new LinkedHashMap<String, LatencyHistogram>();
+
+    public final LongAdder pagesFetched = new LongAdder();     // Responses received, whatever their status
+    public final LongAdder fetchErrors = new LongAdder();      // Fetches failed without a response
+    public final LongAdder bytesDownloaded = new LongAdder();
+    public final LongAdder linksFound = new LongAdder();       // Links on the pages parsed, before removing those seen
+    public final LongAdder linksSkipped = new LongAdder();     // Links not queued, their extension showing they are not pages
+    public final LongAdder droppedBodies = new LongAdder();    // Responses whose body was not read, not being a page
+    public final LongAdder truncatedBodies = new LongAdder();  // Responses whose body was cut short, being too long
+    public final LongAdder duplicatePages = new LongAdder();   // Pages with the same or nearly the same text as one crawled before
+    public final LongAdder unchangedPages = new LongAdder();   // Pages not parsed again since they haven't changed since the last crawl
+    public final LongAdder notModifiedPages = new LongAdder(); // Unchanged pages whose server answered 304 Not Modified
+
+    private final Frontier frontier;
+    private final PageFetcher fetcher;
+    private final WorkerPool workers;
+    private final AtomicInteger pagesCrawled;
+    private final long startTime = System.currentTimeMillis();
+    private HttpServer server;          // Serves the metrics, null unless started
+    private ObjectName name;            // The name of the bean, null unless registered
+
+    /**
+     * @param frontier		The frontier, for the number of urls queued and seen
+     * @param fetcher		The fetcher, for the number of fetches in flight
+     * @param workers		The workers, for the number of pages being fetched or processed
+     * @param pagesCrawled	The number of pages crawled
+     */
+    public CrawlMetrics(Frontier frontier, PageFetcher fetcher, WorkerPool workers, AtomicInteger pagesCrawled) {
+        this.frontier = frontier;
+        this.fetcher = fetcher;
+        this.workers = workers;
+        this.pagesCrawled = pagesCrawled;
+        stages.put("robots", robots);
+        stages.put("dequeue", dequeue);
+        stages.put("fetch-wait", fetchWait);
+        stages.put("first-byte", firstByte);
+        stages.put("download", download);
+        stages.put("parse", parse);
+        stages.put("dedup", dedup);
+        stages.put("match", match);
+        stages.put("score", score);
+        stages.put("enqueue", enqueue);
+    }
+
+    /**
+     * Records the timings of a fetch
+     * @param result	The response
+     * @param sent		When (ns) the crawler asked for the page to be fetched
+     */
+    public void fetched(FetchResult result, long sent) {
+        pagesFetched.increment();
+        bytesDownloaded.add(result.getBody() == null ? 0 : result.getBody().length);
+        if (result.isDropped()) {
+            droppedBodies.increment();
+        } else if (result.isTruncated()) {
+            truncatedBodies.increment();
+        }
+        fetchWait.record(System.nanoTime() - sent - result.getTotalTime());
+        firstByte.record(result.getTimeToFirstByte());
+        download.record(result.getDownloadTime());
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server
+     * @throws JMException if the bean could not be registered
+     */
+    public void registerMBean() throws JMException {
+        name = new ObjectName("WebCrawler:type=CrawlMetrics");
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+    }
+
+    /**
+     * Serves the metrics over HTTP on the loopback interface
+     * @param port	The port to listen on
+     * @throws IOException if the port could not be opened
+     */
+    public void startServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] report = getReport().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, report.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(report);
+                out.close();
+            }
+        });
+        server.setExecutor(Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "metrics");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }));
+        server.start();
+    }
+
+    /**
+     * Stops serving the metrics
+     */
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+        }
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException e) {
+                // Already gone
+            }
+        }
+    }
+
+    public int getPagesCrawled() {
+        return pagesCrawled.get();
+    }
+
+    public long getPagesFetched() {
+        return pagesFetched.sum();
+    }
+
+    public long getFetchErrors() {
+        return fetchErrors.sum();
+    }
+
+    public long getBytesDownloaded() {
+        return bytesDownloaded.sum();
+    }
+
+    public long getLinksFound() {
+        return linksFound.sum();
+    }
+
+    public long getLinksSkipped() {
+        return linksSkipped.sum();
+    }
+
+    public long getDroppedBodies() {
+        return droppedBodies.sum();
+    }
+
+    public long getTruncatedBodies() {
+        return truncatedBodies.sum();
+    }
+
+    public long getDuplicatePages() {
+        return duplicatePages.sum();
+    }
+
+    public long getUnchangedPages() {
+        return unchangedPages.sum();
+    }
+
+    public long getNotModifiedPages() {
+        return notModifiedPages.sum();
+    }
+
+    public int getQueuedUrls() {
+        return frontier.queuedCount();
+    }
+
+    public long getSpilledUrls() {
+        return frontier.spilledCount();
+    }
+
+    public long getSeenUrls() {
+        return frontier.seenCount();
+    }
+
+    public int getHosts() {
+        return frontier.hostCount();
+    }
+
+    public int getFetchesInFlight() {
+        return fetcher.inFlight();
+    }
+
+    public int getPagesInProgress() {
+        return workers.inFlight();
+    }
+
+    public double getPagesPerSecond() {
+        long elapsed = System.currentTimeMillis() - startTime;
+        return elapsed == 0 ? 0 : pagesCrawled.get() * 1000.0 / elapsed;
+    }
+
+    public String[] getStages() {
+        return stages.keySet().toArray(new String[stages.size()]);
+    }
+
+    public double getLatencyMillis(String stage, double percentile) {
+        LatencyHistogram histogram = stages.get(stage);
+        if (histogram == null) {
+            throw new IllegalArgumentException("No such stage: " + stage);
+        }
+        return histogram.getPercentile(percentile) / 1e6;
+    }
+
+    public String[] getDeepestHosts() {
+        List<String> hosts = new ArrayList<String>();
+        for (Map.Entry<String, Integer> host : frontier.deepestHosts(DEEPEST_HOSTS).entrySet()) {
+            hosts.add(host.getKey() + "=" + host.getValue());
+        }
+        return hosts.toArray(new String[hosts.size()]);
+    }
+
+    public String getReport() {
+        StringBuilder report = new StringBuilder();
+        line(report, "crawler_pages_crawled", getPagesCrawled());
+        line(report, "crawler_pages_fetched", getPagesFetched());
+        line(report, "crawler_fetch_errors", getFetchErrors());
+        line(report, "crawler_bytes_downloaded", getBytesDownloaded());
+        line(report, "crawler_links_found", getLinksFound());
+        line(report, "crawler_links_skipped", getLinksSkipped());
+        line(report, "crawler_dropped_bodies", getDroppedBodies());
+        line(report, "crawler_truncated_bodies", getTruncatedBodies());
+        line(report, "crawler_duplicate_pages", getDuplicatePages());
+        line(report, "crawler_unchanged_pages", getUnchangedPages());
+        line(report, "crawler_not_modified_pages", getNotModifiedPages());
+        line(report, "crawler_pages_per_second", getPagesPerSecond());
+        line(report, "crawler_frontier_queued", getQueuedUrls());
+        line(report, "crawler_frontier_spilled", getSpilledUrls());
+        line(report, "crawler_frontier_in_progress", frontier.inProgressCount());
+        line(report, "crawler_seen_urls", getSeenUrls());
+        line(report, "crawler_hosts", getHosts());
+        line(report, "crawler_fetches_in_flight", getFetchesInFlight());
+        line(report, "crawler_pages_in_progress", getPagesInProgress());
+        for (Map.Entry<String, LatencyHistogram> stage : stages.entrySet()) {
+            LatencyHistogram histogram = stage.getValue();
+            String labels = "{stage=\"" + stage.getKey() + "\"";
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                line(report, "crawler_stage_seconds" + labels + ",quantile=\"" + QUANTILES[i] + "\"}",
+                        histogram.getPercentile(PERCENTILES[i]) / 1e9);
+            }
+            line(report, "crawler_stage_seconds_max" + labels + "}", histogram.getMax() / 1e9);
+            line(report, "crawler_stage_seconds_mean" + labels + "}", histogram.getMean() / 1e9);
+            line(report, "crawler_stage_seconds_count" + labels + "}", histogram.getCount());
+        }
+        for (Map.Entry<String, Integer> host : frontier.deepestHosts(DEEPEST_HOSTS).entrySet()) {
+            line(report, "crawler_host_queue_depth{host=\"" + host.getKey() + "\"}", host.getValue());
+        }
+        return report.toString();
+    }
+
+    private static void line(StringBuilder report, String name, double value) {
+        report.append(name).append(' ');
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            report.append((long) value);
+        } else {
+            report.append(value);
+        }
+        report.append('\n');
+    }
+}
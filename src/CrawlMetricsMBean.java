@@ -0,0 +1,62 @@
+/**
+ * The crawl metrics as seen over JMX, see CrawlMetrics
+ */
+public interface CrawlMetricsMBean {
+    int getPagesCrawled();
+
+    long getPagesFetched();
+
+    long getFetchErrors();
+
+    long getBytesDownloaded();
+
+    long getLinksFound();
+
+    long getLinksSkipped();
+
+    long getDroppedBodies();
+
+    long getTruncatedBodies();
+
+    long getDuplicatePages();
+
+    long getUnchangedPages();
+
+    long getNotModifiedPages();
+
+    int getQueuedUrls();
+
+    long getSpilledUrls();
+
+    long getSeenUrls();
+
+    int getHosts();
+
+    int getFetchesInFlight();
+
+    int getPagesInProgress();
+
+    double getPagesPerSecond();
+
+    /**
+     * @return the names of the timed stages
+     */
+    String[] getStages();
+
+    /**
+     * @param stage			The name of the stage, see getStages()
+     * @param percentile	The percentile, 0 to 100
+     * @return the latency (ms) of the stage at the percentile
+     */
+    double getLatencyMillis(String stage, double percentile);
+
+    /**
+     * @return the hosts with the most urls waiting, as host=count
+     */
+    String[] getDeepestHosts();
+
+    /**
+     * @return all metrics, as served by the metrics endpoint
+     */
+    String getReport();
+}
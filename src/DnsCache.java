@@ -0,0 +1,191 @@
+/*
+ A cache of host name lookups in front of a HostResolver, so the crawler never waits for DNS when it fetches a page.
+ A web crawler calls the prefetch() method the first time it encounters a host, the host is then looked up
+ in the background by a few resolver threads while its robots.txt is on the way. Addresses are cached
+ for a fixed time, and a host that could not be resolved is remembered as such for a shorter time,
+ so its urls can be dropped without a fetch waiting for the same lookup to fail again.
+ The cache holds a bounded number of hosts, the least recently used are dropped first.
+
+ The fetcher (java.net.http.HttpClient) does its own lookups through the JVM's resolver and can't be handed
+ an address, so install() sets the JVM's own address cache to keep the answers as long as this cache does:
+ the lookups done by prefetch() then leave the addresses in the JVM's cache, where the fetcher finds them.
+*/
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.Security;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class DnsCache {
+    private static final int CACHE_SEGMENTS = 16;       // Locks of the cache, a power of two
+
+    private final HostResolver resolver;
+    private final long ttl;                 // Time (ms) addresses are cached
+    private final long negativeTtl;         // Time (ms) a failed lookup is cached
+    private final Map<String, Entry>[] cache;           // Segments of an LRU cache, host -> addresses
+    private final ConcurrentHashMap<String, CompletableFuture<InetAddress[]>> pending = new ConcurrentHashMap<String, CompletableFuture<InetAddress[]>>();
+    private final ExecutorService executor;             // Does the lookups, which block
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private boolean debug = false;
+
+    /**
+     * The result of a lookup, addresses is null if the host could not be resolved
+     */
+    private static class Entry {
+        final InetAddress[] addresses;
+        final long expires;
+
+        Entry(InetAddress[] addresses, long expires) {
+            this.addresses = addresses;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * @param resolver		Looks up the hosts
+     * @param ttl			Time (ms) addresses are cached
+     * @param negativeTtl	Time (ms) a failed lookup is cached
+     * @param maxHosts		The maximum number of hosts cached
+     * @param threads		The number of lookups done at the same time
+     * @param debug			Print diagnostic output
+     */
+    @SuppressWarnings("unchecked")
+    public DnsCache(HostResolver resolver, long ttl, long negativeTtl, int maxHosts, int threads, boolean debug) {
+        this.resolver = resolver;
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+        this.debug = debug;
+        final int segmentSize = Math.max(1, maxHosts / CACHE_SEGMENTS);
+        cache = (Map<String, Entry>[]) new Map<?, ?>[CACHE_SEGMENTS];
+        for (int i = 0; i < CACHE_SEGMENTS; i++) {
+            cache[i] = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > segmentSize;
+                }
+            };
+        }
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "dns");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Makes the JVM's own address cache keep lookups as long as this cache does.
+     * Must be called before the first lookup in the JVM, the JVM reads the settings only once.
+     */
+    public void install() {
+        Security.setProperty("networkaddress.cache.ttl", Long.toString(Math.max(1, ttl / 1000)));
+        Security.setProperty("networkaddress.cache.negative.ttl", Long.toString(Math.max(1, negativeTtl / 1000)));
+    }
+
+    private Map<String, Entry> segmentOf(String host) {
+        return cache[(host.hashCode() * 0x9E3779B9 >>> 28) & (CACHE_SEGMENTS - 1)];
+    }
+
+    private Entry cached(String host) {
+        Map<String, Entry> segment = segmentOf(host);
+        synchronized (segment) {
+            return segment.get(host);
+        }
+    }
+
+    /**
+     * Looks up the host in the background, unless its addresses are cached
+     * @param host	The host name
+     * @return a future completed with the addresses of the host, or with null if it could not be resolved
+     */
+    public CompletableFuture<InetAddress[]> prefetch(final String host) {
+        Entry entry = cached(host);
+        if (entry != null && entry.expires > System.currentTimeMillis()) {
+            return CompletableFuture.completedFuture(entry.addresses);
+        }
+        final CompletableFuture<InetAddress[]> result = new CompletableFuture<InetAddress[]>();
+        CompletableFuture<InetAddress[]> running = pending.putIfAbsent(host, result);
+        if (running != null) {
+            return running;         // Someone else is already looking it up
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                InetAddress[] addresses = lookup(host);
+                pending.remove(host, result);
+                result.complete(addresses);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Looks up the host now and caches the result
+     */
+    private InetAddress[] lookup(String host) {
+        InetAddress[] addresses;
+        long expires;
+        lookups.incrementAndGet();
+        try {
+            addresses = resolver.resolve(host);
+            expires = System.currentTimeMillis() + ttl;
+        } catch (UnknownHostException | RuntimeException e) {
+            if (debug) System.out.println("DnsCache-Could not resolve " + host + ": " + e.getMessage());
+            failures.incrementAndGet();
+            addresses = null;
+            expires = System.currentTimeMillis() + negativeTtl;
+        }
+        Map<String, Entry> segment = segmentOf(host);
+        synchronized (segment) {
+            segment.put(host, new Entry(addresses, expires));
+        }
+        return addresses;
+    }
+
+    /**
+     * @param host	The host name
+     * @return the addresses of the host, or null if it could not be resolved, looked up now unless cached
+     */
+    public InetAddress[] resolve(String host) {
+        return prefetch(host).join();
+    }
+
+    /**
+     * Never waits: a host is only known to be unresolvable once a lookup has failed.
+     * If the cached result has expired the host is looked up again in the background.
+     * @param host	The host name
+     * @return true if the last lookup of the host failed
+     */
+    public boolean isUnresolvable(String host) {
+        Entry entry = cached(host);
+        if (entry == null) {
+            return false;
+        }
+        if (entry.expires <= System.currentTimeMillis()) {
+            prefetch(host);         // Use the old result until the new one arrives
+        }
+        return entry.addresses == null;
+    }
+
+    public long lookupCount() {
+        return lookups.get();
+    }
+
+    public long failureCount() {
+        return failures.get();
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ A queue from the crawl to a background thread that must never hold up the crawl, e.g. the page indexer
+ (see PageIndex) or the WARC writer (see WarcWriter). It is bounded by the memory its items take rather than
+ by their count, since pages range from a few hundred bytes to megabytes. Adding never waits: an item that
+ would take the queue past its limit is refused, and the caller drops it (and counts it), so a background
+ thread that falls behind costs the items it can't keep up with and not the crawl's time.
+*/
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class DropQueue<T> {
+    private final BlockingQueue<T> queue = new LinkedBlockingQueue<T>();
+    private final AtomicLong queuedBytes = new AtomicLong();    // About the memory the items in the queue take
+    private final long maxBytes;
+    private final Sizer<T> sizer;
+
+    /**
+     * Tells about the memory an item takes while it is queued
+     */
+    public interface Sizer<T> {
+        /**
+         * @param item	An item, the same each time it is asked about
+         * @return about the memory (bytes) the item takes
+         */
+        long sizeOf(T item);
+    }
+
+    /**
+     * @param maxBytes	The memory (bytes) the items queued may take, more are refused
+     * @param sizer		Tells the memory each item takes
+     */
+    public DropQueue(long maxBytes, Sizer<T> sizer) {
+        this.maxBytes = maxBytes;
+        this.sizer = sizer;
+    }
+
+    /**
+     * Queues an item, never waits
+     * @param item	The item
+     * @return false if the item was refused, the items queued taking up too much memory
+     */
+    public boolean offer(T item) {
+        long bytes = sizer.sizeOf(item);
+        if (queuedBytes.addAndGet(bytes) > maxBytes) {
+            queuedBytes.addAndGet(-bytes);
+            return false;
+        }
+        queue.add(item);
+        return true;
+    }
+
+    /**
+     * Takes the next item, waiting for one up to the timeout
+     * @return the item, or null if none came in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        T item = queue.poll(timeout, unit);
+        if (item != null) {
+            queuedBytes.addAndGet(-sizer.sizeOf(item));
+        }
+        return item;
+    }
+
+    /**
+     * Takes the items queued, without waiting
+     * @param to	Where the items go, in queue order
+     * @param max	The most items to take
+     * @return the number of items taken
+     */
+    public int drainTo(Collection<? super T> to, int max) {
+        List<T> taken = new ArrayList<T>(Math.min(max, queue.size()));
+        int count = queue.drainTo(taken, max);
+        long bytes = 0;
+        for (T item : taken) {
+            bytes += sizer.sizeOf(item);
+        }
+        queuedBytes.addAndGet(-bytes);
+        to.addAll(taken);
+        return count;
+    }
+
+    /**
+     * Removes all the items queued
+     * @return the number of items removed
+     */
+    public int clear() {
+        List<T> taken = new ArrayList<T>();
+        return drainTo(taken, Integer.MAX_VALUE);
+    }
+
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ An index of the content fingerprints of the pages crawled, answering whether a page is an exact or near duplicate
+ of a page seen before. Exact fingerprints are kept in a FingerprintSet. Near duplicates are SimHashes within
+ maxDistance bits of each other: the 64 bits are split into maxDistance + 1 blocks, and two SimHashes that
+ differ in at most maxDistance bits must agree on at least one whole block. So each SimHash is filed under
+ each of its blocks, and a lookup only compares against the SimHashes sharing one of its blocks, a few
+ dozen even with millions of pages, instead of against all of them.
+ Each table has a bucket for every value of the low MAX_KEY_BITS bits of its block, holding the SimHashes in a
+ growing long array. Blocks are wider than that for small distances (32 bits for a distance of 1), so SimHashes
+ sharing only those bits share a bucket too, and are told apart by the comparison.
+ Checking and adding is one step under one lock, the comparisons are cheap next to parsing the page.
+*/
+
+import java.util.Arrays;
+
+public class DuplicateIndex {
+    public static final int NEW = 0;            // Not seen before
+    public static final int EXACT = 1;          // The same words as a page seen before
+    public static final int NEAR = 2;           // Nearly the same words as a page seen before
+    private static final int MAX_KEY_BITS = 16; // The most bits of a block a table is indexed by, 64K buckets
+
+    private final int maxDistance;              // The most bits near duplicates differ in
+    private final int minWords;                 // Shorter texts are only compared exactly
+    private final int[] shifts;                 // Where each block starts
+    private final int[] widths;                 // The number of bits of each block the tables are indexed by
+    private final long[][][] buckets;           // For each block, the SimHashes filed under each of its values
+    private final int[][] sizes;                // The number of SimHashes in each bucket
+    private final FingerprintSet exact = new FingerprintSet();
+    private long nearCount = 0;
+    private long exactCount = 0;
+
+    /**
+     * @param maxDistance	The most bits near duplicates differ in, 0 to 7, 0 for exact duplicates only
+     * @param minWords		Texts with fewer words are only compared exactly, short texts are too alike
+     */
+    public DuplicateIndex(int maxDistance, int minWords) {
+        if (maxDistance < 0 || maxDistance > 7) {
+            throw new IllegalArgumentException("The distance must be 0 to 7: " + maxDistance);
+        }
+        this.maxDistance = maxDistance;
+        this.minWords = minWords;
+        int blocks = maxDistance == 0 ? 0 : maxDistance + 1;
+        shifts = new int[blocks];
+        widths = new int[blocks];
+        buckets = new long[blocks][][];
+        sizes = new int[blocks][];
+        int shift = 0;
+        for (int b = 0; b < blocks; b++) {
+            int width = 64 / blocks + (b < 64 % blocks ? 1 : 0);
+            widths[b] = Math.min(width, MAX_KEY_BITS);
+            shifts[b] = shift;
+            shift += width;
+            buckets[b] = new long[1 << widths[b]][];
+            sizes[b] = new int[1 << widths[b]];
+        }
+    }
+
+    private int blockOf(long simHash, int b) {
+        return (int) (simHash >>> shifts[b] & ((1L << widths[b]) - 1));
+    }
+
+    /**
+     * Looks the page up and adds it, unless it is a duplicate
+     * @param fingerprint	The fingerprints of the text of the page
+     * @return NEW, EXACT or NEAR
+     */
+    public synchronized int check(ContentFingerprint fingerprint) {
+        if (fingerprint.getWords() == 0) {
+            return NEW;         // Pages without text, e.g. only images, are not alike
+        }
+        if (!exact.addFingerprint(fingerprint.getExact())) {
+            exactCount++;
+            return EXACT;
+        }
+        if (maxDistance == 0 || fingerprint.getWords() < minWords) {
+            return NEW;
+        }
+        long simHash = fingerprint.getSimHash();
+        for (int b = 0; b < buckets.length; b++) {
+            int block = blockOf(simHash, b);
+            long[] bucket = buckets[b][block];
+            for (int i = 0; i < sizes[b][block]; i++) {
+                if (Long.bitCount(bucket[i] ^ simHash) <= maxDistance) {
+                    nearCount++;
+                    return NEAR;
+                }
+            }
+        }
+        for (int b = 0; b < buckets.length; b++) {
+            int block = blockOf(simHash, b);
+            long[] bucket = buckets[b][block];
+            int size = sizes[b][block];
+            if (bucket == null) {
+                bucket = buckets[b][block] = new long[2];
+            } else if (size == bucket.length) {
+                bucket = buckets[b][block] = Arrays.copyOf(bucket, size * 2);
+            }
+            bucket[size] = simHash;
+            sizes[b][block] = size + 1;
+        }
+        return NEW;
+    }
+
+    public synchronized long exactCount() {
+        return exactCount;
+    }
+
+    public synchronized long nearCount() {
+        return nearCount;
+    }
+}
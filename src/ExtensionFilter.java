@@ -0,0 +1,66 @@
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Skips links to files that are obviously not pages, by the extension of the last word of their path,
+ * e.g. .pdf, .jpg or .zip, before they are queued. Such files are never parsed, so fetching them only
+ * wastes a request and the politeness delay of their host. What gets through is checked again when the
+ * response headers arrive, see PageFetcher.fetchPage(). Immutable, so it can be shared by all workers.
+ */
+public class ExtensionFilter {
+    static final String DEFAULT_EXTENSIONS = "pdf,ps,eps,doc,docx,xls,xlsx,ppt,pptx,odt,ods,odp,rtf,"
+            + "jpg,jpeg,png,gif,bmp,tif,tiff,svg,webp,ico,"
+            + "mp3,mp4,m4a,m4v,wav,ogg,flac,avi,mov,wmv,flv,mkv,webm,mpg,mpeg,"
+            + "zip,gz,tgz,bz2,xz,7z,rar,tar,jar,war,apk,exe,msi,dmg,iso,bin,deb,rpm,"
+            + "css,js,woff,woff2,ttf,otf,eot";
+
+    private final Set<String> skipped;      // The extensions to skip, lower case without the dot
+
+    /**
+     * @param extensions	The comma separated extensions to skip, without the dot, e.g. "pdf,jpg"
+     */
+    public ExtensionFilter(String extensions) {
+        skipped = new HashSet<String>();
+        for (String extension : extensions.split(",")) {
+            extension = extension.trim().toLowerCase();
+            if (extension.startsWith(".")) {
+                extension = extension.substring(1);
+            }
+            if (!extension.isEmpty()) {
+                skipped.add(extension);
+            }
+        }
+    }
+
+    /**
+     * @param url	An absolute URL
+     * @return true if the last word of the path of the URL has one of the extensions skipped
+     */
+    public boolean isSkipped(String url) {
+        if (skipped.isEmpty()) {
+            return false;
+        }
+        int start = url.indexOf("://");
+        start = start < 0 ? 0 : start + 3;
+        int end = url.length();
+        for (int i = start; i < end; i++) {
+            char c = url.charAt(i);
+            if (c == '?' || c == '#') {
+                end = i;
+                break;
+            }
+        }
+        while (end > start && url.charAt(end - 1) == '/') {
+            end--;
+        }
+        int hostEnd = url.indexOf('/', start);
+        if (hostEnd < 0 || hostEnd >= end) {
+            return false;   // No path, the dot is in the host name
+        }
+        int dot = url.lastIndexOf('.', end - 1);
+        if (dot <= url.lastIndexOf('/', end - 1)) {
+            return false;
+        }
+        return skipped.contains(url.substring(dot + 1, end).toLowerCase());
+    }
+}
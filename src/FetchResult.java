@@ -0,0 +1,175 @@
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The response to a fetch: status, headers and the raw bytes of the body,
+ * which are handed to the parser. Immutable.
+ */
+public class FetchResult {
+    private static final Set<String> HTML_TYPES = new HashSet<String>(Arrays.asList("text/html", "application/xhtml+xml"));
+
+    private final String url;                           // The URL requested
+    private final String finalUrl;                      // The URL of the response, after redirects
+    private final int status;
+    private final Map<String, List<String>> headers;    // Header names are lower case
+    private final byte[] body;
+    private final long fetchTime;                       // When (ms since the epoch) the request was started
+    private final long startNanos;                      // When the request was started
+    private final long headersNanos;                    // When the response headers arrived
+    private final long endNanos;                        // When the body was complete
+    private final boolean truncated;                    // true if the body was cut short, being too long
+    private final boolean dropped;                      // true if the body was not read, not being a page
+
+    public FetchResult(String url, String finalUrl, int status, Map<String, List<String>> headers, byte[] body,
+                       long fetchTime, long startNanos, long headersNanos, long endNanos, boolean truncated, boolean dropped) {
+        this.url = url;
+        this.finalUrl = finalUrl;
+        this.status = status;
+        this.headers = Collections.unmodifiableMap(headers);
+        this.body = body;
+        this.fetchTime = fetchTime;
+        this.startNanos = startNanos;
+        this.headersNanos = headersNanos;
+        this.endNanos = endNanos;
+        this.truncated = truncated;
+        this.dropped = dropped;
+    }
+
+    public String getURL() {
+        return url;
+    }
+
+    public String getFinalURL() {
+        return finalUrl;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public boolean isSuccess() {
+        return status >= 200 && status < 300;
+    }
+
+    public Map<String, List<String>> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * @param name	The header name, in lower case
+     * @return the first value of the header, or null if it is missing
+     */
+    public String getHeader(String name) {
+        List<String> values = headers.get(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    /**
+     * The body bytes are not copied, callers must not modify them
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * @return true if the body is only the first part of the body sent, the rest was longer than the fetcher allows
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * @return true if the body was not read, the headers showing it is not a page (see PageFetcher.fetchPage())
+     */
+    public boolean isDropped() {
+        return dropped;
+    }
+
+    /**
+     * @return the mime type of the body, without parameters, or null if unknown
+     */
+    public String getMimeType() {
+        return mimeTypeOf(getHeader("content-type"));
+    }
+
+    /**
+     * @param contentType	The value of a Content-Type header, or null
+     * @return the mime type, without parameters, or null if unknown
+     */
+    static String mimeTypeOf(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        int semicolon = contentType.indexOf(';');
+        return (semicolon < 0 ? contentType : contentType.substring(0, semicolon)).trim().toLowerCase();
+    }
+
+    /**
+     * @return the charset named in the Content-Type header, or null to let the parser detect it
+     */
+    public String getCharset() {
+        String contentType = getHeader("content-type");
+        if (contentType == null) {
+            return null;
+        }
+        int at = contentType.toLowerCase().indexOf("charset=");
+        if (at < 0) {
+            return null;
+        }
+        String charset = contentType.substring(at + 8);
+        int semicolon = charset.indexOf(';');
+        if (semicolon >= 0) {
+            charset = charset.substring(0, semicolon);
+        }
+        charset = charset.trim().replace("\"", "").replace("'", "");
+        return charset.isEmpty() ? null : charset;
+    }
+
+    /**
+     * @return true if the body is something we can parse for links, i.e. HTML or XHTML
+     */
+    public boolean isHtml() {
+        return isHtml(getMimeType());
+    }
+
+    /**
+     * @param mimeType	A mime type, without parameters, or null if unknown
+     * @return true if a body of the type is something we can parse for links: HTML, XHTML, or a body
+     * of unknown type, which the parser is left to make sense of
+     */
+    static boolean isHtml(String mimeType) {
+        return mimeType == null || mimeType.isEmpty() || HTML_TYPES.contains(mimeType);
+    }
+
+    /**
+     * @return when (ms since the epoch) the request was started
+     */
+    public long getFetchTime() {
+        return fetchTime;
+    }
+
+    /**
+     * @return the time (ns) from starting the request until the headers arrived
+     */
+    public long getTimeToFirstByte() {
+        return headersNanos - startNanos;
+    }
+
+    /**
+     * @return the time (ns) from the headers until the body was complete
+     */
+    public long getDownloadTime() {
+        return endNanos - headersNanos;
+    }
+
+    /**
+     * @return the time (ns) the whole fetch took
+     */
+    public long getTotalTime() {
+        return endNanos - startNanos;
+    }
+}
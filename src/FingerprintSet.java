@@ -0,0 +1,194 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+/**
+ * An exact seen set storing the 64-bit fingerprint of each URL, 8 bytes per slot instead of
+ * a String key and a boxed value per URL.
+ *
+ * The set is split into segments, each an open-addressing hash table with linear probing and its
+ * own lock, so threads adding links to different segments never wait for each other.
+ * The tables may be allocated off-heap, which keeps large seen sets out of the garbage collector's way.
+ */
+public class FingerprintSet implements SeenSet {
+    private static final int SEGMENT_BITS = 6;              // 64 segments
+    private static final double MAX_LOAD = 0.6;             // Grow a segment when it is this full
+    private static final long EMPTY = 0;                    // Marks a free slot, fingerprint 0 is stored as 1
+    static final int TYPE = 1;                              // Identifies the set in writeTo()
+
+    private final Segment[] segments;
+    private final boolean offHeap;
+
+    private class Segment {
+        LongBuffer table;
+        int mask;           // table capacity - 1, the capacity is a power of two
+        int size;
+
+        Segment(int capacity) {
+            table = allocate(capacity);
+            mask = capacity - 1;
+        }
+
+        synchronized boolean add(long fingerprint) {
+            int slot = slot(fingerprint, mask);
+            long existing;
+            while ((existing = table.get(slot)) != EMPTY) {
+                if (existing == fingerprint) {
+                    return false;
+                }
+                slot = (slot + 1) & mask;
+            }
+            table.put(slot, fingerprint);
+            if (++size > MAX_LOAD * (mask + 1)) {
+                grow();
+            }
+            return true;
+        }
+
+        synchronized boolean contains(long fingerprint) {
+            int slot = slot(fingerprint, mask);
+            long existing;
+            while ((existing = table.get(slot)) != EMPTY) {
+                if (existing == fingerprint) {
+                    return true;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return false;
+        }
+
+        /**
+         * @return the fingerprints in this segment
+         */
+        synchronized long[] toArray() {
+            long[] fingerprints = new long[size];
+            int n = 0;
+            for (int i = 0; i <= mask; i++) {
+                long fingerprint = table.get(i);
+                if (fingerprint != EMPTY) {
+                    fingerprints[n++] = fingerprint;
+                }
+            }
+            return fingerprints;
+        }
+
+        private void grow() {
+            LongBuffer old = table;
+            int oldCapacity = mask + 1;
+            table = allocate(oldCapacity * 2);
+            mask = oldCapacity * 2 - 1;
+            for (int i = 0; i < oldCapacity; i++) {
+                long fingerprint = old.get(i);
+                if (fingerprint != EMPTY) {
+                    int slot = slot(fingerprint, mask);
+                    while (table.get(slot) != EMPTY) {
+                        slot = (slot + 1) & mask;
+                    }
+                    table.put(slot, fingerprint);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param expectedSize	The number of urls expected, used to size the tables up front
+     * @param offHeap		Allocate the tables outside the Java heap
+     */
+    public FingerprintSet(long expectedSize, boolean offHeap) {
+        this.offHeap = offHeap;
+        segments = new Segment[1 << SEGMENT_BITS];
+        long perSegment = (long) (expectedSize / MAX_LOAD) >> SEGMENT_BITS;
+        int capacity = 16;
+        while (capacity < perSegment && capacity < (1 << 27)) {
+            capacity <<= 1;
+        }
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(capacity);
+        }
+    }
+
+    public FingerprintSet() {
+        this(1000, false);
+    }
+
+    private LongBuffer allocate(int capacity) {
+        if (offHeap) {
+            return ByteBuffer.allocateDirect(capacity * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+        }
+        return LongBuffer.allocate(capacity);
+    }
+
+    // The top bits pick the segment, the low bits the slot within it
+    private Segment segmentOf(long fingerprint) {
+        return segments[(int) (fingerprint >>> (64 - SEGMENT_BITS))];
+    }
+
+    private static int slot(long fingerprint, int mask) {
+        return (int) fingerprint & mask;
+    }
+
+    private static long normalize(long fingerprint) {
+        return fingerprint == EMPTY ? 1 : fingerprint;
+    }
+
+    public boolean add(String url) {
+        return addFingerprint(URLFingerprint.of(url));
+    }
+
+    public boolean contains(String url) {
+        return containsFingerprint(URLFingerprint.of(url));
+    }
+
+    /**
+     * @param fingerprint	The fingerprint of the url, see URLFingerprint
+     * @return true if the fingerprint had not been added before
+     */
+    public boolean addFingerprint(long fingerprint) {
+        fingerprint = normalize(fingerprint);
+        return segmentOf(fingerprint).add(fingerprint);
+    }
+
+    public boolean containsFingerprint(long fingerprint) {
+        fingerprint = normalize(fingerprint);
+        return segmentOf(fingerprint).contains(fingerprint);
+    }
+
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Writes the fingerprints one segment at a time, each segment is locked only while it is copied
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeByte(TYPE);
+        out.writeInt(segments.length);
+        for (Segment segment : segments) {
+            long[] fingerprints = segment.toArray();
+            out.writeInt(fingerprints.length);
+            for (long fingerprint : fingerprints) {
+                out.writeLong(fingerprint);
+            }
+        }
+    }
+
+    public void readFrom(DataInput in) throws IOException {
+        if (in.readByte() != TYPE) {
+            throw new IOException("Not an exact seen set, use the same --seen-set as the crawl that wrote it");
+        }
+        for (int n = in.readInt(); n > 0; n--) {
+            for (int count = in.readInt(); count > 0; count--) {
+                addFingerprint(in.readLong());
+            }
+        }
+    }
+}
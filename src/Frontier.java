@@ -1,64 +1,1024 @@
 /*
  The class encapsulates the frontier, the queue of unvisited pages for a web crawler.
- The queue is implemented as a priority queue, based on a score of each URL.
+ The frontier is partitioned into one queue per host, each a priority queue based on a score of each URL.
+ Hosts with queued URLs are kept in a ready queue ordered by the time at which they may be fetched
+ from again, so the crawler can keep many hosts busy while staying polite to each one of them.
+
+ A url found again while it is still queued in memory is scored again (see Scorer.rescore()) and keeps
+ the better of its two scores plus a part (INLINK_WEIGHT) of the other, so urls move up as evidence for them
+ comes in from more pages, while one strong link still counts for more than many weak ones.
+ Urls being fetched or spilled to disk keep their score.
+
+ The frontier is safe to use from many threads. Locking is striped by host: adding URLs only locks
+ the queues of the hosts involved, and the ready queue is locked only when a host has to be
+ (re)scheduled. Dispatchers block in take() until a host is ready instead of polling.
+
+ The number of URLs kept in memory is bounded. When the host queues hold more than maxInMemory
+ URLs, the worst scored half is spilled to sorted segment files on disk (see FrontierSpill), and
+ the best spilled URLs are merged back into the host queues as they drain.
+
+ A HostGate may hold back each new host until it is known how the host may be crawled, e.g.
+ until its robots.txt has been fetched. URLs of a held host are queued but the host is not
+ scheduled until the gate opens it with openHost(), which also sets the delay for the host.
+ The delay and the number of fetches from a host at the same time may be changed as the crawl goes on
+ (see setHostRate()), a host with as many fetches under way as it allows is not scheduled until one of
+ its urls is released (see release()). A host is fetched from once at a time unless setHostRate() allows more,
+ and its delay runs both from when a fetch is started and from when it is released, so a slow response
+ doesn't eat into the delay before the next request.
+
+ The queued urls and the seen set can be written to a checkpoint while the crawl goes on (see
+ writeTo()) and read back to resume the crawl (see readFrom()). URLs taken but not yet done when
+ the checkpoint is written are queued again, since the links on their pages may not have been added.
 */
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Frontier {
-    private PriorityQueue<URLScore> queueURLs;  		// A priority queue of URLs
-    private Hashtable<String, Integer> theURLs; 		// Each url string is also kept in a hash table for quick lookup
+    private final ConcurrentHashMap<String, HostQueue> hostQueues;  // The queue of URLs for each host encountered
+    private final PriorityQueue<HostQueue> readyQueue;	// Hosts with queued URLs, ordered by the next allowed fetch time
+    private final SeenSet theURLs; 					// The fingerprint of each url is also kept in a set for quick lookup
+    private final ReentrantLock readyLock = new ReentrantLock();	// Guards the ready queue
+    private final Condition changed = readyLock.newCondition();	// Signalled when a host is scheduled or the last page completes
     private boolean debug =false;
-    private final int initialCapacity=1000;     // Initial capacity of the queue
-    private int totalCount=0;                   // The number of url added to the frontier
+    private final long hostDelay;               // Minimum time (ms) between two requests to the same host
+    private final int maxInMemory;              // Spill to disk when the host queues hold more urls than this
+    private final FrontierSpill spill;          // The urls spilled to disk
+    private final ReentrantLock spillLock = new ReentrantLock();	// Guards the spill, only one spill or refill at a time
+    private List<URLScore> spilling;            // The urls being written to disk, out of memory but not yet in the spill, or null. Guarded by spillLock
+    private volatile boolean spillFailed = false;   // Stop spilling if the disk fails us, rather than losing urls
+    private final AtomicInteger totalCount = new AtomicInteger();   // The number of url added to the frontier
+    private final AtomicInteger nextIndex = new AtomicInteger();    // The insertion index of the next new url
+    private final AtomicInteger queuedCount = new AtomicInteger();  // The number of urls currently waiting, in memory or on disk
+    private final AtomicInteger inMemoryCount = new AtomicInteger();// The number of urls currently waiting in the host queues
+    private final AtomicLong spilledCount = new AtomicLong();       // The number of urls currently waiting on disk
+    private final AtomicInteger inProgress = new AtomicInteger();   // The number of urls taken but not yet marked done
+    private static final double INLINK_WEIGHT = 0.1;    // The part of the lesser score a url found again gains
+    private final AtomicLong raisedCount = new AtomicLong();        // The number of times a queued url's score was raised
+    private volatile HostGate gate;             // Told about each new host, which stays closed until it is opened, or null
+    private final Set<URLScore> inProgressUrls = Collections.newSetFromMap(new ConcurrentHashMap<URLScore, Boolean>());  // Taken but not yet done
+    private final Set<URLScore> fetchingUrls = Collections.newSetFromMap(new ConcurrentHashMap<URLScore, Boolean>());    // Taken but not yet released
+    private volatile Queue<URLScore> checkpointLog; // The urls queued or taken while a checkpoint is written, or null
+
+    /**
+     * Scores a URL on its way into the frontier, see addAll()
+     */
+    public interface Scorer {
+        /**
+         * @param url	A url not seen before
+         * @return its score
+         */
+        double score(String url);
+
+        /**
+         * @param url	A url seen before, found again
+         * @return its score as found this time, or 0 if this link says nothing new about it
+         */
+        double rescore(String url);
+    }
+
+    /**
+     * Decides when a new host may be crawled, see setHostGate()
+     */
+    public interface HostGate {
+        /**
+         * Called once for each new host, without any frontier lock held.
+         * The host is not fetched from until openHost() is called for it, possibly from another thread.
+         * @param host	The host key, see hostKey()
+         * @param url	The first url found on the host
+         */
+        void hostAdded(String host, URL url);
+    }
+
+    /**
+     * Urls of one host on their way into its queue, kept in arrays so no object is made for each
+     */
+    private static class Batch {
+    	String[] urls = new String[4];
+    	long[] ids = new long[4];		// The fingerprint of each url
+    	double[] scores = new double[4];
+    	int[] indexes = new int[4];
+    	int size = 0;
+
+    	void add(String url, double score, int index) {
+    		if (size == urls.length) {
+    			urls = Arrays.copyOf(urls, 2 * size);
+    			ids = Arrays.copyOf(ids, 2 * size);
+    			scores = Arrays.copyOf(scores, 2 * size);
+    			indexes = Arrays.copyOf(indexes, 2 * size);
+    		}
+    		urls[size] = url;
+    		ids[size] = URLFingerprint.of(url);
+    		scores[size] = score;
+    		indexes[size] = index;
+    		size++;
+    	}
+    }
+
+    public static final int DEFAULT_MAX_IN_MEMORY = 1000000;
+
+    public Frontier(long hostDelay, boolean debug) {
+        this(hostDelay, DEFAULT_MAX_IN_MEMORY, null, new FingerprintSet(), debug);
+    }
 
-    public Frontier(boolean debug) {
+    /**
+     * @param hostDelay		Minimum time (ms) between two requests to the same host
+     * @param maxInMemory	The maximum number of queued urls kept in memory
+     * @param spillDir		The directory to spill urls to, or null for a temporary directory
+     * @param seen			The set used to remember the urls seen
+     * @param debug			Print diagnostic output
+     */
+    public Frontier(long hostDelay, int maxInMemory, File spillDir, SeenSet seen, boolean debug) {
+        this.hostDelay = hostDelay;
+        this.maxInMemory = Math.max(2, maxInMemory);
         this.debug = debug;
-        queueURLs = new PriorityQueue<URLScore>(initialCapacity);
-        theURLs = new Hashtable<String, Integer>(initialCapacity);
+        spill = new FrontierSpill(spillDir, debug);
+        hostQueues = new ConcurrentHashMap<String, HostQueue>();
+        readyQueue = new PriorityQueue<HostQueue>();
+        theURLs = seen;
+    }
+
+    /**
+     * Holds back new hosts until the gate opens them, must be set before any url is added
+     * @param gate	The gate to tell about each new host
+     */
+    public void setHostGate(HostGate gate) {
+        this.gate = gate;
     }
-    
+
+    /**
+     * Lets the crawler fetch from a host held back by the HostGate.
+     * May also be called again for an open host to change its delay.
+     * @param host	The host key, see hostKey()
+     * @param delay	Minimum time (ms) between two requests to the host, the frontier's own delay if less
+     */
+    public void openHost(String host, long delay) {
+    	HostQueue hostQueue = hostQueues.get(host);
+    	if (hostQueue == null) {
+    		return;
+    	}
+    	boolean needsSchedule = false;
+    	synchronized (hostQueue) {
+    		hostQueue.setDelay(Math.max(hostDelay, delay));
+    		hostQueue.setOpen(true);
+    		needsSchedule = claimSchedule(hostQueue);
+    	}
+    	if (needsSchedule) {
+    		schedule(Collections.singletonList(hostQueue));
+    	}
+    }
+
     /**
-     * Adds a new URLScore to the frontier if the url has not been visited before
+     * Changes how hard an open host is crawled, e.g. as the host speeds up or slows down.
+     * @param host			The host key, see hostKey()
+     * @param delay			Minimum time (ms) between two requests to the host, the frontier's own delay if less
+     * @param maxInFlight	The most urls of the host taken and not yet released at the same time
+     * @param notBefore		The earliest time (ms) at which the host may be fetched from again, 0 for no change
+     */
+    public void setHostRate(String host, long delay, int maxInFlight, long notBefore) {
+    	HostQueue hostQueue = hostQueues.get(host);
+    	if (hostQueue == null) {
+    		return;
+    	}
+    	boolean needsSchedule;
+    	synchronized (hostQueue) {
+    		hostQueue.setDelay(Math.max(hostDelay, delay));
+    		hostQueue.setMaxInFlight(maxInFlight);
+    		needsSchedule = claimSchedule(hostQueue);
+    	}
+    	if (notBefore <= 0 && !needsSchedule) {
+    		return;
+    	}
+    	readyLock.lock();
+    	try {
+    		if (notBefore > hostQueue.getNextFetchTime()) {
+    			// The ready queue is ordered by the fetch time, take the host out while it changes
+    			boolean queued = readyQueue.remove(hostQueue);
+    			hostQueue.setNextFetchTime(notBefore);
+    			if (queued) {
+    				readyQueue.add(hostQueue);
+    			}
+    		}
+    		if (needsSchedule) {
+    			readyQueue.add(hostQueue);
+    			changed.signalAll();
+    		}
+    	} finally {
+    		readyLock.unlock();
+    	}
+    }
+
+    /**
+     * Marks the host of a url as scheduled if it has urls waiting and may be fetched from.
+     * Must be called with the host queue's monitor held.
+     * @return true if the caller must add the host to the ready queue
+     */
+    private boolean claimSchedule(HostQueue hostQueue) {
+    	if (hostQueue.isScheduled() || !hostQueue.isOpen() || hostQueue.isEmpty() || hostQueue.isBusy()) {
+    		return false;
+    	}
+    	hostQueue.setScheduled(true);
+    	return true;
+    }
+
+    /**
+     * Adds a new url to the frontier if the url has not been visited before
      * @param url		String
      * @param score		Priority score of the url
      */
     public void add(String url, double score) {
-    		// If the url has been visited before, we don't need to do anything else
-        	if (!theURLs.containsKey(url)) {
-        		try {
-        			URLScore theUrl = new URLScore(url, score);
-        			queueURLs.add(theUrl);
-            		theURLs.put(url, 0);		// Log this as a seen URL
-            		totalCount++;
-            	} catch (MalformedURLException e) {
-            		if (debug) {
-            			System.out.println(e.getMessage());
-            		}
-        		}
-        	}
+    	// If the url has been visited before, we don't need to do anything else
+    	if (url == null || !theURLs.add(url)) {
+    		return;
+    	}
+    	HostQueue hostQueue = hostQueueOf(url);
+    	if (hostQueue != null) {
+    		totalCount.incrementAndGet();
+    		Batch batch = new Batch();
+    		batch.add(url, score, nextIndex.getAndIncrement());
+    		queuedCount.incrementAndGet();
+    		if (enqueue(hostQueue, batch)) {
+    			schedule(Collections.singletonList(hostQueue));
+    		}
+    		spillIfFull();
+    	}
+    }
+
+    /**
+     * Scores and adds all the given urls that have not been seen before in one operation,
+     * and raises the score of those seen before that are still queued.
+     * The urls are grouped by host so each host queue, and the ready queue, is locked only once.
+     * @param urls		The canonical urls, each only once, null entries are ignored
+     * @param scorer	Computes the priority score of each new url, and again of each url found again
+     */
+    public void addAll(Collection<String> urls, Scorer scorer) {
+    	Map<HostQueue, Batch> byHost = new HashMap<HostQueue, Batch>();
+    	Map<HostQueue, Batch> raised = null;		// The urls found again, with their score as found this time
+    	for (String url : urls) {
+    		if (url == null) {
+    			continue;
+    		}
+    		if (!theURLs.add(url)) {
+    			double score = scorer.rescore(url);
+    			if (score > 0) {
+    				raised = groupSeen(raised, url, score);
+    			}
+    			continue;
+    		}
+    		HostQueue hostQueue = hostQueueOf(url);
+    		if (hostQueue != null) {
+    			totalCount.incrementAndGet();
+    			batchOf(byHost, hostQueue).add(url, scorer.score(url), nextIndex.getAndIncrement());
+    		}
+    	}
+
+    	if (raised != null) {
+    		for (Map.Entry<HostQueue, Batch> entry : raised.entrySet()) {
+    			HostQueue hostQueue = entry.getKey();
+    			Batch found = entry.getValue();
+    			synchronized (hostQueue) {
+    				for (int i = 0; i < found.size; i++) {
+    					if (hostQueue.raise(found.ids[i], found.scores[i], INLINK_WEIGHT)) {
+    						raisedCount.incrementAndGet();
+    					}
+    				}
+    			}
+    		}
+    	}
+
+    	List<HostQueue> toSchedule = new ArrayList<HostQueue>();
+    	for (Map.Entry<HostQueue, Batch> entry : byHost.entrySet()) {
+    		queuedCount.addAndGet(entry.getValue().size);
+    		if (enqueue(entry.getKey(), entry.getValue())) {
+    			toSchedule.add(entry.getKey());
+    		}
+    	}
+    	if (!toSchedule.isEmpty()) {
+    		schedule(toSchedule);
+    	}
+    	spillIfFull();
+    }
+
+    private static Batch batchOf(Map<HostQueue, Batch> byHost, HostQueue hostQueue) {
+    	Batch batch = byHost.get(hostQueue);
+    	if (batch == null) {
+    		batch = new Batch();
+    		byHost.put(hostQueue, batch);
+    	}
+    	return batch;
+    }
+
+    /**
+     * Adds a url found again to those of its host, unless the host has nothing queued
+     * @param raised	The urls found again so far by host, or null
+     * @return the urls found again by host
+     */
+    private Map<HostQueue, Batch> groupSeen(Map<HostQueue, Batch> raised, String url, double score) {
+    	String host = hostKey(url);
+    	HostQueue hostQueue = host == null ? null : hostQueues.get(host);
+    	if (hostQueue == null) {
+    		return raised;
+    	}
+    	if (raised == null) {
+    		raised = new HashMap<HostQueue, Batch>();
+    	}
+    	batchOf(raised, hostQueue).add(url, score, 0);
+    	return raised;
+    }
+
+    /**
+     * Finds the queue of the host of a url, creating it for a new host
+     * @return the host queue, or null if the url is malformed
+     */
+    private HostQueue hostQueueOf(String url) {
+    	String host = hostKey(url);
+    	if (host == null || url.length() > URLArena.MAX_LENGTH / 3) {	// At most 3 bytes per char in UTF-8
+    		if (debug) System.out.println("Frontier-Malformed url: " + url);
+    		return null;
+    	}
+    	HostQueue hostQueue = hostQueues.get(host);
+    	if (hostQueue == null) {
+    		URL first;
+    		try {
+    			first = new URL(url);	// Only for a new host, for the gate
+    		} catch (MalformedURLException e) {
+    			if (debug) System.out.println(e.getMessage());
+    			return null;
+    		}
+    		HostGate hostGate = gate;
+    		HostQueue created = new HostQueue(host);
+    		created.setOpen(hostGate == null);
+    		hostQueue = hostQueues.putIfAbsent(host, created);
+    		if (hostQueue == null) {
+    			hostQueue = created;
+    			if (hostGate != null) {
+    				hostGate.hostAdded(host, first);
+    			}
+    		}
+    	}
+    	return hostQueue;
+    }
+
+    /**
+     * Adds the urls to the queue of their host
+     * @return true if the host is open, was not scheduled and must be added to the ready queue
+     */
+    private boolean enqueue(HostQueue hostQueue, Batch urls) {
+    	Queue<URLScore> log = checkpointLog;
+    	if (log != null) {
+    		for (int i = 0; i < urls.size; i++) {
+    			log.add(new URLScore(urls.urls[i], urls.scores[i], urls.indexes[i]));
+    		}
+    	}
+    	synchronized (hostQueue) {
+    		for (int i = 0; i < urls.size; i++) {
+    			hostQueue.add(urls.urls[i], urls.ids[i], urls.scores[i], urls.indexes[i]);
+    		}
+    		inMemoryCount.addAndGet(urls.size);
+    		return claimSchedule(hostQueue);
+    	}
+    }
+
+    /**
+     * Queues urls that were queued before, e.g. spilled or checkpointed, each with its own insertion index
+     * @param urls		The urls
+     * @param ready		true if called with the ready lock held
+     * @return the number of urls queued, the malformed ones are dropped
+     */
+    private int requeueAll(Collection<URLScore> urls, boolean ready) {
+    	Map<HostQueue, Batch> byHost = new HashMap<HostQueue, Batch>();
+    	int queued = 0;
+    	for (URLScore url : urls) {
+    		HostQueue hostQueue = hostQueueOf(url.getURLString());
+    		if (hostQueue != null) {
+    			batchOf(byHost, hostQueue).add(url.getURLString(), url.getScore(), url.getIndex());
+    			queued++;
+    		}
+    	}
+    	List<HostQueue> toSchedule = new ArrayList<HostQueue>();
+    	for (Map.Entry<HostQueue, Batch> entry : byHost.entrySet()) {
+    		if (enqueue(entry.getKey(), entry.getValue())) {
+    			toSchedule.add(entry.getKey());
+    		}
+    	}
+    	if (ready) {
+    		readyQueue.addAll(toSchedule);
+    	} else if (!toSchedule.isEmpty()) {
+    		schedule(toSchedule);
+    	}
+    	return queued;
     }
 
     /**
-     * @return the highest priority URL or null if the queue is empty
+     * Puts the hosts in the ready queue and wakes up any waiting dispatchers
+     */
+    private void schedule(List<HostQueue> hosts) {
+    	readyLock.lock();
+    	try {
+    		readyQueue.addAll(hosts);
+    		changed.signalAll();
+    	} finally {
+    		readyLock.unlock();
+    	}
+    }
+
+    /**
+     * Removes the highest priority URL of the host that has waited the longest, provided
+     * that enough time has passed since the last request to that host.
+     * A URL returned by this method must be handed back to done() once it has been processed.
+     * @return the next URL to crawl or null if no host may be fetched from right now
      */
     public URLScore removeNext() {
-    	return queueURLs.poll();
-    	
+    	readyLock.lock();
+    	try {
+    		return pollReady(System.currentTimeMillis());
+    	} finally {
+    		readyLock.unlock();
+    	}
     }
 
     /**
-     * @return true if the queue is empty, false otherwise 
+     * Removes the next URL to crawl, waiting until a host is ready if necessary.
+     * A URL returned by this method must be handed back to done() once it has been processed.
+     * @param timeout	The maximum time to wait
+     * @param unit		The unit of the timeout
+     * @return the next URL to crawl, or null if the timeout elapsed or the crawl is exhausted (see isExhausted())
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public URLScore take(long timeout, TimeUnit unit) throws InterruptedException {
+    	long deadline = System.nanoTime() + unit.toNanos(timeout);
+    	readyLock.lockInterruptibly();
+    	try {
+    		while (true) {
+    			long now = System.currentTimeMillis();
+    			URLScore next = pollReady(now);
+    			if (next != null) {
+    				return next;
+    			}
+    			if (isExhausted()) {
+    				return null;
+    			}
+    			long remaining = deadline - System.nanoTime();
+    			if (remaining <= 0) {
+    				return null;
+    			}
+    			HostQueue head = readyQueue.peek();
+    			if (head != null) {
+    				// Sleep until the head host is ready, unless someone schedules a host first
+    				remaining = Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(head.getNextFetchTime() - now));
+    			}
+    			changed.awaitNanos(remaining);
+    		}
+    	} finally {
+    		readyLock.unlock();
+    	}
+    }
+
+    /**
+     * Must be called with the ready lock held
+     */
+    private URLScore pollReady(long now) {
+    	if (spilledCount.get() > 0 && inMemoryCount.get() < maxInMemory / 4) {
+    		refill();
+    	}
+    	while (true) {
+    		HostQueue hostQueue = readyQueue.peek();
+    		if (hostQueue == null || hostQueue.getNextFetchTime() > now) {
+    			return null;
+    		}
+    		readyQueue.poll();
+    		URLScore next;
+    		boolean reschedule;
+    		synchronized (hostQueue) {
+    			next = hostQueue.removeNext();
+    			if (next != null) {
+    				hostQueue.fetchStarted();
+    			}
+    			reschedule = !hostQueue.isEmpty() && !hostQueue.isBusy();
+    			hostQueue.setScheduled(reschedule);
+    		}
+    		if (next == null) {
+    			continue;
+    		}
+    		queuedCount.decrementAndGet();
+    		inMemoryCount.decrementAndGet();
+    		inProgress.incrementAndGet();
+    		inProgressUrls.add(next);
+    		fetchingUrls.add(next);
+    		Queue<URLScore> log = checkpointLog;
+    		if (log != null) {
+    			log.add(next);
+    		}
+    		hostQueue.setNextFetchTime(now + Math.max(hostDelay, hostQueue.getDelay()));	// Be polite, don't revisit the host too soon
+    		if (reschedule) {
+    			readyQueue.add(hostQueue);
+    		}
+    		return next;
+    	}
+    }
+
+    /**
+     * Spills the worst scored half of the queued urls to disk if the host queues hold more than maxInMemory urls
+     */
+    private void spillIfFull() {
+    	if (inMemoryCount.get() <= maxInMemory || spillFailed || !spillLock.tryLock()) {
+    		return;		// Not full, or another thread is already spilling
+    	}
+    	List<URLScore> removed = new ArrayList<URLScore>();
+    	try {
+    		if (inMemoryCount.get() <= maxInMemory || spilling != null) {
+    			return;
+    		}
+    		// Find the last url kept, the worst of the best maxInMemory/2: first its score, then among the urls
+    		// with that score its insertion index. Only the scores and indexes are copied, not the urls
+    		double[] scores = new double[inMemoryCount.get()];
+    		int count = 0;
+    		for (HostQueue hostQueue : hostQueues.values()) {
+    			synchronized (hostQueue) {
+    				if (count + hostQueue.size() > scores.length) {
+    					scores = Arrays.copyOf(scores, Math.max(2 * scores.length, count + hostQueue.size()));
+    				}
+    				count = hostQueue.copyScores(scores, count);
+    			}
+    		}
+    		int keep = maxInMemory / 2;
+    		if (count <= keep) {
+    			return;
+    		}
+    		Arrays.sort(scores, 0, count);
+    		double lastScore = scores[count - keep];
+    		int better = 0;			// The urls kept with a better score than the last
+    		while (better < keep && scores[count - 1 - better] > lastScore) {
+    			better++;
+    		}
+    		scores = null;
+    		int[] indexes = new int[keep];
+    		count = 0;
+    		for (HostQueue hostQueue : hostQueues.values()) {
+    			synchronized (hostQueue) {
+    				if (count + hostQueue.size() > indexes.length) {
+    					indexes = Arrays.copyOf(indexes, Math.max(2 * indexes.length, count + hostQueue.size()));
+    				}
+    				count = hostQueue.copyIndexes(lastScore, indexes, count);
+    			}
+    		}
+    		if (count == 0) {
+    			return;		// All taken meanwhile
+    		}
+    		Arrays.sort(indexes, 0, count);
+    		int lastIndex = indexes[Math.min(count, keep - better) - 1];
+    		indexes = null;
+
+    		// Some of the cold urls may have been taken meanwhile and others queued, only spill those still
+    		// queued that come after the last url kept
+    		for (HostQueue hostQueue : hostQueues.values()) {
+    			synchronized (hostQueue) {
+    				hostQueue.removeAfter(lastScore, lastIndex, removed);
+    			}
+    		}
+    		inMemoryCount.addAndGet(-removed.size());
+    		spilling = removed;		// Written by a checkpoint until they are in the spill
+    	} finally {
+    		spillLock.unlock();
+    	}
+    	if (removed.isEmpty()) {
+    		clearSpilling(null);
+    		return;
+    	}
+
+    	// Sort and write the urls without holding up refills and checkpoints, they only wait to add the segments
+    	List<FrontierSpill.Segment> written = null;
+    	try {
+    		written = spill.write(removed);
+    	} catch (IOException e) {
+    		System.out.println("Frontier-Could not spill to disk, keeping all urls in memory: " + e.getMessage());
+    		spillFailed = true;
+    		requeueAll(removed, false);		// Put the urls back
+    	}
+    	clearSpilling(written);
+    }
+
+    /**
+     * Ends a spill: adds the segments written to the spill, if it was written
+     * @param written	The segments written, or null
+     */
+    private void clearSpilling(List<FrontierSpill.Segment> written) {
+    	spillLock.lock();
+    	try {
+    		if (written != null) {
+    			spill.add(written);
+    			spilledCount.set(spill.size());
+    		}
+    		spilling = null;
+    	} finally {
+    		spillLock.unlock();
+    	}
+    }
+
+    /**
+     * Merges the best spilled urls back into the host queues, filling them up to maxInMemory/2.
+     * Does nothing if a spill or a checkpoint is under way, so the caller never waits for the disk.
+     * Must be called with the ready lock held.
+     */
+    private void refill() {
+    	List<URLScore> urls;
+    	if (!spillLock.tryLock()) {
+    		return;
+    	}
+    	try {
+    		int room = maxInMemory / 2 - inMemoryCount.get();
+    		if (room <= 0) {
+    			return;
+    		}
+    		urls = spill.refill(room);
+    		spilledCount.set(spill.size());
+    	} finally {
+    		spillLock.unlock();
+    	}
+
+    	queuedCount.addAndGet(requeueAll(urls, true) - urls.size());	// Malformed urls are dropped
+    	if (debug) System.out.println("Frontier-Merged " + urls.size() + " urls back from disk");
+    }
+
+    /**
+     * Queues a URL returned by take() or removeNext() again, e.g. because its host asked us to come back later.
+     * The URL must still be handed to done(), after it has been released (see release()).
+     * @param url	The URL to fetch again
+     */
+    public void requeue(URLScore url) {
+    	queuedCount.addAndGet(requeueAll(Collections.singletonList(url), false));
+    }
+
+    /**
+     * Tells the frontier that the fetch of a URL returned by take() or removeNext() has finished,
+     * so another URL of its host may be fetched. Called by done() if not called before.
+     * @param url	The URL that was fetched
+     */
+    public void release(URLScore url) {
+    	if (!fetchingUrls.remove(url)) {
+    		return;		// Released before
+    	}
+    	HostQueue hostQueue = hostQueues.get(hostKey(url.getURLString()));
+    	boolean needsSchedule;
+    	boolean queued;
+    	synchronized (hostQueue) {
+    		hostQueue.fetchFinished();
+    		queued = hostQueue.isScheduled();	// In the ready queue, or about to be added to it
+    		needsSchedule = claimSchedule(hostQueue);
+    	}
+    	long notBefore = System.currentTimeMillis() + Math.max(hostDelay, hostQueue.getDelay());
+    	readyLock.lock();
+    	try {
+    		// Be polite: the delay also runs from the end of the fetch, not only from its start
+    		if (notBefore > hostQueue.getNextFetchTime()) {
+    			// The ready queue is ordered by the fetch time, take the host out while it changes
+    			queued = queued && readyQueue.remove(hostQueue);
+    			hostQueue.setNextFetchTime(notBefore);
+    			if (queued) {
+    				readyQueue.add(hostQueue);
+    			}
+    		}
+    		if (needsSchedule) {
+    			readyQueue.add(hostQueue);
+    			changed.signalAll();
+    		}
+    	} finally {
+    		readyLock.unlock();
+    	}
+    }
+
+    /**
+     * Marks a URL returned by take() or removeNext() as processed, i.e. all the links
+     * found on its page have been added to the frontier.
+     * @param url	The URL that was processed
+     */
+    public void done(URLScore url) {
+    	release(url);
+    	inProgressUrls.remove(url);
+    	if (inProgress.decrementAndGet() == 0 && queuedCount.get() == 0) {
+    		readyLock.lock();
+    		try {
+    			changed.signalAll();	// Wake up dispatchers waiting for more URLs, the crawl is exhausted
+    		} finally {
+    			readyLock.unlock();
+    		}
+    	}
+    }
+
+    /**
+     * Writes the queued urls, in memory and on disk, and the seen set in a form read back by readFrom().
+     * The crawl goes on meanwhile: each host queue is locked only while it is copied, and the urls queued
+     * or taken while the checkpoint is written are logged and written at the end, so every url in the
+     * seen set written is either done or queued again by readFrom().
+     * @param out	The stream to write to
+     * @throws IOException if the checkpoint could not be written
+     */
+    public void writeTo(final DataOutput out) throws IOException {
+    	Queue<URLScore> log = new ConcurrentLinkedQueue<URLScore>();
+    	checkpointLog = log;
+    	try {
+    		for (URLScore url : inProgressUrls) {
+    			writeURL(out, url.getURLString(), url.getScore(), url.getIndex());
+    		}
+    		// No urls move between memory and disk while the queues are written
+    		spillLock.lock();
+    		try {
+    			List<URLScore> urls = new ArrayList<URLScore>();
+    			for (HostQueue hostQueue : hostQueues.values()) {
+    				urls.clear();
+    				synchronized (hostQueue) {
+    					hostQueue.copyTo(urls);
+    				}
+    				for (URLScore url : urls) {
+    					writeURL(out, url.getURLString(), url.getScore(), url.getIndex());
+    				}
+    			}
+    			spill.forEach(new FrontierSpill.RecordVisitor() {
+    				@Override
+    				public void record(String url, double score, int index) throws IOException {
+    					writeURL(out, url, score, index);
+    				}
+    			});
+    			if (spilling != null) {
+    				for (URLScore url : spilling) {
+    					writeURL(out, url.getURLString(), url.getScore(), url.getIndex());
+    				}
+    			}
+    		} finally {
+    			spillLock.unlock();
+    		}
+    		out.writeByte(END_OF_URLS);
+    		theURLs.writeTo(out);
+    	} finally {
+    		checkpointLog = null;
+    	}
+    	for (URLScore url : log) {
+    		writeURL(out, url.getURLString(), url.getScore(), url.getIndex());
+    	}
+    	out.writeByte(END_OF_URLS);
+    	out.writeInt(totalCount.get());
+    }
+
+    private static final int URL_RECORD = 1;
+    private static final int END_OF_URLS = 0;
+
+    private static void writeURL(DataOutput out, String url, double score, int index) throws IOException {
+    	byte[] utf8 = url.getBytes(StandardCharsets.UTF_8);
+    	out.writeByte(URL_RECORD);
+    	out.writeDouble(score);
+    	out.writeInt(index);
+    	out.writeInt(utf8.length);
+    	out.write(utf8);
+    }
+
+    /**
+     * Restores the queued urls and the seen set written by writeTo(), before the crawl starts
+     * @param in	The stream to read from
+     * @return the number of urls queued
+     * @throws IOException if the checkpoint could not be read
+     */
+    public int readFrom(DataInput in) throws IOException {
+    	FingerprintSet restored = new FingerprintSet();	// The same url may have been written twice
+    	int queued = readURLs(in, restored);
+    	theURLs.readFrom(in);
+    	queued += readURLs(in, restored);
+    	totalCount.set(in.readInt());
+    	return queued;
+    }
+
+    private int readURLs(DataInput in, FingerprintSet restored) throws IOException {
+    	int queued = 0;
+    	while (in.readByte() == URL_RECORD) {
+    		double score = in.readDouble();
+    		int index = in.readInt();
+    		byte[] utf8 = new byte[in.readInt()];
+    		in.readFully(utf8);
+    		String url = new String(utf8, StandardCharsets.UTF_8);
+    		if (!restored.add(url)) {
+    			continue;
+    		}
+    		theURLs.add(url);
+    		int added = requeueAll(Collections.singletonList(new URLScore(url, score, index)), false);
+    		queuedCount.addAndGet(added);
+    		nextIndex.set(Math.max(nextIndex.get(), index + 1));
+    		spillIfFull();
+    		queued += added;
+    	}
+    	return queued;
+    }
+
+    /**
+     * @return the insertion index the next new url will get
+     */
+    public int getNextIndex() {
+    	return nextIndex.get();
+    }
+
+    /**
+     * Continues the insertion order of a checkpointed crawl
+     * @param index	The insertion index the next new url will get
+     */
+    public void setNextIndex(int index) {
+    	nextIndex.set(index);
+    }
+
+    /**
+     * @return the earliest time (ms) at which removeNext() may return a URL,
+     * or Long.MAX_VALUE if the frontier is empty
+     */
+    public long nextReadyTime() {
+    	readyLock.lock();
+    	try {
+    		HostQueue hostQueue = readyQueue.peek();
+    		return hostQueue == null ? Long.MAX_VALUE : hostQueue.getNextFetchTime();
+    	} finally {
+    		readyLock.unlock();
+    	}
+    }
+
+    /**
+     * @return true if the queue is empty, false otherwise. The queue may be temporarily
+     * empty while pages being processed can still add more URLs, see isExhausted().
      */
     public boolean isEmpty() {
-    	return queueURLs.isEmpty();
+    	return queuedCount.get() == 0;
     }
 
     /**
-     * @return the total number of distinctive URLs found (including those visited) 
+     * @return true if the queue is empty and no URL is being processed, i.e. the
+     * frontier will never be refilled
+     */
+    public boolean isExhausted() {
+    	return inProgress.get() == 0 && queuedCount.get() == 0;
+    }
+
+    /**
+     * @return the total number of distinctive URLs found (including those visited)
      */
     public int totalCount() {
-    	return totalCount;
+    	return totalCount.get();
+    }
+
+    /**
+     * @return the number of urls currently waiting, in memory or on disk
+     */
+    public int queuedCount() {
+    	return queuedCount.get();
+    }
+
+    /**
+     * @return the number of urls taken but not yet marked done
+     */
+    public int inProgressCount() {
+    	return inProgress.get();
+    }
+
+    /**
+     * @return the number of urls in the seen set
+     */
+    public long seenCount() {
+    	return theURLs.size();
+    }
+
+    /**
+     * The hosts with the most urls waiting in memory, for monitoring
+     * @param limit	The maximum number of hosts
+     * @return the number of urls waiting for each host, most first
+     */
+    public Map<String, Integer> deepestHosts(int limit) {
+    	PriorityQueue<Map.Entry<String, Integer>> deepest = new PriorityQueue<Map.Entry<String, Integer>>(limit + 1,
+    			new Comparator<Map.Entry<String, Integer>>() {
+    		@Override
+    		public int compare(Map.Entry<String, Integer> a, Map.Entry<String, Integer> b) {
+    			return a.getValue().compareTo(b.getValue());
+    		}
+    	});
+    	for (HostQueue hostQueue : hostQueues.values()) {
+    		int size;
+    		synchronized (hostQueue) {
+    			size = hostQueue.size();
+    		}
+    		if (size > 0) {
+    			deepest.add(new AbstractMap.SimpleEntry<String, Integer>(hostQueue.getHost(), size));
+    			if (deepest.size() > limit) {
+    				deepest.poll();
+    			}
+    		}
+    	}
+    	LinkedList<Map.Entry<String, Integer>> sorted = new LinkedList<Map.Entry<String, Integer>>();
+    	while (!deepest.isEmpty()) {
+    		sorted.addFirst(deepest.poll());
+    	}
+    	Map<String, Integer> depths = new LinkedHashMap<String, Integer>();
+    	for (Map.Entry<String, Integer> entry : sorted) {
+    		depths.put(entry.getKey(), entry.getValue());
+    	}
+    	return depths;
+    }
+
+    /**
+     * @return the number of queued urls currently spilled to disk
+     */
+    public long spilledCount() {
+    	return spilledCount.get();
+    }
+
+    /**
+     * @return the number of times the score of a queued url was raised because another link to it was found
+     */
+    public long raisedCount() {
+    	return raisedCount.get();
+    }
+
+    /**
+     * @return the number of distinct hosts found
+     */
+    public int hostCount() {
+    	return hostQueues.size();
+    }
+
+    /**
+     * The key used to partition the frontier. Like RobotTxtParser the leading www. is ignored,
+     * but an explicit port is kept since each port is a separate server.
+     * @param url	The URL to find the host of
+     * @return the host (and port, if any) of the URL
+     */
+    public static String hostKey(URL url) {
+    	return hostKey(url.getHost(), url.getPort(), url.getDefaultPort());
+    }
+
+    /**
+     * The key used to partition the frontier, the same as hostKey(URL) but found without parsing the whole url.
+     * Only http and https urls with a host and a numeric port, if any, are accepted.
+     * @param url	The url to find the host of
+     * @return the host (and port, if any) of the url, or null if the url is malformed
+     */
+    public static String hostKey(String url) {
+    	int start;
+    	int defaultPort;
+    	if (url.startsWith("http://")) {
+    		start = 7;
+    		defaultPort = 80;
+    	} else if (url.startsWith("https://")) {
+    		start = 8;
+    		defaultPort = 443;
+    	} else {
+    		return null;
+    	}
+    	int end = start;
+    	while (end < url.length() && "/?#".indexOf(url.charAt(end)) < 0) {
+    		end++;
+    	}
+    	int at = url.lastIndexOf('@', end - 1);
+    	if (at >= start) {
+    		start = at + 1;		// Skip the user info
+    	}
+    	int hostEnd = end;
+    	int port = -1;
+    	int colon = url.lastIndexOf(':', end - 1);
+    	if (colon >= start && colon > url.lastIndexOf(']', end - 1)) {	// Not one inside an IPv6 address
+    		hostEnd = colon;
+    		if (end - colon - 1 > 5) {
+    			return null;
+    		}
+    		for (int i = colon + 1; i < end; i++) {
+    			char c = url.charAt(i);
+    			if (c < '0' || c > '9') {
+    				return null;
+    			}
+    			port = Math.max(port, 0) * 10 + c - '0';
+    		}
+    		if (port > 65535) {
+    			return null;
+    		}
+    	}
+    	if (hostEnd == start) {
+    		return null;
+    	}
+    	return hostKey(url.substring(start, hostEnd), port, defaultPort);
+    }
+
+    private static String hostKey(String host, int port, int defaultPort) {
+    	host = host.toLowerCase();
+    	if (host.startsWith("www.")) {
+    		host = host.substring(4);
+    	}
+    	if (port != -1 && port != defaultPort) {
+    		host = host + ":" + port;
+    	}
+    	return host;
     }
 }
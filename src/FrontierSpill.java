@@ -0,0 +1,242 @@
+/*
+ The cold tier of the frontier: URLs that did not fit in the in-memory budget.
+ Each spill writes one or more segment files, sorted best score first. The segments are
+ memory-mapped for reading, and a k-way merge over them hands back the best spilled URLs
+ as the in-memory queues drain. A segment file is deleted once all its URLs have been read back.
+ A spill is written in two steps: write() sorts the URLs and writes the segments without touching
+ the spill, so it may run while other threads read from it, and add() then makes the segments read.
+
+ Segment layout: magic (int), record count (int), then for each record
+ score (double), insertion index (int), url length (int) and the url as UTF-8 bytes.
+*/
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class FrontierSpill {
+    private static final int MAGIC = 0x46535047;                // "FSPG"
+    private static final long MAX_SEGMENT_BYTES = 1L << 30;     // Keep each segment mappable as one buffer
+
+    private File directory;                     // Where the segments are written, created on the first spill
+    private final PriorityQueue<Segment> segments;  // Segments with unread records, ordered by their next record
+    private final AtomicInteger segmentCount = new AtomicInteger();    // Used to name the segment files
+    private long size = 0;                      // The number of spilled URLs not yet read back
+    private boolean debug = false;
+
+    /**
+     * A segment file and the position of the next unread record
+     */
+    static class Segment implements Comparable<Segment> {
+        final File file;
+        final MappedByteBuffer buffer;
+        int remaining;          // Records left to read
+        double score;           // The next record, valid while remaining > 0
+        int index;
+        String url;
+
+        Segment(File file) throws IOException {
+            this.file = file;
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                channel.close();    // The mapping stays valid after the channel is closed
+            }
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a frontier segment: " + file);
+            }
+            remaining = buffer.getInt();
+            advance();
+        }
+
+        /**
+         * Reads the next record into score, index and url
+         * @return false if the segment is exhausted
+         */
+        boolean advance() {
+            if (remaining == 0) {
+                url = null;
+                return false;
+            }
+            score = buffer.getDouble();
+            index = buffer.getInt();
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            url = new String(bytes, StandardCharsets.UTF_8);
+            remaining--;
+            return true;
+        }
+
+        // Same order as URLScore: highest score first, then insertion order
+        public int compareTo(Segment other) {
+            if (score != other.score) {
+                return score > other.score ? -1 : 1;
+            }
+            return Integer.compare(index, other.index);
+        }
+    }
+
+    /**
+     * Receives the spilled records, see forEach()
+     */
+    public interface RecordVisitor {
+        void record(String url, double score, int index) throws IOException;
+    }
+
+    /**
+     * @param directory	The directory to write segments to, or null for a temporary directory
+     * @param debug		Print diagnostic output
+     */
+    public FrontierSpill(File directory, boolean debug) {
+        this.directory = directory;
+        this.debug = debug;
+        segments = new PriorityQueue<Segment>();
+    }
+
+    /**
+     * Writes the URLs to new segment files, which are not read from until they are handed to add().
+     * Does not change the spill, so it may be called while another thread reads from it.
+     * @param urls	The URLs to spill, in any order
+     * @return the segments written
+     * @throws IOException if the segments could not be written
+     */
+    public List<Segment> write(List<URLScore> urls) throws IOException {
+        List<URLScore> sorted = new ArrayList<URLScore>(urls);
+        Collections.sort(sorted);
+        List<Segment> written = new ArrayList<Segment>();
+        int from = 0;
+        while (from < sorted.size()) {
+            from = writeSegment(sorted, from, written);
+        }
+        return written;
+    }
+
+    /**
+     * Adds segments returned by write() to the spill, their URLs are read back from now on
+     * @param written	The segments
+     */
+    public void add(List<Segment> written) {
+        for (Segment segment : written) {
+            segments.add(segment);
+            size += segment.remaining + 1;
+        }
+    }
+
+    private synchronized File directory() throws IOException {
+        if (directory == null) {
+            directory = Files.createTempDirectory("frontier").toFile();
+            directory.deleteOnExit();
+        } else if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create frontier directory " + directory);
+        }
+        return directory;
+    }
+
+    /**
+     * Writes the urls starting at from to a single segment, until the segment is full
+     * @param written	Receives the segment, unless it is empty
+     * @return the index of the first url not written
+     */
+    private int writeSegment(List<URLScore> sorted, int from, List<Segment> written) throws IOException {
+        File file = new File(directory(), String.format("segment-%06d.bin", segmentCount.getAndIncrement()));
+        file.deleteOnExit();
+
+        int to = from;
+        long bytes = 8;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(0);    // Record count, patched below
+            while (to < sorted.size() && bytes < MAX_SEGMENT_BYTES) {
+                URLScore url = sorted.get(to++);
+                byte[] utf8 = url.getURLString().getBytes(StandardCharsets.UTF_8);
+                out.writeDouble(url.getScore());
+                out.writeInt(url.getIndex());
+                out.writeInt(utf8.length);
+                out.write(utf8);
+                bytes += 16 + utf8.length;
+            }
+        } finally {
+            out.close();
+        }
+        RandomAccessFile header = new RandomAccessFile(file, "rw");
+        try {
+            header.seek(4);
+            header.writeInt(to - from);
+        } finally {
+            header.close();
+        }
+
+        Segment segment = new Segment(file);
+        if (segment.url != null) {
+            written.add(segment);
+        }
+        if (debug) System.out.println("FrontierSpill-Spilled " + (to - from) + " urls to " + file);
+        return to;
+    }
+
+    /**
+     * Reads back the best spilled URLs, merging all segments
+     * @param max	The maximum number of URLs to read
+     * @return the URLs, best score first
+     */
+    public List<URLScore> refill(int max) {
+        List<URLScore> urls = new ArrayList<URLScore>(Math.min(max, (int) Math.min(size, Integer.MAX_VALUE)));
+        while (urls.size() < max && !segments.isEmpty()) {
+            Segment segment = segments.poll();
+            size--;
+            urls.add(new URLScore(segment.url, segment.score, segment.index));
+            if (segment.advance()) {
+                segments.add(segment);
+            } else if (!segment.file.delete() && debug) {
+                System.out.println("FrontierSpill-Could not delete " + segment.file);
+            }
+        }
+        return urls;
+    }
+
+    /**
+     * Reads every spilled URL not yet read back, in no particular order, without consuming it
+     * @param visitor	Receives each URL
+     * @throws IOException if the visitor fails
+     */
+    public void forEach(RecordVisitor visitor) throws IOException {
+        for (Segment segment : segments) {
+            if (segment.url == null) {
+                continue;
+            }
+            visitor.record(segment.url, segment.score, segment.index);
+            ByteBuffer rest = segment.buffer.duplicate();
+            for (int i = 0; i < segment.remaining; i++) {
+                double score = rest.getDouble();
+                int index = rest.getInt();
+                byte[] bytes = new byte[rest.getInt()];
+                rest.get(bytes);
+                visitor.record(new String(bytes, StandardCharsets.UTF_8), score, index);
+            }
+        }
+    }
+
+    /**
+     * @return the number of spilled URLs not yet read back
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return the best score among the spilled URLs, or negative infinity if none are left
+     */
+    public double bestScore() {
+        Segment head = segments.peek();
+        return head == null ? Double.NEGATIVE_INFINITY : head.score;
+    }
+}
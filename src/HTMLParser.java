@@ -3,46 +3,70 @@ import org.jsoup.select.Elements;
 import org.jsoup.nodes.Element;
 import org.jsoup.nodes.Document;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /*
  * This parser uses the jsoup Java HTML Parser -- see http://jsoup.org/
+ * The parser keeps no state between pages, so a single instance can be shared by all workers.
+ * Pages are fetched elsewhere (see PageFetcher), the parser works on the raw bytes of the response.
+ * In streaming mode the page is not parsed into a DOM, see StreamingHTMLParser.
  */
 public class HTMLParser {
-    private Document currentDoc;   // The last document retrieved
+    private final StreamingHTMLParser streamingParser;  // Used instead of jsoup in streaming mode, otherwise null
 
-    public void connect(String url, String agent) throws IOException {
+    public HTMLParser() {
+        this(false);
+    }
+
+    /**
+     * @param streaming	Extract links and text in a single pass instead of building a jsoup Document
+     */
+    public HTMLParser(boolean streaming) {
+        streamingParser = streaming ? new StreamingHTMLParser() : null;
+    }
+
+    /**
+     * Parses a fetched document.
+     * @param url		The URL of the document, used to resolve relative links
+     * @param body		The raw bytes of the document
+     * @param charset	The charset of the document, or null to detect it from the document
+     * @return the links and body text of the document
+     * @throws IOException if the document could not be parsed
+     */
+    public ParsedPage parse(String url, byte[] body, String charset) throws IOException {
+        if (streamingParser != null) {
+            return streamingParser.parse(url, body, charset);
+        }
+        Document doc;
         try {
-            currentDoc = Jsoup.connect(url).userAgent(agent).get();
+            doc = Jsoup.parse(new ByteArrayInputStream(body), charset, url);
         }
         catch (java.nio.charset.IllegalCharsetNameException e)  {
             throw new IOException(e.toString());
         } catch (IllegalArgumentException ex) {
-        	throw new IOException("Error connecting to " + url + ": " + ex.getMessage());
+        	throw new IOException("Error parsing " + url + ": " + ex.getMessage());
         }
+        return new ParsedPage(url, getLinks(doc), doc.text());
     }
 
     /**
-     * Retrieves all links from the last document retrieved.
-     * Filters links that are non-http/https protocols. 
-     * @return a collection of Link Elements
-     * @throws IOException
+     * Retrieves all links from the given document.
+     * Filters links that are non-http/https protocols.
+     * @param doc	The document to retrieve the links from
+     * @return the links, with absolute URLs
      */
-    public Elements getLinks() throws IOException {
-    	Elements hrefs = currentDoc.select("a[href]");
-    	Elements links = new Elements();
+    private List<PageLink> getLinks(Document doc) {
+    	Elements hrefs = doc.select("a[href]");
+    	List<PageLink> links = new ArrayList<PageLink>(hrefs.size());
     	for (Element link : hrefs) {
-    		if (link.attr("abs:href").contains("http")) {
-    			links.add(link);
+    		String href = link.attr("abs:href");
+    		if (PageLink.isHttp(href)) {
+    			links.add(new PageLink(href, link.text()));
     		}
-    	}    	
+    	}
     	return links;
     }
-
-    /**
-     * @return the body of the last document retrieved
-     */
-    public String getBody() {
-    	return currentDoc.text();
-    }
 }
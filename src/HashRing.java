@@ -0,0 +1,77 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A consistent hash ring deciding which node of a cluster owns each host.
+ * Each node is placed on the ring at many points (virtual nodes) and owns the hosts hashing
+ * to the arcs ending at its points, so the hosts are spread evenly and adding a node only
+ * moves the hosts on the arcs it takes over, about 1/n of them, all to the new node.
+ * Immutable, a ring with other nodes is a new ring.
+ */
+public class HashRing {
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    private final List<String> nodes;
+    private final long[] points;        // The points on the ring, sorted
+    private final String[] owners;      // The node at each point
+
+    /**
+     * @param nodes			The ids of the nodes, e.g. host:port
+     * @param virtualNodes	The number of points of each node on the ring
+     */
+    public HashRing(Collection<String> nodes, int virtualNodes) {
+        List<String> sorted = new ArrayList<String>(nodes);
+        Collections.sort(sorted);
+        this.nodes = Collections.unmodifiableList(sorted);
+
+        long[][] placed = new long[sorted.size() * virtualNodes][];
+        int n = 0;
+        for (int i = 0; i < sorted.size(); i++) {
+            for (int v = 0; v < virtualNodes; v++) {
+                placed[n++] = new long[] { URLFingerprint.of(sorted.get(i) + "#" + v), i };
+            }
+        }
+        Arrays.sort(placed, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return Long.compare(a[0], b[0]);
+            }
+        });
+        points = new long[n];
+        owners = new String[n];
+        for (int i = 0; i < n; i++) {
+            points[i] = placed[i][0];
+            owners[i] = sorted.get((int) placed[i][1]);
+        }
+    }
+
+    public HashRing(Collection<String> nodes) {
+        this(nodes, DEFAULT_VIRTUAL_NODES);
+    }
+
+    /**
+     * @param host	The host key, see Frontier.hostKey()
+     * @return the id of the node owning the host, or null if the ring is empty
+     */
+    public String ownerOf(String host) {
+        if (points.length == 0) {
+            return null;
+        }
+        int i = Arrays.binarySearch(points, URLFingerprint.of(host));
+        if (i < 0) {
+            i = -i - 1;         // The first point after the host
+        }
+        return owners[i == points.length ? 0 : i];
+    }
+
+    /**
+     * @return the ids of the nodes, sorted
+     */
+    public List<String> getNodes() {
+        return nodes;
+    }
+}
@@ -0,0 +1,392 @@
+/*
+ The queue of unvisited URLs belonging to a single host.
+ Each host keeps its own priority queue and the earliest time at which the crawler
+ is allowed to fetch from it again, so the frontier can be polite to each host
+ separately instead of pausing the whole crawl between requests.
+ The URLs are guarded by the queue's own monitor, the fetch time by the frontier's ready lock.
+ A host may be closed until the crawler knows how it may be fetched from, e.g. until its robots.txt
+ has been read, and it may ask for a longer delay between requests than the crawler's default.
+ A host may also be limited to a number of fetches at the same time: it is not scheduled while that many
+ of its URLs are being fetched, see Frontier.release().
+ The URLs are kept without an object for each: their bytes are stored in an arena (see URLArena) and
+ their score, insertion index, arena id and fingerprint in arrays indexed by slot, the slots of the queued
+ URLs being 0 to size - 1. A binary heap of slots orders them best score first, and an open addressing
+ table finds the slot of a fingerprint, so the score of a queued URL can be raised in O(log n) as more links
+ to it are found (see raise()). A URLScore is only made for a URL on its way out.
+*/
+
+import java.util.Arrays;
+import java.util.Collection;
+
+public class HostQueue implements Comparable<HostQueue> {
+    private static final int INITIAL_CAPACITY = 4;
+
+    private final String host;                  // The host all URLs in this queue belong to
+    private URLArena arena = new URLArena(256); // The bytes of the queued URLs
+    private double[] scores = new double[INITIAL_CAPACITY];    // The score of the URL in each slot
+    private int[] indexes = new int[INITIAL_CAPACITY];         // The insertion index of the URL in each slot
+    private long[] refs = new long[INITIAL_CAPACITY];          // The arena id of the URL in each slot
+    private long[] ids = new long[INITIAL_CAPACITY];           // The fingerprint of the URL in each slot
+    private int[] positions = new int[INITIAL_CAPACITY];       // The position of each slot in the heap
+    private int[] heap = new int[INITIAL_CAPACITY];            // Slots, a heap with the best score first
+    private int[] table = new int[2 * INITIAL_CAPACITY];       // 1 + the slot of each fingerprint, 0 if empty
+    private int size = 0;
+    private long nextFetchTime = 0;             // Earliest time (ms) at which we may fetch from this host again
+    private boolean scheduled = false;          // true while the host is in (or about to enter) the frontier's ready queue
+    private boolean open = true;                // false while the host may not be scheduled yet
+    private volatile long delay = 0;            // Minimum time (ms) between two requests to this host, 0 for the default
+    private int inFlight = 0;                   // The number of URLs of this host being fetched
+    private int maxInFlight = 1;                // The most URLs of this host fetched at the same time, one unless told otherwise
+
+    public HostQueue(String host) {
+        this.host = host;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * @param url	A URL of this host that is not queued yet
+     * @param id	The fingerprint of the URL, see URLFingerprint
+     * @param score	The score of the URL
+     * @param index	The insertion index of the URL, which orders URLs with the same score
+     */
+    public void add(String url, long id, double score, int index) {
+        if (size == heap.length) {
+            resize(2 * size);
+        }
+        int slot = size;
+        refs[slot] = arena.add(url);
+        ids[slot] = id;
+        scores[slot] = score;
+        indexes[slot] = index;
+        link(slot);
+        siftUp(size++, slot);
+    }
+
+    /**
+     * @return the highest priority URL of this host or null if the queue is empty
+     */
+    public URLScore removeNext() {
+        if (size == 0) {
+            return null;
+        }
+        int slot = heap[0];
+        URLScore first = new URLScore(arena.get(refs[slot]), scores[slot], indexes[slot]);
+        arena.remove(refs[slot]);
+        unlink(slot);
+        int last = heap[--size];
+        if (size > 0) {
+            siftDown(0, last);
+        }
+        if (slot != size) {
+            moveSlot(size, slot);   // Keep the slots in use at 0 to size - 1
+        }
+        compactArena();
+        return first;
+    }
+
+    /**
+     * Raises the score of a queued URL found again to the better of its two scores plus a part of the other
+     * @param id		The fingerprint of the URL, see URLFingerprint
+     * @param found		The score of the URL as found again, not negative
+     * @param weight	The part of the lesser score added, 0 to 1
+     * @return false if the URL is not queued here
+     */
+    public boolean raise(long id, double found, double weight) {
+        int slot = find(id);
+        if (slot < 0) {
+            return false;
+        }
+        double queued = scores[slot];
+        double score = Math.max(queued, found) + weight * Math.min(queued, found);
+        if (score <= queued) {
+            return false;
+        }
+        scores[slot] = score;
+        siftUp(positions[slot], slot);     // A better score only moves up
+        return true;
+    }
+
+    /**
+     * @return true if the URL in slot a comes before the one in slot b: a better score, or the same score
+     * and inserted earlier
+     */
+    private boolean before(int a, int b) {
+        return scores[a] > scores[b] || (scores[a] == scores[b] && indexes[a] < indexes[b]);
+    }
+
+    private void siftUp(int at, int slot) {
+        while (at > 0) {
+            int parent = (at - 1) >>> 1;
+            int above = heap[parent];
+            if (!before(slot, above)) {
+                break;
+            }
+            heap[at] = above;
+            positions[above] = at;
+            at = parent;
+        }
+        heap[at] = slot;
+        positions[slot] = at;
+    }
+
+    private void siftDown(int at, int slot) {
+        int half = size >>> 1;
+        while (at < half) {
+            int child = 2 * at + 1;
+            int best = heap[child];
+            int right = child + 1;
+            if (right < size && before(heap[right], best)) {
+                best = heap[child = right];
+            }
+            if (!before(best, slot)) {
+                break;
+            }
+            heap[at] = best;
+            positions[best] = at;
+            at = child;
+        }
+        heap[at] = slot;
+        positions[slot] = at;
+    }
+
+    /**
+     * Moves the URL in slot from, which must be queued, to the free slot to
+     */
+    private void moveSlot(int from, int to) {
+        table[cellOf(from)] = to + 1;
+        scores[to] = scores[from];
+        indexes[to] = indexes[from];
+        refs[to] = refs[from];
+        ids[to] = ids[from];
+        positions[to] = positions[from];
+        heap[positions[to]] = to;
+    }
+
+    private void resize(int capacity) {
+        capacity = Math.max(INITIAL_CAPACITY, capacity);
+        scores = Arrays.copyOf(scores, capacity);
+        indexes = Arrays.copyOf(indexes, capacity);
+        refs = Arrays.copyOf(refs, capacity);
+        ids = Arrays.copyOf(ids, capacity);
+        positions = Arrays.copyOf(positions, capacity);
+        heap = Arrays.copyOf(heap, capacity);
+        table = new int[Integer.highestOneBit(2 * capacity - 1) << 1];    // A power of two, at most half full
+        for (int slot = 0; slot < size; slot++) {
+            link(slot);
+        }
+    }
+
+    /**
+     * Copies the live URLs to a new arena once most of the old one is taken up by URLs removed
+     */
+    private void compactArena() {
+        if (size == 0) {
+            arena.clear();
+        } else if (arena.isSparse()) {
+            URLArena compacted = new URLArena(arena.liveBytes() + arena.liveBytes() / 2);
+            for (int slot = 0; slot < size; slot++) {
+                refs[slot] = arena.copyTo(refs[slot], compacted);
+            }
+            arena = compacted;
+        }
+    }
+
+    private int homeOf(long id) {
+        return (int) (id ^ (id >>> 32)) & (table.length - 1);   // The fingerprints are well mixed already
+    }
+
+    /**
+     * @return the cell of the table holding the slot
+     */
+    private int cellOf(int slot) {
+        int mask = table.length - 1;
+        int cell = homeOf(ids[slot]);
+        while (table[cell] != slot + 1) {
+            cell = (cell + 1) & mask;
+        }
+        return cell;
+    }
+
+    /**
+     * @return the slot of the URL with the fingerprint, or -1 if it is not queued here
+     */
+    private int find(long id) {
+        int mask = table.length - 1;
+        for (int cell = homeOf(id); table[cell] != 0; cell = (cell + 1) & mask) {
+            if (ids[table[cell] - 1] == id) {
+                return table[cell] - 1;
+            }
+        }
+        return -1;
+    }
+
+    private void link(int slot) {
+        int mask = table.length - 1;
+        int cell = homeOf(ids[slot]);
+        while (table[cell] != 0) {
+            cell = (cell + 1) & mask;
+        }
+        table[cell] = slot + 1;
+    }
+
+    /**
+     * Takes the slot out of the table, shifting back the entries after it that would no longer be found
+     */
+    private void unlink(int slot) {
+        int mask = table.length - 1;
+        int hole = cellOf(slot);
+        for (int cell = (hole + 1) & mask; table[cell] != 0; cell = (cell + 1) & mask) {
+            int home = homeOf(ids[table[cell] - 1]);
+            if (((cell - home) & mask) >= ((cell - hole) & mask)) {
+                table[hole] = table[cell];
+                hole = cell;
+            }
+        }
+        table[hole] = 0;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Copies all URLs of this host, in no particular order
+     * @param to	The collection to add the URLs to
+     */
+    public void copyTo(Collection<URLScore> to) {
+        for (int slot = 0; slot < size; slot++) {
+            to.add(new URLScore(arena.get(refs[slot]), scores[slot], indexes[slot]));
+        }
+    }
+
+    /**
+     * Copies the scores of all URLs of this host, in no particular order
+     * @param to	The array to copy to, with room for size() more scores
+     * @param at	Where in the array to copy the first score to
+     * @return where the next score goes
+     */
+    public int copyScores(double[] to, int at) {
+        System.arraycopy(scores, 0, to, at, size);
+        return at + size;
+    }
+
+    /**
+     * Copies the insertion indexes of the URLs of this host with the given score, in no particular order
+     * @param score	The score
+     * @param to	The array to copy to, with room for size() more indexes
+     * @param at	Where in the array to copy the first index to
+     * @return where the next index goes
+     */
+    public int copyIndexes(double score, int[] to, int at) {
+        for (int slot = 0; slot < size; slot++) {
+            if (scores[slot] == score) {
+                to[at++] = indexes[slot];
+            }
+        }
+        return at;
+    }
+
+    /**
+     * Removes the URLs that come after a given one, in the order of the queue
+     * @param score		The score of the last URL kept
+     * @param index		The insertion index of the last URL kept
+     * @param removed	The collection to add the URLs removed to
+     */
+    public void removeAfter(double score, int index, Collection<URLScore> removed) {
+        int kept = 0;
+        for (int slot = 0; slot < size; slot++) {
+            if (scores[slot] > score || (scores[slot] == score && indexes[slot] <= index)) {
+                scores[kept] = scores[slot];
+                indexes[kept] = indexes[slot];
+                refs[kept] = refs[slot];
+                ids[kept] = ids[slot];
+                kept++;
+            } else {
+                removed.add(new URLScore(arena.get(refs[slot]), scores[slot], indexes[slot]));
+                arena.remove(refs[slot]);
+            }
+        }
+        if (kept == size) {
+            return;
+        }
+        size = kept;
+        for (int slot = 0; slot < size; slot++) {
+            heap[slot] = slot;
+        }
+        for (int i = (size >>> 1) - 1; i >= 0; i--) {     // Heapify what is left
+            siftDown(i, heap[i]);
+        }
+        for (int i = 0; i < size; i++) {
+            positions[heap[i]] = i;
+        }
+        resize(heap.length > 4 * size ? 2 * size : heap.length);   // Give back the room, and rebuild the table
+        compactArena();
+    }
+
+    public long getNextFetchTime() {
+        return nextFetchTime;
+    }
+
+    /**
+     * Must only be called while the queue is not in the frontier's ready queue,
+     * since the ready queue is ordered by this timestamp.
+     * @param time	Earliest time (ms) at which the host may be fetched from again
+     */
+    public void setNextFetchTime(long time) {
+        nextFetchTime = time;
+    }
+
+    public boolean isScheduled() {
+        return scheduled;
+    }
+
+    public void setScheduled(boolean scheduled) {
+        this.scheduled = scheduled;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    public void setOpen(boolean open) {
+        this.open = open;
+    }
+
+    public long getDelay() {
+        return delay;
+    }
+
+    public void setDelay(long delay) {
+        this.delay = delay;
+    }
+
+    public void fetchStarted() {
+        inFlight++;
+    }
+
+    public void fetchFinished() {
+        inFlight--;
+    }
+
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+    }
+
+    /**
+     * @return true if as many URLs of this host are being fetched as it allows, so it may not be scheduled
+     */
+    public boolean isBusy() {
+        return inFlight >= maxInFlight;
+    }
+
+    public int compareTo(HostQueue other) {
+        return Long.compare(nextFetchTime, other.nextFetchTime);
+    }
+}
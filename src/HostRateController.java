@@ -0,0 +1,247 @@
+/*
+ Adapts how hard each host is crawled to how well the host copes, the way TCP adapts to the network (AIMD).
+ Each host starts out conservative: one fetch at a time, no more often than the initial delay allows.
+ While its responses stay healthy the rate and the number of fetches at the same time are raised additively,
+ the rate by about RATE_STEP requests per second each second and the fetches by WINDOW_STEP for each round of them.
+ A slow response, a failed fetch or a 429 Too Many Requests or 503 Service Unavailable halves both,
+ at most once for the fetches started before the last decrease, so one bad spell is not punished many times.
+ A 429 or 503 also keeps the host idle until its Retry-After has passed, or for a delay if it has none.
+
+ A response is slow when its first byte takes longer than slowMillis, or longer than SLOW_FACTOR times the
+ fastest first byte seen from the host: a server that starts answering much slower than it can is struggling.
+ The Crawl-delay of robots.txt is a floor, the rate is never raised above it and such a host
+ is never fetched from more than once at a time. The decisions are applied to the frontier (see Frontier.setHostRate()).
+*/
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class HostRateController {
+    private static final double RATE_STEP = 0.5;            // The rate (requests/s) gained each second while healthy
+    private static final double WINDOW_STEP = 0.1;          // The fetches at the same time gained each round while healthy
+    private static final double DECREASE = 0.5;             // The rate and fetches are multiplied by this when backing off
+    private static final long MAX_DELAY = 60000;            // The most time (ms) between two requests after backing off
+    private static final long MAX_RETRY_AFTER = 3600000;    // The longest Retry-After (ms) honored, longer ones are cut short
+    private static final double SLOW_FACTOR = 4;            // Slower than this times the fastest response is slow
+    private static final long MIN_BASELINE = 50;            // The fastest response (ms) counted for SLOW_FACTOR, loopback is too fast
+
+    private final Frontier frontier;
+    private final long initialDelay;            // The delay (ms) a host starts with
+    private final long minDelay;                // The least delay (ms) of any host
+    private final int maxInFlight;              // The most fetches from one host at the same time
+    private final long slowNanos;               // Responses slower than this are slow
+    private final ConcurrentHashMap<String, HostRate> hosts = new ConcurrentHashMap<String, HostRate>();
+    private final AtomicLong decreaseCount = new AtomicLong();
+    private final AtomicLong throttledCount = new AtomicLong();     // The number of 429 and 503 responses
+    private boolean debug = false;
+
+    /**
+     * The state of one host. Guarded by its own monitor.
+     */
+    private class HostRate {
+        long floor;                             // The least delay (ms), the crawl delay of the host if larger than ours
+        boolean sequential;                     // The host has a crawl delay, fetch from it once at a time
+        double rate;                            // Requests per second
+        double window;                          // Fetches at the same time
+        long fastest = Long.MAX_VALUE;          // The fastest first byte (ns) seen from the host
+        long lastDecrease;                      // When (ns) the rate was last decreased
+
+        HostRate(long crawlDelay) {
+            setCrawlDelay(crawlDelay);
+            rate = 1000.0 / Math.max(initialDelay, floor);
+            window = 1;
+            lastDecrease = System.nanoTime();
+        }
+
+        /**
+         * Applies the Crawl-delay of robots.txt, slowing down if the host now asks for a longer one
+         */
+        void setCrawlDelay(long crawlDelay) {
+            floor = Math.max(minDelay, crawlDelay);
+            sequential = crawlDelay > RobotRules.NO_DELAY;
+            rate = Math.min(rate, 1000.0 / floor);
+        }
+
+        long delay() {
+            return Math.max(floor, Math.min(MAX_DELAY, (long) (1000 / rate)));
+        }
+
+        int maxInFlight() {
+            return sequential ? 1 : (int) window;
+        }
+
+        void increase() {
+            rate = Math.min(1000.0 / floor, rate + RATE_STEP / rate);
+            window = Math.min(maxInFlight, window + WINDOW_STEP / window);
+        }
+
+        /**
+         * @return false if the rate was decreased since the request was sent
+         */
+        boolean decrease(long sent) {
+            if (sent - lastDecrease < 0) {
+                return false;
+            }
+            rate = Math.max(1000.0 / MAX_DELAY, rate * DECREASE);
+            window = Math.max(1, window * DECREASE);
+            lastDecrease = System.nanoTime();
+            return true;
+        }
+    }
+
+    /**
+     * @param frontier		The frontier the decisions are applied to
+     * @param initialDelay	The time (ms) between two requests to a new host
+     * @param minDelay		The least time (ms) between two requests to any host
+     * @param maxInFlight	The most fetches from one host at the same time
+     * @param slowMillis	Responses whose first byte takes longer (ms) are slow
+     * @param debug			Print diagnostic output
+     */
+    public HostRateController(Frontier frontier, long initialDelay, long minDelay, int maxInFlight, long slowMillis, boolean debug) {
+        this.frontier = frontier;
+        this.initialDelay = initialDelay;
+        this.minDelay = Math.max(1, minDelay);
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.slowNanos = TimeUnit.MILLISECONDS.toNanos(slowMillis);
+        this.debug = debug;
+    }
+
+    /**
+     * Opens a new host in the frontier, at the initial rate. Called again for an open host when its
+     * robots.txt has been fetched again, the host then keeps its rate unless the Crawl-delay is now longer.
+     * @param host			The host key, see Frontier.hostKey()
+     * @param crawlDelay	The Crawl-delay (ms) of the host's robots.txt, or RobotRules.NO_DELAY
+     */
+    public void open(String host, long crawlDelay) {
+        HostRate hostRate = new HostRate(crawlDelay);
+        HostRate known = hosts.putIfAbsent(host, hostRate);
+        if (known != null) {
+            hostRate = known;
+        }
+        long delay;
+        int fetches;
+        synchronized (hostRate) {
+            if (known != null) {
+                hostRate.setCrawlDelay(crawlDelay);
+            }
+            delay = hostRate.delay();
+            fetches = hostRate.maxInFlight();
+        }
+        frontier.setHostRate(host, delay, fetches, 0);
+        frontier.openHost(host, delay);
+    }
+
+    /**
+     * Adapts the rate of the host to a response
+     * @param host		The host key, see Frontier.hostKey()
+     * @param sent		When (System.nanoTime()) the fetch was started
+     * @param result	The response
+     * @return true if the host asked to be fetched from again later, with a 429 or 503
+     */
+    public boolean responded(String host, long sent, FetchResult result) {
+        HostRate hostRate = hosts.get(host);
+        if (hostRate == null) {
+            return false;   // Not opened through us
+        }
+        int status = result.getStatus();
+        boolean throttled = status == 429 || status == 503;
+        long firstByte = result.getTimeToFirstByte();
+        long notBefore = 0;
+        boolean decreased = false;
+        long delay;
+        int fetches;
+        synchronized (hostRate) {
+            if (!throttled && firstByte < hostRate.fastest) {
+                hostRate.fastest = firstByte;
+            }
+            long baseline = Math.max(TimeUnit.MILLISECONDS.toNanos(MIN_BASELINE), hostRate.fastest);
+            boolean slow = firstByte > slowNanos || firstByte > SLOW_FACTOR * baseline;
+            if (throttled || slow) {
+                decreased = hostRate.decrease(sent);
+            } else {
+                hostRate.increase();
+            }
+            delay = hostRate.delay();
+            fetches = hostRate.maxInFlight();
+        }
+        if (throttled) {
+            throttledCount.incrementAndGet();
+            long retryAfter = retryAfter(result.getHeader("retry-after"));
+            notBefore = System.currentTimeMillis() + (retryAfter >= 0 ? Math.min(MAX_RETRY_AFTER, retryAfter) : delay);
+        }
+        if (decreased) {
+            decreaseCount.incrementAndGet();
+            if (debug) System.out.println("HostRateController-" + host + (throttled ? " answered " + status : " is slow")
+                    + ", delay now " + delay + " ms, " + fetches + " at a time");
+        }
+        frontier.setHostRate(host, delay, fetches, notBefore);
+        return throttled;
+    }
+
+    /**
+     * Backs off a host a fetch from which failed, e.g. timed out or had its connection refused
+     * @param host	The host key, see Frontier.hostKey()
+     * @param sent	When (System.nanoTime()) the fetch was started
+     */
+    public void failed(String host, long sent) {
+        HostRate hostRate = hosts.get(host);
+        if (hostRate == null) {
+            return;
+        }
+        long delay;
+        int fetches;
+        synchronized (hostRate) {
+            if (!hostRate.decrease(sent)) {
+                return;
+            }
+            delay = hostRate.delay();
+            fetches = hostRate.maxInFlight();
+        }
+        decreaseCount.incrementAndGet();
+        if (debug) System.out.println("HostRateController-" + host + " failed, delay now " + delay + " ms");
+        frontier.setHostRate(host, delay, fetches, 0);
+    }
+
+    /**
+     * @param value	The Retry-After header, seconds or an HTTP date, or null
+     * @return the time (ms) to wait, or -1 if the header is missing or can't be read
+     */
+    static long retryAfter(String value) {
+        if (value == null) {
+            return -1;
+        }
+        value = value.trim();
+        try {
+            long seconds = Long.parseLong(value);
+            return seconds < 0 ? 0 : Math.multiplyExact(seconds, 1000);
+        } catch (ArithmeticException e) {
+            return MAX_RETRY_AFTER;     // Longer than is honored anyway
+        } catch (NumberFormatException e) {
+            // Not seconds, try a date
+        }
+        try {
+            ZonedDateTime date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+            return Math.max(0, date.toInstant().toEpochMilli() - System.currentTimeMillis());
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the number of times a host was backed off
+     */
+    public long decreaseCount() {
+        return decreaseCount.get();
+    }
+
+    /**
+     * @return the number of 429 and 503 responses
+     */
+    public long throttledCount() {
+        return throttledCount.get();
+    }
+}
@@ -0,0 +1,56 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Looks up the addresses of a host name. The lookup may block, see DnsCache for a cache in front of it.
+ */
+public interface HostResolver {
+
+    /**
+     * @param host	The host name
+     * @return the addresses of the host, at least one
+     * @throws UnknownHostException if the host has no addresses
+     */
+    InetAddress[] resolve(String host) throws UnknownHostException;
+
+    /**
+     * Resolves with the system resolver, i.e. DNS and the hosts file
+     */
+    HostResolver SYSTEM = new HostResolver() {
+        @Override
+        public InetAddress[] resolve(String host) throws UnknownHostException {
+            return InetAddress.getAllByName(host);
+        }
+    };
+
+    /**
+     * Resolves from a fixed table, e.g. to test without a network
+     */
+    class Static implements HostResolver {
+        private final Map<String, InetAddress[]> addresses = new ConcurrentHashMap<String, InetAddress[]>();
+
+        /**
+         * @param host		The host name
+         * @param literals	The IP addresses of the host, e.g. "127.0.0.1"
+         * @throws UnknownHostException if a literal is not an IP address
+         */
+        public void put(String host, String... literals) throws UnknownHostException {
+            InetAddress[] resolved = new InetAddress[literals.length];
+            for (int i = 0; i < literals.length; i++) {
+                resolved[i] = InetAddress.getByAddress(host, InetAddress.getByName(literals[i]).getAddress());
+            }
+            addresses.put(host.toLowerCase(), resolved);
+        }
+
+        @Override
+        public InetAddress[] resolve(String host) throws UnknownHostException {
+            InetAddress[] resolved = addresses.get(host.toLowerCase());
+            if (resolved == null) {
+                throw new UnknownHostException(host);
+            }
+            return resolved;
+        }
+    }
+}
@@ -0,0 +1,313 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+/**
+ * A non-blocking fetcher built on java.net.http.HttpClient.
+ * The client keeps connections alive and reuses them for later requests to the same host,
+ * and multiplexes requests over a single HTTP/2 connection where the server supports it.
+ * At most maxInFlight requests are sent at a time, the rest wait in a queue without holding a thread.
+ * The body of a page is checked as soon as the response headers arrive: it is not downloaded if it is not
+ * something the parser can read, and is cut short once it is longer than maxBodyBytes (see LimitedBody).
+ * Any other body, e.g. robots.txt, is cut short at MAX_OTHER_BODY. The whole exchange, headers and body,
+ * must be over within the read timeout, so a server trickling a body can't hold a fetch for long.
+ */
+public class HttpClientFetcher implements PageFetcher {
+    private static final int INITIAL_BUFFER = 16 * 1024;   // The first buffer for a body of unknown length
+    private static final int DRAIN_LIMIT = 32 * 1024;      // A body not wanted this short is read, keeping the connection
+    private static final int MAX_OTHER_BODY = 512 * 1024;  // The longest body of anything but a page, e.g. robots.txt
+
+    private final HttpClient client;
+    private final String userAgent;
+    private final Duration readTimeout;
+    private final int maxBodyBytes;                         // The longest body of a page, the rest is not downloaded
+    private final Semaphore slots;                          // One permit for each request allowed in flight
+    private final Queue<Runnable> waiting = new ConcurrentLinkedQueue<Runnable>();  // Requests waiting for a slot
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private boolean debug = false;
+
+    /**
+     * @param userAgent			The user agent to identify ourselves with
+     * @param connectTimeout	Max time (ms) to establish a connection
+     * @param readTimeout		Max time (ms) from sending a request until the whole response has arrived
+     * @param maxInFlight		Max number of requests in flight at the same time
+     * @param maxBodyBytes		Max length (bytes) of the body of a page, longer bodies are truncated
+     * @param debug				Print diagnostic output
+     */
+    public HttpClientFetcher(String userAgent, long connectTimeout, long readTimeout, int maxInFlight, int maxBodyBytes, boolean debug) {
+        this.userAgent = userAgent;
+        this.readTimeout = Duration.ofMillis(readTimeout);
+        this.maxBodyBytes = Math.max(1, maxBodyBytes);
+        this.debug = debug;
+        slots = new Semaphore(maxInFlight);
+        client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)             // Falls back to HTTP/1.1 when the server does not speak it
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofMillis(connectTimeout))
+                .build();
+    }
+
+    public CompletableFuture<FetchResult> fetch(final String url) {
+        return fetch(url, Collections.<String, String>emptyMap());
+    }
+
+    public CompletableFuture<FetchResult> fetch(final String url, Map<String, String> headers) {
+        return fetch(url, headers, false);
+    }
+
+    public CompletableFuture<FetchResult> fetchPage(final String url, Map<String, String> headers) {
+        return fetch(url, headers, true);
+    }
+
+    /**
+     * @param page	true if the body is for the parser, see fetchPage()
+     */
+    private CompletableFuture<FetchResult> fetch(final String url, Map<String, String> headers, final boolean page) {
+        final CompletableFuture<FetchResult> result = new CompletableFuture<FetchResult>();
+        final HttpRequest request;
+        try {
+            HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(url))
+                    .timeout(readTimeout)
+                    .header("User-Agent", userAgent);
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                builder.header(header.getKey(), header.getValue());
+            }
+            request = builder.GET().build();
+        } catch (IllegalArgumentException e) {
+            result.completeExceptionally(new IOException("Error connecting to " + url + ": " + e.getMessage()));
+            return result;
+        }
+
+        inFlight.incrementAndGet();
+        Runnable send = new Runnable() {
+            @Override
+            public void run() {
+                send(url, request, page, result);
+            }
+        };
+        if (slots.tryAcquire()) {
+            send.run();
+        } else {
+            waiting.add(send);
+            startWaiting();     // A slot may have been released after tryAcquire
+        }
+        return result;
+    }
+
+    private void send(final String url, HttpRequest request, final boolean page, final CompletableFuture<FetchResult> result) {
+        final long fetchTime = System.currentTimeMillis();
+        final long start = System.nanoTime();
+        final long[] headersAt = new long[1];
+        final AtomicReference<LimitedBody> body = new AtomicReference<LimitedBody>();    // Set once the headers arrive
+        final AtomicBoolean timedOut = new AtomicBoolean();
+        HttpResponse.BodyHandler<byte[]> handler = new HttpResponse.BodyHandler<byte[]>() {
+            @Override
+            public HttpResponse.BodySubscriber<byte[]> apply(HttpResponse.ResponseInfo info) {
+                headersAt[0] = System.nanoTime();
+                long length = info.headers().firstValueAsLong("content-length").orElse(-1);
+                int limit = MAX_OTHER_BODY;
+                if (page) {
+                    boolean wanted = FetchResult.isHtml(FetchResult.mimeTypeOf(info.headers().firstValue("content-type").orElse(null)));
+                    limit = wanted ? maxBodyBytes : 0;
+                }
+                LimitedBody subscriber = new LimitedBody(limit, length);
+                body.set(subscriber);
+                if (timedOut.get()) {
+                    subscriber.cancel();    // Too late, the fetch has failed already
+                }
+                return subscriber;
+            }
+        };
+        CompletableFuture<HttpResponse<byte[]>> response;
+        try {
+            response = client.sendAsync(request, handler);
+        } catch (RuntimeException e) {
+            response = new CompletableFuture<HttpResponse<byte[]>>();
+            response.completeExceptionally(e);
+        }
+        response.orTimeout(readTimeout.toMillis(), TimeUnit.MILLISECONDS).whenComplete(new BiConsumer<HttpResponse<byte[]>, Throwable>() {
+            @Override
+            public void accept(HttpResponse<byte[]> response, Throwable error) {
+                inFlight.decrementAndGet();
+                slots.release();
+                startWaiting();
+                if (error != null) {
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                    if (cause instanceof TimeoutException) {
+                        // The body is still coming, stop reading it
+                        timedOut.set(true);
+                        LimitedBody subscriber = body.get();
+                        if (subscriber != null) {
+                            subscriber.cancel();
+                        }
+                        cause = new IOException("No complete response within " + readTimeout.toMillis() + " ms: " + url);
+                    }
+                    if (debug) System.out.println("HttpClientFetcher-" + cause + ": " + url);
+                    result.completeExceptionally(cause instanceof IOException ? cause
+                            : new IOException("Error fetching " + url + ": " + cause, cause));
+                } else {
+                    LimitedBody subscriber = body.get();
+                    boolean dropped = subscriber.isDropped();
+                    boolean truncated = !dropped && subscriber.isTruncated();
+                    if (debug && (dropped || truncated)) System.out.println("HttpClientFetcher-"
+                            + (dropped ? "Not a page: " : "Truncated at " + maxBodyBytes + " bytes: ") + url);
+                    result.complete(new FetchResult(url, response.uri().toString(), response.statusCode(),
+                            lowerCaseHeaders(response.headers().map()), response.body(),
+                            fetchTime, start, headersAt[0], System.nanoTime(), truncated, dropped));
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends waiting requests while there are free slots
+     */
+    private void startWaiting() {
+        while (!waiting.isEmpty() && slots.tryAcquire()) {
+            Runnable send = waiting.poll();
+            if (send == null) {
+                slots.release();
+                return;
+            }
+            send.run();
+        }
+    }
+
+    /**
+     * Collects the body of a page up to a limit. Once the body is longer, the subscription is cancelled,
+     * which resets the stream (HTTP/2) or closes the connection (HTTP/1.1), so the rest is not downloaded.
+     * A body not wanted at all (a limit of 0) is given up the same way, unless it is short enough that
+     * reading it to the end costs less than a new connection. It may also be cancelled from another thread,
+     * when the fetch has timed out.
+     */
+    private static class LimitedBody implements HttpResponse.BodySubscriber<byte[]> {
+        private final CompletableFuture<byte[]> body = new CompletableFuture<byte[]>();
+        private final int limit;
+        private final boolean drain;        // Read a body not wanted to the end, to keep the connection
+        private byte[] bytes;
+        private int size = 0;
+        private volatile Flow.Subscription subscription;
+        private volatile boolean truncated = false;
+        private volatile boolean cancelled = false;     // The fetch timed out, read no more
+
+        /**
+         * @param limit		The most bytes to keep, 0 if the body is not wanted
+         * @param length	The length of the body sent, -1 if unknown
+         */
+        LimitedBody(int limit, long length) {
+            this.limit = limit;
+            drain = limit == 0 && length >= 0 && length <= DRAIN_LIMIT;
+            bytes = new byte[(int) Math.min(limit, length >= 0 ? length : INITIAL_BUFFER)];
+        }
+
+        @Override
+        public CompletionStage<byte[]> getBody() {
+            return body;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            if (cancelled) {
+                cancel();
+            } else if (limit == 0 && !drain) {
+                finish(true);
+            } else {
+                subscription.request(Long.MAX_VALUE);
+            }
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> buffers) {
+            if (drain || body.isDone()) {
+                return;
+            }
+            for (ByteBuffer buffer : buffers) {
+                int take = Math.min(buffer.remaining(), limit - size);
+                if (size + take > bytes.length) {
+                    bytes = Arrays.copyOf(bytes, (int) Math.min(limit, Math.max(2L * bytes.length, size + take)));
+                }
+                buffer.get(bytes, size, take);
+                size += take;
+                if (buffer.hasRemaining()) {
+                    finish(true);
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            body.completeExceptionally(error);
+        }
+
+        @Override
+        public void onComplete() {
+            if (!body.isDone()) {
+                finish(false);
+            }
+        }
+
+        private void finish(boolean cut) {
+            if (cut) {
+                truncated = true;
+                subscription.cancel();
+            }
+            body.complete(size == bytes.length ? bytes : Arrays.copyOf(bytes, size));
+        }
+
+        /**
+         * Stops reading the body, the fetch has failed. May be called from any thread, at any time
+         */
+        void cancel() {
+            cancelled = true;
+            Flow.Subscription current = subscription;
+            if (current != null) {
+                current.cancel();
+                body.completeExceptionally(new IOException("Cancelled"));
+            }
+        }
+
+        boolean isTruncated() {
+            return truncated;
+        }
+
+        boolean isDropped() {
+            return limit == 0;
+        }
+    }
+
+    private static Map<String, List<String>> lowerCaseHeaders(Map<String, List<String>> headers) {
+        Map<String, List<String>> lower = new HashMap<String, List<String>>();
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            lower.put(header.getKey().toLowerCase(), header.getValue());
+        }
+        return lower;
+    }
+
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    public void close() {
+        // HttpClient has no close() before JDK 21, its connections are released when it is collected
+        waiting.clear();
+    }
+}
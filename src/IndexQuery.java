@@ -0,0 +1,165 @@
+/*
+ Looks up a phrase in the page index written by crawls with --index (see PageIndex), without crawling again.
+ The phrase is folded and split into terms the way the pages were, and a page matches if the terms occur
+ in it one after the other. The pages are listed with the most occurrences of the phrase first.
+ A page indexed by several crawls only counts as it was last indexed.
+
+ Usage: From command line
+      java IndexQuery <DIR> <QUERY WORDS> <N>
+ where	DIR is the directory of the index
+ 		QUERY WORDS is the phrase to look up
+ 		N (optional) is the maximum number of pages to list
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+public class IndexQuery {
+    private final List<IndexSegment> segments;
+    private final TextFolder folder;
+    private final Map<String, Integer> latest = new HashMap<String, Integer>();    // The last page id of each url
+
+    /**
+     * A page the phrase occurs in
+     */
+    public static class Match {
+        private final String url;
+        private final int count;
+
+        Match(String url, int count) {
+            this.url = url;
+            this.count = count;
+        }
+
+        public String getURL() {
+            return url;
+        }
+
+        /**
+         * @return the number of times the phrase occurs in the page
+         */
+        public int getCount() {
+            return count;
+        }
+    }
+
+    /**
+     * @param dir		The directory of the index
+     * @param folder	Folds the phrase, the same way the pages were folded
+     * @throws IOException if the index can't be read
+     */
+    public IndexQuery(File dir, TextFolder folder) throws IOException {
+        this.folder = folder;
+        segments = PageIndex.openSegments(dir);
+        for (IndexSegment segment : segments) {
+            int[] pageIds = segment.getPageIds();
+            String[] urls = segment.getURLs();
+            for (int i = 0; i < pageIds.length; i++) {
+                latest.put(urls[i], pageIds[i]);      // The segments are in page order
+            }
+        }
+    }
+
+    /**
+     * @return the number of pages in the index, not counting earlier versions of a page
+     */
+    public int pageCount() {
+        return latest.size();
+    }
+
+    /**
+     * @param phrase	The phrase to look up
+     * @return the pages the phrase occurs in, the most occurrences first
+     * @throws IOException if the index can't be read
+     */
+    public List<Match> search(String phrase) throws IOException {
+        List<String> terms = PageIndex.terms(folder, phrase);
+        List<Match> matches = new ArrayList<Match>();
+        if (terms.isEmpty() || terms.contains(null)) {
+            return matches;
+        }
+        for (IndexSegment segment : segments) {
+            IndexSegment.Postings[] postings = new IndexSegment.Postings[terms.size()];
+            boolean all = true;
+            for (int i = 0; i < postings.length && all; i++) {
+                postings[i] = segment.postings(terms.get(i));
+                all = postings[i] != null;
+            }
+            if (all) {
+                match(segment, postings, matches);
+            }
+        }
+        Collections.sort(matches, new Comparator<Match>() {
+            @Override
+            public int compare(Match a, Match b) {
+                return b.count != a.count ? Integer.compare(b.count, a.count) : a.url.compareTo(b.url);
+            }
+        });
+        return matches;
+    }
+
+    /**
+     * Finds the pages of a segment where the terms occur one after the other
+     * @param postings	The postings of each term of the phrase, in phrase order
+     */
+    private void match(IndexSegment segment, IndexSegment.Postings[] postings, List<Match> matches) {
+        int[] at = new int[postings.length];       // The current page of each term, an index into its data
+        IndexSegment.Postings first = postings[0];
+        for (at[0] = 0; at[0] < first.size; at[0] += 2 + first.data[at[0] + 1]) {
+            int page = first.data[at[0]];
+            boolean all = true;
+            for (int i = 1; i < postings.length && all; i++) {
+                int[] data = postings[i].data;
+                while (at[i] < postings[i].size && data[at[i]] < page) {
+                    at[i] += 2 + data[at[i] + 1];
+                }
+                all = at[i] < postings[i].size && data[at[i]] == page;
+            }
+            if (!all) {
+                continue;
+            }
+            int count = 0;
+            for (int p = at[0] + 2; p < at[0] + 2 + first.data[at[0] + 1]; p++) {
+                int position = first.data[p];
+                boolean phrase = true;
+                for (int i = 1; i < postings.length && phrase; i++) {
+                    int start = at[i] + 2;
+                    int end = start + postings[i].data[at[i] + 1];
+                    phrase = Arrays.binarySearch(postings[i].data, start, end, position + i) >= 0;
+                }
+                if (phrase) {
+                    count++;
+                }
+            }
+            String url = segment.urlOf(page);
+            if (count > 0 && latest.get(url) == page) {
+                matches.add(new Match(url, count));
+            }
+        }
+    }
+
+    public static void main(String[] argv) {
+        if (argv.length < 2) {
+            System.out.println("Usage: java IndexQuery <DIR> <QUERY WORDS> <N>");
+            System.out.println("<DIR>\t\tDirectory of the index, see WebCrawler --index");
+            System.out.println("<QUERY WORDS>\tQuery phrase to look up");
+            System.out.println("<N>(optional)\tMaximum number of pages to list");
+            return;
+        }
+        int limit = argv.length > 2 ? Integer.parseInt(argv[2]) : Integer.MAX_VALUE;
+        try {
+            long start = System.currentTimeMillis();
+            IndexQuery query = new IndexQuery(new File(argv[0]), new TextFolder(WebCrawler.IStoEN));
+            List<Match> matches = query.search(argv[1]);
+            for (Match match : matches.subList(0, Math.min(limit, matches.size()))) {
+                System.out.println(match.getCount() + "\t" + match.getURL());
+            }
+            System.out.println("Query " + argv[1] + " found in " + matches.size() + " of " + query.pageCount()
+                    + " pages, in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (IOException e) {
+            System.out.println("Could not read the index in " + argv[0] + ": " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,474 @@
+/*
+ One segment of the page index (see PageIndex): the pages of a stretch of the crawl and, for each term found
+ in them, the pages it occurs in and where. A segment is written once and never changed: new pages go into
+ new segments, and segments are merged into larger ones (see merge()). The page ids of a segment are the ids
+ of a stretch of the crawl, so the segments of an index do not overlap and merging neighbours keeps the
+ pages of each term in id order.
+
+ File layout: magic (int), version (int), level (int, 0 for a flushed segment, one more than its inputs
+ for a merged one), page count (int), then for each page its id (int), url length (int) and url as UTF-8
+ bytes, in id order. Then the postings of each term, in term order, varint coded: the number of pages,
+ then for each page the difference of its id from the one before (the first from 0), the number of
+ positions and the differences between its positions (the first from 0). Then the dictionary: the term
+ count (int) and for each term the term (UTF) and the offset of its postings (long). Last the offset of
+ the dictionary (long).
+*/
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+public class IndexSegment {
+    private static final int MAGIC = 0x50494458;    // "PIDX"
+    private static final int VERSION = 1;
+
+    private final File file;
+    private final int level;
+    private final int[] pageIds;                // The pages of the segment, ascending
+    private final String[] urls;                // The url of each page
+    private final String[] terms;               // The terms, sorted
+    private final long[] offsets;               // Where the postings of each term start, and the dictionary
+
+    /**
+     * The pages a term occurs in and its positions in each, as the ints page id, position count and
+     * the positions for each page, in page order. Built one position at a time, or read from a segment.
+     */
+    public static class Postings {
+        int[] data = new int[8];
+        int size = 0;
+        int pageCount = 0;
+        private int countAt = -1;       // Where the position count of the last page is
+
+        /**
+         * @param page		The page, not less than the last one added
+         * @param position	The position in the page, greater than the last one added for the page
+         */
+        public void add(int page, int position) {
+            if (countAt < 0 || data[countAt - 1] != page) {
+                ensure(3);
+                data[size++] = page;
+                countAt = size++;
+                data[countAt] = 0;
+                pageCount++;
+            } else {
+                ensure(1);
+            }
+            data[size++] = position;
+            data[countAt]++;
+        }
+
+        private void ensure(int room) {
+            if (size + room > data.length) {
+                data = Arrays.copyOf(data, Math.max(size + room, 2 * data.length));
+            }
+        }
+    }
+
+    private IndexSegment(File file, int level, int[] pageIds, String[] urls, String[] terms, long[] offsets) {
+        this.file = file;
+        this.level = level;
+        this.pageIds = pageIds;
+        this.urls = urls;
+        this.terms = terms;
+        this.offsets = offsets;
+    }
+
+    /**
+     * Reads the pages and the dictionary of a segment, the postings are read when asked for
+     * @param file	The segment file
+     * @return the segment
+     * @throws IOException if the file can't be read or is not a segment
+     */
+    public static IndexSegment open(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            DataInputStream header = new DataInputStream(new BufferedInputStream(Channels.newInputStream(in.getChannel()), 1 << 16));
+            if (header.readInt() != MAGIC) {
+                throw new IOException("Not an index segment: " + file);
+            }
+            int version = header.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported index segment version " + version + ": " + file);
+            }
+            int level = header.readInt();
+            int pageCount = header.readInt();
+            int[] pageIds = new int[pageCount];
+            String[] urls = new String[pageCount];
+            for (int i = 0; i < pageCount; i++) {
+                pageIds[i] = header.readInt();
+                byte[] utf8 = new byte[header.readInt()];
+                header.readFully(utf8);
+                urls[i] = new String(utf8, StandardCharsets.UTF_8);
+            }
+
+            in.seek(in.length() - 8);
+            long dictionary = in.readLong();
+            in.seek(dictionary);
+            DataInputStream dict = new DataInputStream(new BufferedInputStream(Channels.newInputStream(in.getChannel()), 1 << 16));
+            int termCount = dict.readInt();
+            String[] terms = new String[termCount];
+            long[] offsets = new long[termCount + 1];
+            for (int i = 0; i < termCount; i++) {
+                terms[i] = dict.readUTF();
+                offsets[i] = dict.readLong();
+            }
+            offsets[termCount] = dictionary;
+            return new IndexSegment(file, level, pageIds, urls, terms, offsets);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param term	A folded term, see PageIndex.terms()
+     * @return the pages the term occurs in, or null if it occurs in none of this segment
+     * @throws IOException if the segment can't be read
+     */
+    public Postings postings(String term) throws IOException {
+        int i = Arrays.binarySearch(terms, term);
+        if (i < 0) {
+            return null;
+        }
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            in.seek(offsets[i]);
+            int buffer = (int) Math.min(1 << 16, offsets[i + 1] - offsets[i]);
+            return decode(new BufferedInputStream(Channels.newInputStream(in.getChannel()), Math.max(buffer, 1)));
+        } finally {
+            in.close();
+        }
+    }
+
+    private static Postings decode(InputStream in) throws IOException {
+        Postings postings = new Postings();
+        int pageCount = readVarint(in);
+        int page = 0;
+        for (int i = 0; i < pageCount; i++) {
+            page += readVarint(in);
+            int count = readVarint(in);
+            postings.ensure(2 + count);
+            postings.data[postings.size++] = page;
+            postings.data[postings.size++] = count;
+            int position = 0;
+            for (int j = 0; j < count; j++) {
+                position += readVarint(in);
+                postings.data[postings.size++] = position;
+            }
+        }
+        postings.pageCount = pageCount;
+        return postings;
+    }
+
+    private static int readVarint(InputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Index segment postings cut short");
+            }
+            value |= (b & 0x7f) << shift;
+            if (b < 0x80) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Copies a varint from the postings of an input to the postings being written
+     * @return its value
+     */
+    private static int copyVarint(InputStream in, Writer writer) throws IOException {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Index segment postings cut short");
+            }
+            writer.appendByte(b);
+            value |= (b & 0x7f) << shift;
+            if (b < 0x80) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Writes a new segment, term by term in term order. The segment only appears under its name once finished.
+     */
+    public static class Writer {
+        private final File file;
+        private final File temp;
+        private final int level;
+        private final DataOutputStream out;
+        private final ByteArrayOutputStream encoded = new ByteArrayOutputStream(1 << 12);
+        private final List<String> terms = new ArrayList<String>();
+        private final List<Long> offsets = new ArrayList<Long>();
+        private final int[] pageIds;
+        private final String[] urls;
+        private long offset;
+
+        /**
+         * @param file		The segment file
+         * @param level		0 for a flushed segment, one more than the inputs for a merged one
+         * @param pageIds	The pages of the segment, ascending
+         * @param urls		The url of each page
+         * @throws IOException if the file can't be written
+         */
+        public Writer(File file, int level, int[] pageIds, String[] urls) throws IOException {
+            this.file = file;
+            this.temp = new File(file.getPath() + ".tmp");
+            this.level = level;
+            this.pageIds = pageIds;
+            this.urls = urls;
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(level);
+            out.writeInt(pageIds.length);
+            offset = 16;
+            for (int i = 0; i < pageIds.length; i++) {
+                byte[] utf8 = urls[i].getBytes(StandardCharsets.UTF_8);
+                out.writeInt(pageIds[i]);
+                out.writeInt(utf8.length);
+                out.write(utf8);
+                offset += 8 + utf8.length;
+            }
+        }
+
+        /**
+         * @param term		The next term, after the last one in term order
+         * @param postings	The pages it occurs in
+         */
+        public void add(String term, Postings postings) throws IOException {
+            startTerm(term);
+            encoded.reset();
+            writeVarint(encoded, postings.pageCount);
+            int[] data = postings.data;
+            int page = 0;
+            for (int i = 0; i < postings.size; ) {
+                int count = data[i + 1];
+                writeVarint(encoded, data[i] - page);
+                writeVarint(encoded, count);
+                page = data[i];
+                int position = 0;
+                for (int j = i + 2; j < i + 2 + count; j++) {
+                    writeVarint(encoded, data[j] - position);
+                    position = data[j];
+                }
+                i += 2 + count;
+            }
+            encoded.writeTo(out);
+            offset += encoded.size();
+        }
+
+        /**
+         * Starts the postings of the next term, to be written a byte or a varint at a time
+         * @param term	The next term, after the last one in term order
+         */
+        void startTerm(String term) {
+            terms.add(term);
+            offsets.add(offset);
+        }
+
+        void appendByte(int b) throws IOException {
+            out.write(b);
+            offset++;
+        }
+
+        void appendVarint(int value) throws IOException {
+            while ((value & ~0x7f) != 0) {
+                appendByte((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            appendByte(value);
+        }
+
+        /**
+         * Writes the dictionary and puts the segment in place
+         * @return the segment written
+         */
+        public IndexSegment finish() throws IOException {
+            try {
+                out.writeInt(terms.size());
+                for (int i = 0; i < terms.size(); i++) {
+                    out.writeUTF(terms.get(i));
+                    out.writeLong(offsets.get(i));
+                }
+                out.writeLong(offset);
+            } finally {
+                out.close();
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            long[] ends = new long[terms.size() + 1];
+            for (int i = 0; i < terms.size(); i++) {
+                ends[i] = offsets.get(i);
+            }
+            ends[terms.size()] = offset;
+            return new IndexSegment(file, level, pageIds, urls, terms.toArray(new String[terms.size()]), ends);
+        }
+
+        /**
+         * Gives up on the segment
+         */
+        public void abort() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // Deleted anyway
+            }
+            temp.delete();
+        }
+
+        private static void writeVarint(ByteArrayOutputStream to, int value) {
+            while ((value & ~0x7f) != 0) {
+                to.write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            to.write(value);
+        }
+    }
+
+    /**
+     * Merges neighbouring segments into one, the segments themselves are left as they are.
+     * The postings are streamed: each input is read once in term order, and the varint bytes of its postings
+     * of a term are copied as they are, but for the first page difference, which counts from the last page
+     * of the input before instead of from 0. So a term of any size takes no memory to merge.
+     * @param segments	The segments, in page order
+     * @param file		The file of the merged segment
+     * @return the merged segment
+     * @throws IOException if a segment can't be read or the merged one can't be written
+     */
+    public static IndexSegment merge(List<IndexSegment> segments, File file) throws IOException {
+        int pageCount = 0;
+        int level = 0;
+        for (IndexSegment segment : segments) {
+            pageCount += segment.pageIds.length;
+            level = Math.max(level, segment.level + 1);
+        }
+        int[] pageIds = new int[pageCount];
+        String[] urls = new String[pageCount];
+        int at = 0;
+        for (IndexSegment segment : segments) {
+            System.arraycopy(segment.pageIds, 0, pageIds, at, segment.pageIds.length);
+            System.arraycopy(segment.urls, 0, urls, at, segment.urls.length);
+            at += segment.pageIds.length;
+        }
+
+        RandomAccessFile[] ins = new RandomAccessFile[segments.size()];
+        InputStream[] postings = new InputStream[segments.size()];     // The postings of each segment, at its next term
+        int[] next = new int[segments.size()];     // The next term of each segment
+        int[] pages = new int[segments.size()];    // The number of pages of the next term in each segment, if it is the term merged
+        Writer writer = new Writer(file, level, pageIds, urls);
+        try {
+            for (int i = 0; i < ins.length; i++) {
+                ins[i] = new RandomAccessFile(segments.get(i).file, "r");
+                ins[i].seek(segments.get(i).offsets[0]);
+                postings[i] = new BufferedInputStream(Channels.newInputStream(ins[i].getChannel()), 1 << 16);
+            }
+            while (true) {
+                String term = null;
+                for (int i = 0; i < ins.length; i++) {
+                    String[] terms = segments.get(i).terms;
+                    if (next[i] < terms.length && (term == null || terms[next[i]].compareTo(term) < 0)) {
+                        term = terms[next[i]];
+                    }
+                }
+                if (term == null) {
+                    break;
+                }
+                long termPages = 0;
+                for (int i = 0; i < ins.length; i++) {
+                    IndexSegment segment = segments.get(i);
+                    pages[i] = next[i] < segment.terms.length && segment.terms[next[i]].equals(term) ? readVarint(postings[i]) : -1;
+                    termPages += Math.max(pages[i], 0);
+                }
+                if (termPages > Integer.MAX_VALUE) {
+                    throw new IOException("Too many pages for term " + term + " to merge into " + file);
+                }
+                writer.startTerm(term);
+                writer.appendVarint((int) termPages);
+                int page = 0;           // The last page written
+                for (int i = 0; i < ins.length; i++) {      // In page order, so the postings only need appending
+                    if (pages[i] < 0) {
+                        continue;
+                    }
+                    int first = readVarint(postings[i]);
+                    writer.appendVarint(first - page);
+                    page = first;
+                    for (int j = 0; j < pages[i]; j++) {
+                        if (j > 0) {
+                            page += copyVarint(postings[i], writer);
+                        }
+                        int count = copyVarint(postings[i], writer);
+                        for (int k = 0; k < count; k++) {
+                            copyVarint(postings[i], writer);
+                        }
+                    }
+                    next[i]++;
+                }
+            }
+            return writer.finish();
+        } catch (IOException e) {
+            writer.abort();
+            throw e;
+        } finally {
+            for (RandomAccessFile in : ins) {
+                if (in != null) {
+                    in.close();
+                }
+            }
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public int pageCount() {
+        return pageIds.length;
+    }
+
+    /**
+     * @return the id of the first page of the segment, or -1 if it has none
+     */
+    public int firstPage() {
+        return pageIds.length == 0 ? -1 : pageIds[0];
+    }
+
+    /**
+     * @return the id of the last page of the segment, or -1 if it has none
+     */
+    public int lastPage() {
+        return pageIds.length == 0 ? -1 : pageIds[pageIds.length - 1];
+    }
+
+    /**
+     * @param page	The id of a page of this segment
+     * @return its url, or null if the page is not in this segment
+     */
+    public String urlOf(int page) {
+        int i = Arrays.binarySearch(pageIds, page);
+        return i < 0 ? null : urls[i];
+    }
+
+    /**
+     * @return the urls of the pages, in page order
+     */
+    public String[] getURLs() {
+        return urls;
+    }
+
+    /**
+     * @return the ids of the pages, ascending
+     */
+    public int[] getPageIds() {
+        return pageIds;
+    }
+}
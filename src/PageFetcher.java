@@ -0,0 +1,49 @@
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Fetches pages for the crawler. Implementations must be safe to use from many threads
+ * and must not block the caller while the page is being fetched.
+ */
+public interface PageFetcher {
+
+    /**
+     * Starts fetching the given url, e.g. robots.txt. The body may be cut short if it is longer than
+     * anything but a page needs to be (see FetchResult.isTruncated())
+     * @param url	The URL to fetch
+     * @return a future completed with the response, or completed exceptionally
+     * with an IOException if the page could not be fetched
+     */
+    CompletableFuture<FetchResult> fetch(String url);
+
+    /**
+     * Starts fetching the given url with extra request headers, e.g. If-None-Match for a conditional request,
+     * the body may be cut short as by fetch(url)
+     * @param url		The URL to fetch
+     * @param headers	The headers to send, by name
+     * @return a future completed with the response, or completed exceptionally
+     * with an IOException if the page could not be fetched
+     */
+    CompletableFuture<FetchResult> fetch(String url, Map<String, String> headers);
+
+    /**
+     * Starts fetching a page for the parser. Unlike fetch(), the body is not read if the response headers
+     * show it is not something the parser can read (see FetchResult.isHtml()), and it is cut short once it
+     * is longer than the fetcher allows for a page, see FetchResult.isDropped() and FetchResult.isTruncated()
+     * @param url		The URL to fetch
+     * @param headers	The headers to send, by name
+     * @return a future completed with the response, or completed exceptionally
+     * with an IOException if the page could not be fetched
+     */
+    CompletableFuture<FetchResult> fetchPage(String url, Map<String, String> headers);
+
+    /**
+     * @return the number of fetches started but not yet completed
+     */
+    int inFlight();
+
+    /**
+     * Releases the connections held by the fetcher
+     */
+    void close();
+}
@@ -0,0 +1,20 @@
+/**
+ * Receives the content of a page as the streaming parser finds it, see StreamingHTMLParser.
+ */
+public interface PageHandler {
+
+    /**
+     * Called for each http(s) link, in document order
+     * @param url			The absolute URL of the link
+     * @param anchorText	The text of the anchor, with whitespace normalized
+     */
+    void link(String url, String anchorText);
+
+    /**
+     * Called with consecutive chunks of the page text. Whitespace is already normalized,
+     * so the concatenation of all chunks is the text of the page. The chunk is only valid
+     * during the call.
+     * @param chunk		The next piece of text
+     */
+    void text(CharSequence chunk);
+}
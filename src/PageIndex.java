@@ -0,0 +1,366 @@
+/*
+ An inverted index of the text of the pages crawled, kept on disk so other phrases can be looked up later
+ without crawling again (see IndexQuery). The text is folded like the query is matched (see TextFolder),
+ e.g. Icelandic þ to th, and split into terms, runs of letters and digits. The index keeps the position
+ of each term in each page, so a phrase is found as its terms one after the other.
+
+ The index is built as the crawl goes. The workers only put the pages on a DropQueue, which may take up
+ QUEUE_SHARE of maxBufferBytes, so they never wait for the indexer. An indexer thread splits the pages into
+ terms and collects their positions in memory. Once they take up about the rest of maxBufferBytes, they are handed to a writer thread, which writes
+ them as a new segment (see IndexSegment) while the indexer goes on with the next pages.
+
+ The writer thread also merges the segments, so a query does not have to look in too many of them:
+ each flushed segment is on level 0, and once the last MERGE_FACTOR segments are on the same level they
+ are merged into one on the next level. Each segment is merged about log(pages) / log(MERGE_FACTOR) times.
+ The merged segment is put in place before its inputs are deleted, so a crawl that stops in between leaves
+ both: an index is opened without the segments whose pages are all within the range of another segment.
+
+ An index can be added to by later crawls, the pages get ids following the ones already indexed.
+ A page indexed again replaces the earlier version when queried.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class PageIndex {
+    private static final double QUEUE_SHARE = 0.25;     // The part of maxBufferBytes the pages waiting to be indexed may take
+    private static final int MERGE_FACTOR = 8;          // Merge this many segments on the same level
+    private static final int MAX_TERM_LENGTH = 64;      // Longer terms take up a position but are not indexed
+    private static final int TERM_OVERHEAD = 96;        // About the bytes a term takes in memory, besides its positions
+
+    private final File dir;
+    private final TextFolder folder;
+    private final long maxBufferBytes;          // Write a segment once the positions collected take up this much
+    private final DropQueue<ParsedPage> queue;  // The pages waiting to be indexed
+    private final Thread indexer;
+    private final ExecutorService writer;       // Writes and merges the segments, one at a time
+    private final List<IndexSegment> segments;  // In page order, guarded by the writer thread
+    private volatile boolean closed = false;
+    private int nextPage;                       // The id of the next page indexed
+    private int nextFile;                       // Used to name the segment files
+    private final AtomicLong indexed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile IOException failure;       // Stops the indexer, set by the writer thread
+    private boolean debug = false;
+
+    /**
+     * The pages collected in memory for the next segment
+     */
+    private static class Buffer {
+        final List<Integer> pageIds = new ArrayList<Integer>();
+        final List<String> urls = new ArrayList<String>();
+        final HashMap<String, IndexSegment.Postings> terms = new HashMap<String, IndexSegment.Postings>();
+        long bytes = 0;
+    }
+
+    /**
+     * @param dir				The directory of the index, created if need be, an index in it is added to
+     * @param folder			Folds the text of the pages, the same folder must be used for queries
+     * @param maxBufferBytes	About the memory (bytes) the pages not yet written may take
+     * @param debug				Print diagnostic output
+     * @throws IOException if the directory can't be created or the index in it can't be read
+     */
+    public PageIndex(File dir, TextFolder folder, long maxBufferBytes, boolean debug) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        this.dir = dir;
+        this.folder = folder;
+        long maxQueueBytes = (long) (maxBufferBytes * QUEUE_SHARE);
+        this.maxBufferBytes = maxBufferBytes - maxQueueBytes;
+        queue = new DropQueue<ParsedPage>(maxQueueBytes, new DropQueue.Sizer<ParsedPage>() {
+            @Override
+            public long sizeOf(ParsedPage page) {
+                return 2 * (page.getURL().length() + (long) page.getBody().length()) + TERM_OVERHEAD;    // Its url and text
+            }
+        });
+        this.debug = debug;
+        segments = openSegments(dir);
+        for (IndexSegment segment : segments) {
+            nextPage = Math.max(nextPage, segment.lastPage() + 1);
+            nextFile = Math.max(nextFile, fileNumber(segment.getFile()) + 1);
+        }
+        writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "index-writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        indexer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                indexAll();
+            }
+        }, "page-indexer");
+        indexer.setDaemon(true);
+        indexer.start();
+    }
+
+    /**
+     * Reads the segments of an index. A segment whose page range is within that of another is the input
+     * of a merge that stopped before it could be deleted, and is deleted now.
+     * @param dir	The directory of the index
+     * @return the segments, in page order
+     * @throws IOException if a segment can't be read
+     */
+    public static List<IndexSegment> openSegments(File dir) throws IOException {
+        List<IndexSegment> segments = new ArrayList<IndexSegment>();
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return segments;
+        }
+        for (File file : files) {
+            if (file.getName().startsWith("segment-") && file.getName().endsWith(".idx")) {
+                segments.add(IndexSegment.open(file));
+            } else if (file.getName().endsWith(".idx.tmp")) {
+                file.delete();      // Left by a crawl that stopped while writing it
+            }
+        }
+        Collections.sort(segments, new Comparator<IndexSegment>() {
+            @Override
+            public int compare(IndexSegment a, IndexSegment b) {
+                if (a.firstPage() != b.firstPage()) {
+                    return Integer.compare(a.firstPage(), b.firstPage());
+                }
+                if (a.lastPage() != b.lastPage()) {
+                    return Integer.compare(b.lastPage(), a.lastPage());     // A merged segment before its first input
+                }
+                return Integer.compare(b.getLevel(), a.getLevel());
+            }
+        });
+        int lastPage = -1;      // The last page of the segments kept so far
+        for (Iterator<IndexSegment> i = segments.iterator(); i.hasNext(); ) {
+            IndexSegment segment = i.next();
+            if (segment.lastPage() <= lastPage) {
+                i.remove();
+                segment.getFile().delete();
+            } else {
+                lastPage = segment.lastPage();
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Queues the page to be indexed, never waits
+     * @param page	The page
+     * @return false if the page was dropped because the indexer is behind or has failed
+     */
+    public boolean add(ParsedPage page) {
+        if (closed || failure != null || !queue.offer(page)) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private void indexAll() {
+        Buffer buffer = new Buffer();
+        Future<?> writing = null;       // The last segment handed to the writer
+        try {
+            while ((!closed || !queue.isEmpty()) && failure == null) {
+                ParsedPage page = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (page == null) {
+                    continue;
+                }
+                index(buffer, page);
+                indexed.incrementAndGet();
+                if (buffer.bytes >= maxBufferBytes) {
+                    if (writing != null) {
+                        writing.get();      // At most one buffer waits to be written
+                    }
+                    writing = write(buffer);
+                    buffer = new Buffer();
+                }
+            }
+            if (!buffer.pageIds.isEmpty() && failure == null) {
+                write(buffer);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // The writer has recorded the failure
+        }
+        writer.shutdown();
+    }
+
+    private void index(Buffer buffer, ParsedPage page) {
+        int id = nextPage++;
+        buffer.pageIds.add(id);
+        buffer.urls.add(page.getURL());
+        buffer.bytes += 2 * page.getURL().length() + TERM_OVERHEAD;
+        List<String> terms = terms(folder, page.getBody());
+        for (int position = 0; position < terms.size(); position++) {
+            String term = terms.get(position);
+            if (term == null) {
+                continue;
+            }
+            IndexSegment.Postings postings = buffer.terms.get(term);
+            if (postings == null) {
+                postings = new IndexSegment.Postings();
+                buffer.terms.put(term, postings);
+                buffer.bytes += TERM_OVERHEAD + 2 * term.length();
+            }
+            int before = postings.data.length;
+            postings.add(id, position);
+            buffer.bytes += 4 * (postings.data.length - before);
+        }
+    }
+
+    /**
+     * Hands the buffer to the writer thread, which writes it as a segment and merges the segments if need be
+     */
+    private Future<?> write(final Buffer buffer) {
+        return writer.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (failure != null) {
+                    return;
+                }
+                try {
+                    flush(buffer);
+                    mergeTail();
+                } catch (IOException e) {
+                    failure = e;
+                    System.out.println("Could not write the page index in " + dir + ": " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    private void flush(Buffer buffer) throws IOException {
+        int[] pageIds = new int[buffer.pageIds.size()];
+        for (int i = 0; i < pageIds.length; i++) {
+            pageIds[i] = buffer.pageIds.get(i);
+        }
+        String[] terms = buffer.terms.keySet().toArray(new String[buffer.terms.size()]);
+        Arrays.sort(terms);
+        IndexSegment.Writer segment = new IndexSegment.Writer(newFile(), 0, pageIds,
+                buffer.urls.toArray(new String[buffer.urls.size()]));
+        try {
+            for (String term : terms) {
+                segment.add(term, buffer.terms.get(term));
+            }
+        } catch (IOException e) {
+            segment.abort();
+            throw e;
+        }
+        segments.add(segment.finish());
+        if (debug) System.out.println("PageIndex-Wrote " + pageIds.length + " pages, " + terms.length + " terms");
+    }
+
+    /**
+     * Merges the last MERGE_FACTOR segments while they are on the same level
+     */
+    private void mergeTail() throws IOException {
+        while (segments.size() >= MERGE_FACTOR) {
+            List<IndexSegment> tail = segments.subList(segments.size() - MERGE_FACTOR, segments.size());
+            int level = tail.get(0).getLevel();
+            for (IndexSegment segment : tail) {
+                if (segment.getLevel() != level) {
+                    return;
+                }
+            }
+            long start = System.currentTimeMillis();
+            IndexSegment merged = IndexSegment.merge(tail, newFile());
+            for (IndexSegment segment : tail) {
+                if (!segment.getFile().delete() && debug) {
+                    System.out.println("PageIndex-Could not delete " + segment.getFile());
+                }
+            }
+            tail.clear();
+            segments.add(merged);
+            if (debug) System.out.println("PageIndex-Merged " + MERGE_FACTOR + " segments of level " + level + ", "
+                    + merged.pageCount() + " pages, in " + (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    private File newFile() {
+        return new File(dir, String.format("segment-%06d.idx", nextFile++));
+    }
+
+    private static int fileNumber(File file) {
+        String name = file.getName();
+        try {
+            return Integer.parseInt(name.substring("segment-".length(), name.length() - ".idx".length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Splits a text into terms: it is folded with the folder, and each run of letters and digits is a term.
+     * @param folder	Folds the text
+     * @param text		The text
+     * @return the terms in the order they occur, the position of each term is its index,
+     * null for a term too long to index
+     */
+    public static List<String> terms(TextFolder folder, CharSequence text) {
+        List<String> terms = new ArrayList<String>();
+        StringBuilder term = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            if (i < text.length()) {
+                char c = text.charAt(i);
+                char f = folder.fold(c);
+                if (f != 0) {
+                    if (Character.isLetterOrDigit(f)) {
+                        term.append(f);
+                        continue;
+                    }
+                } else {
+                    String folded = folder.multiFold(c);
+                    if (!folded.isEmpty()) {
+                        term.append(folded);
+                        continue;
+                    }
+                }
+            }
+            if (term.length() > 0) {
+                terms.add(term.length() <= MAX_TERM_LENGTH ? term.toString() : null);
+                term.setLength(0);
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Indexes the pages still queued, writes the last segment and waits for the writer to finish
+     */
+    public void close() {
+        closed = true;
+        try {
+            indexer.join();
+            writer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the number of pages indexed, some may not be written if the index failed
+     */
+    public long indexedCount() {
+        return indexed.get();
+    }
+
+    public long droppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of segments, call after close()
+     */
+    public int segmentCount() {
+        return segments.size();
+    }
+}
@@ -0,0 +1,34 @@
+/**
+ * A link found on a page: the absolute URL it points to and the text of the anchor. Immutable.
+ */
+public class PageLink {
+    private final String url;
+    private final String anchorText;
+
+    public PageLink(String url, String anchorText) {
+        this.url = url;
+        this.anchorText = anchorText;
+    }
+
+    /**
+     * @return the absolute URL of the link
+     */
+    public String getURL() {
+        return url;
+    }
+
+    /**
+     * @param url	An absolute URL
+     * @return true if the URL is an http or https URL, the only ones the crawler fetches
+     */
+    public static boolean isHttp(String url) {
+        return url.regionMatches(true, 0, "http://", 0, 7) || url.regionMatches(true, 0, "https://", 0, 8);
+    }
+
+    /**
+     * @return the text of the anchor, with whitespace normalized, possibly empty
+     */
+    public String getAnchorText() {
+        return anchorText;
+    }
+}
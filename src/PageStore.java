@@ -0,0 +1,433 @@
+/*
+ What the last crawls learned about each page, kept on disk between crawls so a recrawl can skip what hasn't changed.
+ For each url the store keeps the validators of the last response (ETag and Last-Modified), a hash of its body,
+ which of the queries were found in it, when it was fetched and how often it was found changed.
+ The store records the queries it was written for, and keeps the queries found in a page as a bitset over them.
+ A crawl looking for the same queries in another order gets the bits moved to its own order; when it looks for
+ a query the store was not written for, what the store knows about a page being relevant is ignored and the
+ page is fetched in full and parsed again.
+ A recrawl sends the validators with a conditional request, so an unchanged page costs a 304 Not Modified
+ instead of the page, and a page whose body hashes the same as last time is not parsed again either way.
+ The pages of the last crawls are queued again at the start of a recrawl, those most likely to have changed first.
+ A page whose last fetch was answered with a client error, e.g. 404 Not Found or 410 Gone, is not queued again.
+
+ The change rate of a page is estimated from its visits: a page found changed on X of n visits, I apart on average,
+ changes about -ln((n - X + 0.5) / (n + 0.5)) / I times per unit of time (Cho and Garcia-Molina's estimator, which
+ unlike X / (n I) allows for several changes between two visits). Only the last 32 visits are counted, so a page
+ that changes more or less often than it used to is soon estimated by how it changes now.
+ Changes are then taken to come at random, so the page has changed since the last visit, t ago, with
+ probability 1 - exp(-rate * t).
+
+ File layout: magic (int), version (int), the number of queries (int) and each query (string),
+ the number of pages (int), then for each page the url, etag and
+ last modified (string, empty if none), body hash (long), first fetched and last fetched (long, ms),
+ fetches and changes (int), change history (int, a bit for each of the last 32 fetches, 1 if changed),
+ the queries found in the page (int, the number of longs of the bitset, -1 if not known, then the longs, a bit for
+ each query in the order of the header) and the status of the last response (int). A string is its length in bytes (int)
+ followed by its UTF-8 bytes, so there is no limit to the length of a url.
+*/
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class PageStore {
+    private static final int MAGIC = 0x50475354;    // "PGST"
+    private static final int VERSION = 1;
+    private static final int MAX_STRING = 1 << 24;  // Longer strings are taken to be a damaged file
+
+    private final ConcurrentHashMap<String, Page> pages = new ConcurrentHashMap<String, Page>();
+    private final List<String> queries;             // The queries of the crawl, the bits of the relevant bitsets
+    private boolean debug = false;
+
+    /**
+     * What is known about a page. Guarded by its own monitor.
+     */
+    public static class Page {
+        private String etag;            // The ETag of the last response, null if none
+        private String lastModified;    // The Last-Modified of the last response, null if none
+        private long bodyHash;
+        private long firstFetched;      // When (ms) the page was first fetched
+        private long lastFetched;
+        private int fetches;
+        private int changes;            // The number of fetches that found the page changed, not counting the first
+        private int history;            // A bit for each of the last 32 fetches, 1 if changed, newest lowest
+        private long[] relevant;        // A bit for each query found in the page, null if it was last parsed for other queries
+        private int status = 200;       // The status of the last response, 200 for a 304 Not Modified
+
+        public synchronized String getEtag() {
+            return etag;
+        }
+
+        public synchronized String getLastModified() {
+            return lastModified;
+        }
+
+        public synchronized long getBodyHash() {
+            return bodyHash;
+        }
+
+        /**
+         * @return true if a query of the crawl was found in the page when it was last parsed
+         */
+        public synchronized boolean isRelevant() {
+            if (relevant != null) {
+                for (long bits : relevant) {
+                    if (bits != 0) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @param query	The index of the query among the queries of the crawl
+         * @return true if the query was found in the page when it was last parsed
+         */
+        public synchronized boolean isRelevant(int query) {
+            return relevant != null && query >> 6 < relevant.length && (relevant[query >> 6] & 1L << query) != 0;
+        }
+
+        /**
+         * @return false if the page was last parsed for other queries, so it must be parsed again to know if it is relevant
+         */
+        public synchronized boolean isRelevanceKnown() {
+            return relevant != null;
+        }
+
+        public synchronized int getFetches() {
+            return fetches;
+        }
+
+        public synchronized int getChanges() {
+            return changes;
+        }
+
+        public synchronized long getLastFetched() {
+            return lastFetched;
+        }
+
+        public synchronized int getStatus() {
+            return status;
+        }
+
+        /**
+         * @return true if the last fetch of the page was answered with a client error, e.g. 404 Not Found,
+         * so it is not worth fetching again
+         */
+        public synchronized boolean isGone() {
+            return status >= 400 && status < 500 && status != 408 && status != 429;
+        }
+
+        /**
+         * @return the estimated number of changes per ms over the last 32 visits, 0 until the page has been fetched twice
+         */
+        public synchronized double getChangeRate() {
+            if (fetches < 2 || lastFetched <= firstFetched) {
+                return 0;
+            }
+            double interval = (double) (lastFetched - firstFetched) / (fetches - 1);
+            int visits = Math.min(fetches - 1, 32);
+            int changed = Integer.bitCount(visits == 32 ? history : history & ((1 << visits) - 1));
+            return -Math.log((visits - changed + 0.5) / (visits + 0.5)) / interval;
+        }
+
+        /**
+         * @param now	The time (ms)
+         * @return the probability that the page has changed since it was last fetched
+         */
+        public synchronized double getChangeProbability(long now) {
+            if (fetches < 2) {
+                return 0.5;     // Nothing to go by yet
+            }
+            return 1 - Math.exp(-getChangeRate() * Math.max(0, now - lastFetched));
+        }
+
+        synchronized void fetched(long time, boolean changed) {
+            if (fetches == 0) {
+                firstFetched = time;
+            } else if (changed) {
+                changes++;
+            }
+            fetches++;
+            lastFetched = time;
+            history = history << 1 | (changed && fetches > 1 ? 1 : 0);
+            status = 200;
+        }
+    }
+
+    /**
+     * @param queries	The queries of the crawl, in the order of the bits of the relevant bitsets
+     * @param debug		Print diagnostic output
+     */
+    public PageStore(List<String> queries, boolean debug) {
+        this.queries = new ArrayList<String>(queries);
+        this.debug = debug;
+    }
+
+    /**
+     * @param url	The canonical url
+     * @return what is known about the page, or null if it has never been fetched
+     */
+    public Page get(String url) {
+        return pages.get(url);
+    }
+
+    /**
+     * Records a full response to a fetch of the page, once the page has been parsed
+     * @param url			The canonical url
+     * @param etag			The ETag of the response, or null
+     * @param lastModified	The Last-Modified of the response, or null
+     * @param bodyHash		The hash of the body, see hashOf()
+     * @param relevant		The queries found in the page, by their index among the queries of the crawl
+     * @param time			When (ms) the page was fetched
+     * @return true if the page is new or has changed since it was last fetched
+     */
+    public boolean fetched(String url, String etag, String lastModified, long bodyHash, BitSet relevant, long time) {
+        Page page = pageOf(url);
+        synchronized (page) {
+            boolean changed = page.fetches == 0 || page.bodyHash != bodyHash;
+            page.etag = etag;
+            page.lastModified = lastModified;
+            page.bodyHash = bodyHash;
+            page.relevant = relevant.toLongArray();
+            page.fetched(time, changed);
+            return changed;
+        }
+    }
+
+    /**
+     * Records a full response to a fetch of a page fetched before, whose body is the same as last time
+     * so it was not parsed again
+     * @param url			The canonical url
+     * @param etag			The ETag of the response, or null
+     * @param lastModified	The Last-Modified of the response, or null
+     * @param time			When (ms) the page was fetched
+     */
+    public void unchanged(String url, String etag, String lastModified, long time) {
+        Page page = pageOf(url);
+        synchronized (page) {
+            page.etag = etag;
+            page.lastModified = lastModified;
+            page.fetched(time, false);
+        }
+    }
+
+    /**
+     * Records a 304 Not Modified answer to a conditional fetch of the page
+     * @param url	The canonical url
+     * @param time	When (ms) the page was fetched
+     */
+    public void notModified(String url, long time) {
+        pageOf(url).fetched(time, false);
+    }
+
+    /**
+     * Records an error answer to a fetch of a page fetched before, e.g. 404 Not Found.
+     * The visit is not counted for the change rate.
+     * @param url		The canonical url
+     * @param status	The status of the response
+     * @return true if the page was known
+     */
+    public boolean failed(String url, int status) {
+        Page page = pages.get(url);
+        if (page == null) {
+            return false;   // Only the pages fetched before are queued again
+        }
+        synchronized (page) {
+            page.status = status;
+        }
+        return true;
+    }
+
+    private Page pageOf(String url) {
+        Page page = pages.get(url);
+        if (page == null) {
+            Page created = new Page();
+            page = pages.putIfAbsent(url, created);
+            if (page == null) {
+                page = created;
+            }
+        }
+        return page;
+    }
+
+    /**
+     * @return the pages known, by url
+     */
+    public Map<String, Page> getPages() {
+        return pages;
+    }
+
+    public int size() {
+        return pages.size();
+    }
+
+    /**
+     * FNV-1a over the bytes of the body, followed by a final mix
+     * @param body	The raw body of a response
+     * @return the hash of the body
+     */
+    public static long hashOf(byte[] body) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : body) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return URLFingerprint.mix(hash);
+    }
+
+    /**
+     * Loads the pages saved by an earlier crawl
+     * @param file	The store file, nothing is loaded if it does not exist
+     * @return the number of pages loaded
+     * @throws IOException if the file can't be read
+     */
+    public int load(File file) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        int count;
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a page store: " + file);
+            }
+            List<String> stored = new ArrayList<String>();
+            int queryCount = in.readInt();
+            for (int i = 0; i < queryCount; i++) {
+                stored.add(readString(in));
+            }
+            int[] storedIndex = new int[queries.size()];    // The bit of each query of the crawl in the stored bitsets
+            boolean known = true;
+            for (int i = 0; i < storedIndex.length; i++) {
+                storedIndex[i] = stored.indexOf(queries.get(i));
+                known &= storedIndex[i] >= 0;
+            }
+            boolean sameOrder = stored.equals(queries);
+            if (debug && !known) System.out.println("PageStore-Written for other queries " + stored + ", its pages are parsed again");
+            count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String url = readString(in);
+                Page page = new Page();
+                page.etag = emptyToNull(readString(in));
+                page.lastModified = emptyToNull(readString(in));
+                page.bodyHash = in.readLong();
+                page.firstFetched = in.readLong();
+                page.lastFetched = in.readLong();
+                page.fetches = in.readInt();
+                page.changes = in.readInt();
+                page.history = in.readInt();
+                int words = in.readInt();
+                if (words > (stored.size() + 63) >> 6) {
+                    throw new IOException("Damaged page store, a bitset of " + words + " longs");
+                }
+                long[] relevant = null;
+                if (words >= 0) {
+                    relevant = new long[words];
+                    for (int j = 0; j < words; j++) {
+                        relevant[j] = in.readLong();
+                    }
+                }
+                page.relevant = relevant == null || !known ? null : sameOrder ? relevant : reorder(relevant, storedIndex);
+                page.status = in.readInt();
+                pages.put(url, page);
+            }
+        } finally {
+            in.close();
+        }
+        if (debug) System.out.println("PageStore-Loaded " + count + " pages from " + file);
+        return count;
+    }
+
+    /**
+     * Saves all pages, replacing the file only once all of them have been written
+     * @param file	The store file
+     * @throws IOException if the file can't be written
+     */
+    public void save(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(queries.size());
+            for (String query : queries) {
+                writeString(out, query);
+            }
+            out.writeInt(pages.size());     // No pages are added while the store is saved
+            for (Map.Entry<String, Page> entry : pages.entrySet()) {
+                Page page = entry.getValue();
+                synchronized (page) {
+                    writeString(out, entry.getKey());
+                    writeString(out, page.etag == null ? "" : page.etag);
+                    writeString(out, page.lastModified == null ? "" : page.lastModified);
+                    out.writeLong(page.bodyHash);
+                    out.writeLong(page.firstFetched);
+                    out.writeLong(page.lastFetched);
+                    out.writeInt(page.fetches);
+                    out.writeInt(page.changes);
+                    out.writeInt(page.history);
+                    if (page.relevant == null) {
+                        out.writeInt(-1);
+                    } else {
+                        out.writeInt(page.relevant.length);
+                        for (long bits : page.relevant) {
+                            out.writeLong(bits);
+                        }
+                    }
+                    out.writeInt(page.status);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @param stored		A bitset over the queries of the store file
+     * @param storedIndex	The bit of each query of the crawl in that bitset
+     * @return the bitset over the queries of the crawl
+     */
+    private static long[] reorder(long[] stored, int[] storedIndex) {
+        BitSet bits = new BitSet(storedIndex.length);
+        for (int i = 0; i < storedIndex.length; i++) {
+            int bit = storedIndex[i];
+            if (bit >> 6 < stored.length && (stored[bit >> 6] & 1L << bit) != 0) {
+                bits.set(i);
+            }
+        }
+        return bits.toLongArray();
+    }
+
+    /**
+     * Writes the length of the string in bytes and its UTF-8 bytes, unlike writeUTF() there is no limit to the length
+     */
+    private static void writeString(DataOutput out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_STRING) {
+            throw new IOException("Damaged page store, a string of " + length + " bytes");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String emptyToNull(String value) {
+        return value.isEmpty() ? null : value;
+    }
+}
@@ -0,0 +1,67 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of fetching and parsing a single page: its absolute http(s) links
+ * and the text of its body. Immutable, so it can be handed between threads freely.
+ */
+public class ParsedPage {
+    private final String url;
+    private final List<PageLink> links;
+    private final String body;
+
+    public ParsedPage(String url, List<PageLink> links, String body) {
+        this.url = url;
+        this.links = Collections.unmodifiableList(new ArrayList<PageLink>(links));
+        this.body = body;
+    }
+
+    public String getURL() {
+        return url;
+    }
+
+    /**
+     * @return the links found on the page
+     */
+    public List<PageLink> getLinks() {
+        return links;
+    }
+
+    /**
+     * @return the text of the page body
+     */
+    public String getBody() {
+        return body;
+    }
+
+    /**
+     * Collects the output of the streaming parser into a ParsedPage. The whole text is kept, as long as the body
+     * of the page, the callers need all of it; a PageHandler of their own can look at the chunks instead.
+     */
+    public static class Builder implements PageHandler {
+        private final String url;
+        private final List<PageLink> links = new ArrayList<PageLink>();
+        private final StringBuilder body = new StringBuilder();
+
+        public Builder(String url) {
+            this.url = url;
+        }
+
+        public void link(String url, String anchorText) {
+            links.add(new PageLink(url, anchorText));
+        }
+
+        public void text(CharSequence chunk) {
+            body.append(chunk);
+        }
+
+        public ParsedPage build() {
+            int end = body.length();
+            if (end > 0 && body.charAt(end - 1) == ' ') {
+                body.setLength(end - 1);
+            }
+            return new ParsedPage(url, links, body.toString());
+        }
+    }
+}
@@ -0,0 +1,264 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.TreeSet;
+
+/**
+ * Finds any number of patterns (the query words, the query phrase, the topic...) in a text in a single pass.
+ * The patterns are compiled into an Aho-Corasick automaton with every transition precomputed, so scanning
+ * costs one table lookup per character no matter how many patterns there are. The text is folded on the fly
+ * with a TextFolder while it is scanned, so it is never copied, lower cased or converted first.
+ * The matcher is immutable and can be shared by all workers, each scan keeps its own state (see Scan).
+ */
+public class QueryMatcher {
+    private final TextFolder folder;
+    private final int patternCount;
+    private final int width;                // Number of symbols, symbol 0 is any character not in a pattern
+    private final int[] delta;              // The next state for state*width + symbol
+    private final int[][] outputs;          // The patterns found when entering each state, null if none
+    private final int[] asciiSymbols;       // The symbol of each ASCII character
+    private final char[] otherChars;        // The other characters found in the patterns, sorted
+    private final int[] otherSymbols;       // The symbol of each of the other characters
+
+    /**
+     * Collects the patterns to match, the matcher is then compiled with build()
+     */
+    public static class Builder {
+        private final TextFolder folder;
+        private final List<String> patterns = new ArrayList<String>();
+
+        public Builder(TextFolder folder) {
+            this.folder = folder;
+        }
+
+        /**
+         * @param pattern	The text to find, it is folded the same way as the text scanned
+         * @return the id of the pattern, used to ask a Scan whether it was found
+         */
+        public int add(String pattern) {
+            patterns.add(folder.fold(pattern));
+            return patterns.size() - 1;
+        }
+
+        public QueryMatcher build() {
+            return new QueryMatcher(folder, patterns);
+        }
+    }
+
+    private QueryMatcher(TextFolder folder, List<String> patterns) {
+        this.folder = folder;
+        patternCount = patterns.size();
+
+        // Give each distinct character of the patterns its own symbol
+        TreeSet<Character> alphabet = new TreeSet<Character>();
+        for (String pattern : patterns) {
+            for (int i = 0; i < pattern.length(); i++) {
+                alphabet.add(pattern.charAt(i));
+            }
+        }
+        width = alphabet.size() + 1;
+        asciiSymbols = new int[128];
+        List<Character> others = new ArrayList<Character>();
+        int symbol = 1;
+        for (char c : alphabet) {
+            if (c < 128) {
+                asciiSymbols[c] = symbol;
+            } else {
+                others.add(c);
+            }
+            symbol++;
+        }
+        otherChars = new char[others.size()];
+        otherSymbols = new int[others.size()];
+        for (int i = 0; i < otherChars.length; i++) {
+            otherChars[i] = others.get(i);
+            otherSymbols[i] = alphabet.headSet(otherChars[i]).size() + 1;
+        }
+
+        // Build the trie of the patterns, -1 for a missing transition
+        List<int[]> rows = new ArrayList<int[]>();
+        List<int[]> found = new ArrayList<int[]>();
+        rows.add(newRow());
+        found.add(null);
+        for (int p = 0; p < patternCount; p++) {
+            String pattern = patterns.get(p);
+            int state = 0;
+            for (int i = 0; i < pattern.length(); i++) {
+                int s = symbolOf(pattern.charAt(i));
+                if (rows.get(state)[s] < 0) {
+                    rows.get(state)[s] = rows.size();
+                    rows.add(newRow());
+                    found.add(null);
+                }
+                state = rows.get(state)[s];
+            }
+            found.set(state, merge(found.get(state), new int[] { p }));
+        }
+
+        // Breadth first, fill in the missing transitions from the failure state of each state,
+        // which is the state of the longest proper suffix that is also in the trie
+        int[] fail = new int[rows.size()];
+        Queue<Integer> queue = new LinkedList<Integer>();
+        int[] root = rows.get(0);
+        for (int s = 0; s < width; s++) {
+            if (root[s] < 0) {
+                root[s] = 0;
+            } else {
+                fail[root[s]] = 0;
+                queue.add(root[s]);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            int[] row = rows.get(state);
+            int[] failRow = rows.get(fail[state]);
+            for (int s = 0; s < width; s++) {
+                int next = row[s];
+                if (next < 0) {
+                    row[s] = failRow[s];
+                } else {
+                    fail[next] = failRow[s];
+                    found.set(next, merge(found.get(next), found.get(fail[next])));
+                    queue.add(next);
+                }
+            }
+        }
+
+        delta = new int[rows.size() * width];
+        outputs = new int[rows.size()][];
+        for (int state = 0; state < rows.size(); state++) {
+            System.arraycopy(rows.get(state), 0, delta, state * width, width);
+            outputs[state] = found.get(state);
+        }
+    }
+
+    private int[] newRow() {
+        int[] row = new int[width];
+        Arrays.fill(row, -1);           // Symbol 0 never gets a child, so it always leads back to the root
+        return row;
+    }
+
+    private static int[] merge(int[] a, int[] b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        int[] merged = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, merged, a.length, b.length);
+        return merged;
+    }
+
+    private int symbolOf(char c) {
+        if (c < 128) {
+            return asciiSymbols[c];
+        }
+        int i = Arrays.binarySearch(otherChars, c);
+        return i < 0 ? 0 : otherSymbols[i];
+    }
+
+    /**
+     * @return the number of patterns
+     */
+    public int size() {
+        return patternCount;
+    }
+
+    /**
+     * Scans the whole text
+     * @param text	The text to scan
+     * @return which patterns were found in the text
+     */
+    public Scan scan(CharSequence text) {
+        Scan scan = new Scan();
+        scan.feed(text);
+        return scan;
+    }
+
+    /**
+     * @return a new scan, to feed a text to a chunk at a time
+     */
+    public Scan newScan() {
+        return new Scan();
+    }
+
+    /**
+     * The state of scanning one text. A pattern is found even if it spans two chunks.
+     * Not thread-safe, each text should be scanned by one thread.
+     */
+    public class Scan {
+        private final boolean[] found = new boolean[patternCount];
+        private int remaining = patternCount;   // Number of patterns not found yet, the scan stops at 0
+        private int state = 0;
+        private boolean space = false;          // true if the last character was whitespace
+
+        private Scan() {
+            if (outputs[0] != null) {
+                mark(outputs[0]);               // Empty patterns are found in any text
+            }
+        }
+
+        /**
+         * Scans the next chunk of the text
+         * @param chunk	The characters following the last chunk
+         */
+        public void feed(CharSequence chunk) {
+            int s = state;
+            for (int i = 0; i < chunk.length() && remaining > 0; i++) {
+                char c = chunk.charAt(i);
+                char f = folder.fold(c);
+                if (f == ' ') {
+                    if (space) continue;    // Runs of whitespace match a single space
+                    space = true;
+                } else {
+                    space = false;
+                }
+                if (f != 0) {
+                    s = step(s, f);
+                } else {
+                    String folded = folder.multiFold(c);
+                    for (int j = 0; j < folded.length(); j++) {
+                        s = step(s, folded.charAt(j));
+                    }
+                }
+            }
+            state = s;
+        }
+
+        private int step(int s, char c) {
+            int next = delta[s * width + symbolOf(c)];
+            if (outputs[next] != null) {
+                mark(outputs[next]);
+            }
+            return next;
+        }
+
+        private void mark(int[] patterns) {
+            for (int p : patterns) {
+                if (!found[p]) {
+                    found[p] = true;
+                    remaining--;
+                }
+            }
+        }
+
+        /**
+         * @param pattern	The id of the pattern, returned by Builder.add()
+         * @return true if the pattern has been found
+         */
+        public boolean found(int pattern) {
+            return found[pattern];
+        }
+
+        /**
+         * @param patterns	The ids of the patterns
+         * @return the number of the patterns that have been found
+         */
+        public int count(int[] patterns) {
+            int count = 0;
+            for (int p : patterns) {
+                if (found[p]) count++;
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A topic and a query phrase a crawl is looking for. A crawl may look for many at once (see
+ * WebCrawler --profiles): the words, phrase and topic of every profile are compiled into one QueryMatcher,
+ * so each page is fetched once and its text scanned once, however many profiles there are.
+ * A profile only remembers the ids of its patterns in that matcher, and counts the pages it was found in.
+ */
+public class QueryProfile {
+    private final String topic;         // The topic, lower case
+    private final String query;         // The query phrase, lower case with single spaces between the words
+    private final String[] words;       // The words of the query
+    private int[] wordPatterns;         // The matcher's ids of the query words
+    private int phrasePattern;          // The matcher's id of the query phrase
+    private int topicPattern;           // The matcher's id of the topic
+    private final AtomicInteger relevant = new AtomicInteger();    // The number of pages the phrase was found in
+
+    /**
+     * @param topic	The topic, used to guide the crawler to relevant links
+     * @param query	The query phrase to search for
+     */
+    public QueryProfile(String topic, String query) {
+        this.topic = topic.toLowerCase();
+        this.query = query.toLowerCase().replaceAll("\\s+", " ");
+        words = this.query.split("\\s");    // Assume space between query words
+    }
+
+    /**
+     * Reads the profiles from a file with one profile on each line, the topic and the query separated
+     * by a tab. Empty lines and lines starting with # are skipped.
+     * @param file	The file
+     * @return the profiles, in the order of the file
+     * @throws IOException if the file can't be read or a line is not a profile
+     */
+    public static List<QueryProfile> load(File file) throws IOException {
+        List<QueryProfile> profiles = new ArrayList<QueryProfile>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+        try {
+            int number = 0;
+            String line;
+            while ((line = in.readLine()) != null) {
+                number++;
+                if (line.trim().isEmpty() || line.trim().startsWith("#")) {
+                    continue;
+                }
+                int tab = line.indexOf('\t');
+                if (tab < 0 || line.substring(0, tab).trim().isEmpty() || line.substring(tab + 1).trim().isEmpty()) {
+                    throw new IOException("Line " + number + " of " + file + " is not <TOPIC><tab><QUERY WORDS>");
+                }
+                profiles.add(new QueryProfile(line.substring(0, tab).trim(), line.substring(tab + 1).trim()));
+            }
+        } finally {
+            in.close();
+        }
+        if (profiles.isEmpty()) {
+            throw new IOException("No profiles in " + file);
+        }
+        return profiles;
+    }
+
+    /**
+     * Adds the query words, the query phrase and the topic to the patterns of a matcher
+     * @param builder	The builder of the matcher shared by all profiles
+     */
+    void addTo(QueryMatcher.Builder builder) {
+        wordPatterns = new int[words.length];
+        for (int i = 0; i < words.length; i++) {
+            wordPatterns[i] = builder.add(words[i]);
+        }
+        phrasePattern = builder.add(query);
+        topicPattern = builder.add(topic);
+    }
+
+    /**
+     * @param found	A scan of a text by the matcher the profile was added to
+     * @return true if the query phrase was found in the text
+     */
+    public boolean isRelevant(QueryMatcher.Scan found) {
+        return found.found(phrasePattern);
+    }
+
+    /**
+     * Rates a text, a URL or the text of a link: each query word in it counts 1, the topic as much
+     * as all the query words.
+     * @param found	A scan of the text by the matcher the profile was added to
+     * @return the score
+     */
+    public double rate(QueryMatcher.Scan found) {
+        double score = found.count(wordPatterns);
+        if (found.found(topicPattern)) {
+            score += getScoreIncrement();
+        }
+        return score;
+    }
+
+    /**
+     * @return the increment step used by the scoring function, the number of words in the query
+     */
+    public int getScoreIncrement() {
+        return words.length;
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    /**
+     * Counts a page the query phrase was found in
+     */
+    public void found() {
+        relevant.incrementAndGet();
+    }
+
+    public AtomicInteger getRelevant() {
+        return relevant;
+    }
+
+    @Override
+    public String toString() {
+        return topic + " / " + query;
+    }
+}
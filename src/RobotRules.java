@@ -0,0 +1,251 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The robots.txt rules that apply to us on one host, compiled into a prefix trie.
+ * A rule may contain * (any sequence of characters) and end with $ (end of the path).
+ * Of all the rules matching a path the longest one decides, Allow wins if an Allow and a
+ * Disallow rule are equally long, and a path no rule matches is allowed.
+ * A * node of the trie is only matched once from each position of a path (see Visited), so however many
+ * wildcards the rules have the time is at most the number of * nodes times the length of the path, times
+ * the length of the rules between them. Rules with more than MAX_WILDCARDS wildcards are ignored all the same.
+ * Immutable, so it can be shared by all workers.
+ */
+public class RobotRules {
+    public static final long NO_DELAY = 0;
+    private static final int MAX_WILDCARDS = 10;            // Rules with more * are ignored
+    private static final long MAX_VISITED_BITS = 1 << 16;  // Keep the visited pairs in a hash set if there are more
+
+    private final List<String> allowRules;
+    private final List<String> disallowRules;
+    private final long crawlDelay;          // Minimum time (ms) between two requests asked for by the host
+    private final long expires;             // The time (ms) after which robots.txt should be fetched again
+    private final Node root = new Node();
+    private int starCount = 0;              // The number of * nodes, numbered from 0
+
+    /**
+     * A node of the trie. The rules ending at a node are recorded by their length,
+     * so the longest match is found by keeping the largest length seen.
+     */
+    private static class Node {
+        char[] labels = new char[0];        // The characters leading to each child
+        Node[] children = new Node[0];
+        Node star;                          // The child for *, or null
+        int starId = -1;                    // The number of a * node, see Visited
+        int allow = -1;                     // Length of the Allow rule matching any path with this prefix, or -1
+        int disallow = -1;
+        int allowEnd = -1;                  // Length of the Allow rule ending in $ here, or -1
+        int disallowEnd = -1;
+
+        Node child(char c) {
+            for (int i = 0; i < labels.length; i++) {
+                if (labels[i] == c) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        Node addChild(char c) {
+            Node child = child(c);
+            if (child == null) {
+                child = new Node();
+                int n = labels.length;
+                char[] newLabels = new char[n + 1];
+                Node[] newChildren = new Node[n + 1];
+                System.arraycopy(labels, 0, newLabels, 0, n);
+                System.arraycopy(children, 0, newChildren, 0, n);
+                newLabels[n] = c;
+                newChildren[n] = child;
+                labels = newLabels;
+                children = newChildren;
+            }
+            return child;
+        }
+    }
+
+    /**
+     * @param allowRules	The paths of the Allow rules
+     * @param disallowRules	The paths of the Disallow rules, empty paths are ignored
+     * @param crawlDelay	Minimum time (ms) between two requests, or NO_DELAY
+     * @param expires		The time (ms) after which the rules are stale
+     */
+    public RobotRules(List<String> allowRules, List<String> disallowRules, long crawlDelay, long expires) {
+        this.allowRules = new ArrayList<String>(allowRules);
+        this.disallowRules = new ArrayList<String>(disallowRules);
+        this.crawlDelay = crawlDelay;
+        this.expires = expires;
+        for (String rule : this.allowRules) {
+            insert(rule, true);
+        }
+        for (String rule : this.disallowRules) {
+            insert(rule, false);
+        }
+    }
+
+    /**
+     * @return rules allowing everything, used when a host has no robots.txt
+     */
+    public static RobotRules allowAll(long expires) {
+        return new RobotRules(new ArrayList<String>(), new ArrayList<String>(), NO_DELAY, expires);
+    }
+
+    /**
+     * @return rules disallowing everything, used while a host's robots.txt can't be read
+     */
+    public static RobotRules disallowAll(long expires) {
+        List<String> all = new ArrayList<String>();
+        all.add("/");
+        return new RobotRules(new ArrayList<String>(), all, NO_DELAY, expires);
+    }
+
+    private void insert(String rule, boolean allow) {
+        if (rule.isEmpty()) {
+            return;                         // "Disallow:" with no path disallows nothing
+        }
+        int wildcards = 0;
+        for (int i = 0; i < rule.length(); i++) {
+            if (rule.charAt(i) == '*' && ++wildcards > MAX_WILDCARDS) {
+                return;
+            }
+        }
+        int length = rule.length();
+        boolean anchored = rule.charAt(length - 1) == '$';
+        String path = anchored ? rule.substring(0, length - 1) : rule;
+        if (!path.startsWith("/") && !path.startsWith("*")) {
+            path = "/" + path;
+        }
+        Node node = root;
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == '*') {
+                if (i > 0 && path.charAt(i - 1) == '*') {
+                    continue;               // ** is the same as *
+                }
+                if (node.star == null) {
+                    node.star = new Node();
+                    node.star.starId = starCount++;
+                }
+                node = node.star;
+            } else {
+                node = node.addChild(c);
+            }
+        }
+        if (anchored && allow) node.allowEnd = Math.max(node.allowEnd, length);
+        else if (anchored) node.disallowEnd = Math.max(node.disallowEnd, length);
+        else if (allow) node.allow = Math.max(node.allow, length);
+        else node.disallow = Math.max(node.disallow, length);
+    }
+
+    /**
+     * @param path	The path of a url, with its query string if any, e.g. /search?q=fox
+     * @return true if we may fetch the url
+     */
+    public boolean isAllowed(String path) {
+        int[] longest = { -1, -1 };         // The longest Allow and Disallow rules matching the path
+        match(root, path, 0, longest, starCount == 0 ? null : new Visited(starCount, path.length() + 1));
+        return longest[0] >= longest[1];
+    }
+
+    /**
+     * The pairs of a * node and a position of the path the * has been matched from. A * matches from every
+     * position after the first it is matched from, so once a pair is visited all the later positions are too.
+     */
+    private static class Visited {
+        private final int positions;
+        private final long[] bits;          // A bit for each pair, or null if there are too many
+        private final Set<Long> pairs;      // The pairs visited, if there are too many for bits
+
+        Visited(int stars, int positions) {
+            this.positions = positions;
+            long size = (long) stars * positions;
+            bits = size <= MAX_VISITED_BITS ? new long[(int) ((size + 63) >> 6)] : null;
+            pairs = bits == null ? new HashSet<Long>() : null;
+        }
+
+        /**
+         * @return false if the pair was visited before
+         */
+        boolean add(int star, int pos) {
+            long pair = (long) star * positions + pos;
+            if (bits == null) {
+                return pairs.add(pair);
+            }
+            long bit = 1L << pair;
+            int word = (int) (pair >> 6);
+            if ((bits[word] & bit) != 0) {
+                return false;
+            }
+            bits[word] |= bit;
+            return true;
+        }
+    }
+
+    private static void match(Node node, String path, int pos, int[] longest, Visited visited) {
+        while (node != null) {
+            longest[0] = Math.max(longest[0], node.allow);
+            longest[1] = Math.max(longest[1], node.disallow);
+            if (pos == path.length()) {
+                longest[0] = Math.max(longest[0], node.allowEnd);
+                longest[1] = Math.max(longest[1], node.disallowEnd);
+            }
+            if (node.star != null) {
+                // The * can't be reached again from below it, so the positions visited before were visited in full
+                for (int p = pos; p <= path.length() && visited.add(node.star.starId, p); p++) {
+                    match(node.star, path, p, longest, visited);
+                }
+            }
+            if (pos == path.length()) {
+                return;
+            }
+            node = node.child(path.charAt(pos++));
+        }
+    }
+
+    public long getCrawlDelay() {
+        return crawlDelay;
+    }
+
+    public long getExpires() {
+        return expires;
+    }
+
+    public boolean isExpired(long now) {
+        return now >= expires;
+    }
+
+    /**
+     * Writes the rules in a form read back by readFrom()
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeLong(expires);
+        out.writeLong(crawlDelay);
+        out.writeInt(allowRules.size());
+        for (String rule : allowRules) {
+            out.writeUTF(rule);
+        }
+        out.writeInt(disallowRules.size());
+        for (String rule : disallowRules) {
+            out.writeUTF(rule);
+        }
+    }
+
+    public static RobotRules readFrom(DataInput in) throws IOException {
+        long expires = in.readLong();
+        long crawlDelay = in.readLong();
+        List<String> allow = new ArrayList<String>();
+        for (int n = in.readInt(); n > 0; n--) {
+            allow.add(in.readUTF());
+        }
+        List<String> disallow = new ArrayList<String>();
+        for (int n = in.readInt(); n > 0; n--) {
+            disallow.add(in.readUTF());
+        }
+        return new RobotRules(allow, disallow, crawlDelay, expires);
+    }
+}
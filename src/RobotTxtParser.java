@@ -17,240 +17,397 @@ User-agent: *
 Disallow: /usr
 Disallow: /tmp/
 Allow: /tmp/images/
+Crawl-delay: 2
 */
 
 /*
-A web crawler calls the parse() method for a given url.  The host is extracted from the url and robots.txt for the host
-is parsed and saved in a hash table.  The robots.txt file is thus only parsed once for each host.
+A web crawler calls the prefetch() method the first time it encounters a host. robots.txt is fetched in the
+background, the rules for our user agent are compiled (see RobotRules) and saved in a hash table, so robots.txt
+is only fetched once for each host until the rules expire. The crawler should not fetch from a host before
+prefetch() completes. isUrlAllowed() never waits: expired rules are used until the new ones arrive, and a RulesListener
+is told when they do, e.g. to apply a changed Crawl-delay.
+The rules may be saved to a file at the end of a crawl and loaded again by the next one.
  */
 
-import java.io.*;
-import java.net.HttpURLConnection;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
-import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
 
 /**
- *	Unmodified from assignment code.
+ *	Assignment code, rewritten to fetch robots.txt asynchronously and to cache the compiled rules.
  */
 public class RobotTxtParser {
+    private static final int CACHE_MAGIC = 0x52425443;      // "RBTC"
+    private static final int CACHE_VERSION = 1;
+    private static final int MAX_SIZE = 500 * 1024;         // Only the first 500 KiB of robots.txt are read
+    private static final int MAX_RULE_LENGTH = 2048;        // Longer rules are ignored
+    private static final long MAX_CRAWL_DELAY = 60000;      // Longer Crawl-delays are cut to a minute
+    private static final long ERROR_TTL = 5 * 60 * 1000;    // Time (ms) until an unreadable robots.txt is tried again
+
     private final String robotTxtString = "robots.txt";
-    private final String httpString = "http://";
     private boolean debug = false;
     private String userAgent;       // The parser is interested in info regarding this user agent
+    private PageFetcher fetcher;    // Used to fetch robots.txt, sharing connections with the crawler
+    private final long ttl;         // Time (ms) until the rules of a host are fetched again
 
-    // We hash the directives to make sure that we only parse robots.txt once for each host encountered
-    Hashtable<String, RobotDirectives> hostsDirectives;
-
-    public class RobotDirectives {  // Nested class, only used by RobotTxtParser
-        ArrayList<String> disallowDirectives;
-        ArrayList<String> allowDirectives;
-
-        public RobotDirectives() {
-            disallowDirectives = new ArrayList<String>();
-            allowDirectives  = new ArrayList<String>();
-        }
-
-        public void addDisallow(String directive) {
-            disallowDirectives.add(directive);
-        }
+    // We hash the rules to make sure that we only fetch robots.txt once for each host encountered
+    private final ConcurrentHashMap<String, RobotRules> hostsRules = new ConcurrentHashMap<String, RobotRules>();
+    private final ConcurrentHashMap<String, CompletableFuture<RobotRules>> pending = new ConcurrentHashMap<String, CompletableFuture<RobotRules>>();
+    private volatile RulesListener listener;    // Told when the rules of a host are fetched again, or null
 
-        public void addAllow(String directive) {
-            allowDirectives.add(directive);
-        }
+    /**
+     * Told when expired rules have been replaced, see setRulesListener()
+     */
+    public interface RulesListener {
+        /**
+         * Called once the rules of a host have been fetched again after they expired, on the thread that fetched them
+         * @param host	The host key, see Frontier.hostKey()
+         * @param rules	The new rules
+         */
+        void rulesRefreshed(String host, RobotRules rules);
+    }
 
-        public void clear() {
-            disallowDirectives.clear();
-            allowDirectives.clear();
-        }
+    /**
+     * The rules of one group of robots.txt, i.e. the lines following one or more User-agent lines
+     */
+    private static class Group {
+        List<String> allow = new ArrayList<String>();
+        List<String> disallow = new ArrayList<String>();
+        long crawlDelay = RobotRules.NO_DELAY;
     }
 
-    public RobotTxtParser(String userAgent, boolean debug)
+    /**
+     * @param userAgent	The user agent to obey the rules for
+     * @param fetcher	Used to fetch robots.txt
+     * @param ttl		Time (ms) until robots.txt of a host is fetched again
+     * @param debug		Print diagnostic output
+     */
+    public RobotTxtParser(String userAgent, PageFetcher fetcher, long ttl, boolean debug)
     {
         this.userAgent = userAgent;
+        this.fetcher = fetcher;
+        this.ttl = ttl;
         this.debug = debug;
-        hostsDirectives = new Hashtable<String, RobotDirectives>(50);
     }
 
-    public boolean urlExists(URL url) {
-
-        try
-        {
-            HttpURLConnection.setFollowRedirects(false);
-            HttpURLConnection con = (HttpURLConnection) url.openConnection();
-            con.setRequestMethod("HEAD");
-            return (con.getResponseCode() == HttpURLConnection.HTTP_OK);
-        }
-        catch (IOException e) {
-            if (debug) System.out.println("RobotTxtParser-Could not make a head request to " + url.toString());
-            return false;
-        }
-  }
-
-    // Reads in the contents of the stream and returns it as a string
-    private String readUrlContent(URL url) {
-        InputStream is;
-        String data="";
-
-        try {
-            is = url.openStream();         // throws an IOException
-            BufferedReader d = new BufferedReader(new InputStreamReader(is));
-
-            String s;
-            while ((s = d.readLine()) != null)
-                    data = data + s + "\n";
+    /**
+     * @param listener	Told each time the rules of a host are fetched again after they expired
+     */
+    public void setRulesListener(RulesListener listener) {
+        this.listener = listener;
+    }
 
-            is.close();
-         }
-        catch (IOException e) {
-            if (debug) System.out.println("RobotTxtParser-Could not read " + url.toString());
-        }
-        return data;
+    private String getHost(URL url)
+    {
+        return Frontier.hostKey(url);
     }
 
+    /**
+     * Starts fetching robots.txt of the host of the url, unless its rules are already known and fresh
+     * @param url	Any url on the host
+     * @return the rules of the host, completed once they are known, never completed exceptionally
+     */
+    public CompletableFuture<RobotRules> prefetch(URL url) {
+        return prefetch(getHost(url), url);
+    }
 
-    private String getHost(String url)
-    {
-        URL urlObject;
-        try {
-            urlObject = new URL(url);
+    /**
+     * @param host	The host key of the url, see Frontier.hostKey()
+     * @param url	Any url on the host
+     */
+    public CompletableFuture<RobotRules> prefetch(final String host, URL url) {
+        RobotRules rules = hostsRules.get(host);
+        if (rules != null && !rules.isExpired(System.currentTimeMillis())) {
+            return CompletableFuture.completedFuture(rules);
         }
-        catch (MalformedURLException e) {
-            if (debug) System.out.println("RobotTxtParser-Malformed URL: " + url);
-            return "";
+        final CompletableFuture<RobotRules> result = new CompletableFuture<RobotRules>();
+        CompletableFuture<RobotRules> running = pending.putIfAbsent(host, result);
+        if (running != null) {
+            return running;         // Someone else is already fetching it
         }
 
-        String host = urlObject.getHost();
-        if (host.startsWith("www."))
-            host = host.replaceFirst("www.", "");
-        return host;
+        final String robotPage = url.getProtocol() + "://" + url.getAuthority() + "/" + robotTxtString;
+        fetcher.fetch(robotPage).handle(new BiFunction<FetchResult, Throwable, Void>() {
+            @Override
+            public Void apply(FetchResult fetched, Throwable error) {
+                RobotRules rules;
+                try {
+                    rules = toRules(robotPage, fetched, error);
+                } catch (RuntimeException e) {
+                    if (debug) System.out.println("RobotTxtParser-Could not parse " + robotPage + ": " + e);
+                    rules = RobotRules.allowAll(System.currentTimeMillis() + ERROR_TTL);
+                }
+                RobotRules expired = hostsRules.put(host, rules);
+                pending.remove(host, result);
+                result.complete(rules);
+                RulesListener refreshed = listener;
+                if (expired != null && refreshed != null) {
+                    refreshed.rulesRefreshed(host, rules);
+                }
+                return null;
+            }
+        });
+        return result;
     }
 
     /*
-        Connects to a robot.txt file on a web server and returns its content as a string
+        Turns the response to a request for robots.txt into the rules to obey
     */
-    private String getContent(String host)
+    private RobotRules toRules(String robotPage, FetchResult result, Throwable error)
     {
-	    // form URL of the robots.txt file
-        String rootPage = httpString + host;
-        String robotPage = rootPage + "/" + robotTxtString;
-        URL urlRobot;
-        String robotTxtData="";
-
-        try {
-            urlRobot = new URL(robotPage);
-            // Check if the url exists, so we don't get a HTTP 404 response (file not found)
-            if (urlExists(urlRobot))
-                    robotTxtData = readUrlContent(urlRobot);
-            else
-                if (debug) System.out.println("RobotTxtParser-robots.txt not found at " + robotPage);
-
-        } catch (MalformedURLException e) {
-                  if (debug) System.out.println("RobotTxtParser-Malformed URL: " + robotPage);
+        long now = System.currentTimeMillis();
+        if (error != null) {
+            // We can't tell what we may fetch, so assume nothing for a while
+            if (debug) System.out.println("RobotTxtParser-Could not read " + robotPage);
+            return RobotRules.disallowAll(now + ERROR_TTL);
+        }
+        int status = result.getStatus();
+        if (status >= 500) {
+            if (debug) System.out.println("RobotTxtParser-Server error " + status + " reading " + robotPage);
+            return RobotRules.disallowAll(now + ERROR_TTL);
+        }
+        if (status != 200) {
+            // A missing robots.txt (e.g. HTTP 404 response, file not found) means no directives
+            if (debug) System.out.println("RobotTxtParser-robots.txt not found at " + robotPage);
+            return RobotRules.allowAll(now + ttl);
         }
 
+        byte[] body = result.getBody();
+        String robotTxtData = new String(body, 0, Math.min(body.length, MAX_SIZE), StandardCharsets.UTF_8);
         if (debug && !robotTxtData.equals(""))
         {
-            System.out.println("Robots.txt at " + host + ":");
+            System.out.println("Robots.txt at " + robotPage + ":");
             System.out.println("-----------------------------------------");
             System.out.println(robotTxtData);
             System.out.println("-----------------------------------------");
         }
-
-        return robotTxtData;
+        return parseContent(robotTxtData, now + ttl);
     }
 
-
     /*
-    This parser assumes that the contents of the robots.txt file is contained in the argument
-    Returns RobotDirectives or null if no directives found for us
+    This parser assumes that the contents of the robots.txt file is contained in the argument.
+    The group naming our user agent applies to us, or if there is none the group for all agents (*).
+    Returns the rules, allowing everything if no directives are found for us
      */
-    private RobotDirectives parseContent(String robotTxtContent) {
-
-        RobotDirectives robotDirectives = new RobotDirectives();
-        if (robotTxtContent.equals(""))     // empty content
-            return robotDirectives;
-
-        //split
-        String[] lines = robotTxtContent.split("\n");
-
-        int i=0;
-        boolean last=false;
-        while (i < lines.length && !last) {
-            if (lines[i].startsWith("User-agent:")) {
-                String agent = lines[i];
-                agent = agent.replace("User-agent:", "");    // Keep only the relevant info
-                agent = agent.trim();
-
-                // Does this apply to us?
-                if (agent.equalsIgnoreCase(userAgent) || agent.equals("*")) {
-
-                    for (int j=i+1; j<lines.length && !last; j++) {
-                        if (lines[j].startsWith("Disallow:")) {
-                            String directive = lines[j].trim();
-                            directive = directive.replace("Disallow:", "");    // Keep only the relevant info
-                            directive = directive.trim();
-                            robotDirectives.addDisallow(directive);
-
-                        }
-                        else if (lines[j].startsWith("Allow:")) {
-                            String directive = lines[j].trim();
-                            directive = directive.replace("Allow:", "");    // Keep only the relevant info
-                            directive = directive.trim();
-                            robotDirectives.addAllow(directive);
-                        }
-                        else if (lines[j].startsWith("User-agent:"))    // Then we have found the start of another agent
-                            last = true;                                // We are not interested in that record
-
-                        if (j==lines.length-1)  // Last line?
-                                last=true;
-                    }
+    RobotRules parseContent(String robotTxtContent, long expires) {
+        Group ours = null;          // The rules of the groups naming us
+        Group any = null;           // The rules of the groups for *
+        boolean forUs = false;      // Does the current group apply to us?
+        boolean forAny = false;
+        boolean inAgents = false;   // true while reading the User-agent lines starting a group
+
+        int start = 0;
+        int length = robotTxtContent.length();
+        while (start < length) {
+            int end = start;
+            while (end < length && robotTxtContent.charAt(end) != '\n' && robotTxtContent.charAt(end) != '\r') {
+                end++;
+            }
+            String line = robotTxtContent.substring(start, end);
+            start = end + 1;
+
+            int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            int colon = line.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            String field = line.substring(0, colon).trim().toLowerCase();
+            String value = line.substring(colon + 1).trim();
+
+            if (field.equals("user-agent")) {
+                if (!inAgents) {    // The start of another group
+                    forUs = false;
+                    forAny = false;
+                    inAgents = true;
                 }
+                if (value.equalsIgnoreCase(userAgent)) {
+                    forUs = true;
+                    if (ours == null) ours = new Group();
+                } else if (value.equals("*")) {
+                    forAny = true;
+                    if (any == null) any = new Group();
+                }
+                continue;
+            }
+            inAgents = false;
+            if (forUs) {
+                addDirective(ours, field, value);
+            }
+            if (forAny) {
+                addDirective(any, field, value);
             }
-            i++;
         }
-        return robotDirectives;
+
+        Group group = ours != null ? ours : any;
+        if (group == null) {
+            return RobotRules.allowAll(expires);
+        }
+        return new RobotRules(group.allow, group.disallow, group.crawlDelay, expires);
     }
 
-    /* A crawler calls this method to parse the content of robots.txt at the host owning the url */
-    public void parse(String url) {
+    private void addDirective(Group group, String field, String value) {
+        if (value.length() > MAX_RULE_LENGTH) {
+            return;
+        }
+        if (field.equals("disallow")) {
+            group.disallow.add(value);
+        } else if (field.equals("allow")) {
+            group.allow.add(value);
+        } else if (field.equals("crawl-delay")) {
+            try {
+                double seconds = Double.parseDouble(value);
+                group.crawlDelay = Math.max(0, Math.min(MAX_CRAWL_DELAY, (long) (seconds * 1000)));
+            } catch (NumberFormatException e) {
+                if (debug) System.out.println("RobotTxtParser-Bad Crawl-delay: " + value);
+            }
+        }
+    }
 
+    /**
+     * @param url	The url to check
+     * @return true if robots.txt of the url's host allows us to fetch it. If robots.txt of the host
+     * has not been fetched yet this starts fetching it and returns false without waiting, the crawler
+     * should call prefetch() well before, or put the url back until getRules() knows the host.
+     */
+    public boolean isUrlAllowed(URL url) {
         String host = getHost(url);
-        if (!hostsDirectives.containsKey(host))     // If host does not exists in the hash, then parse robots.txt
-        {
-            String content = getContent(host);
-            hostsDirectives.put(host, parseContent(content));   // parse the content and save it into the hash
+        RobotRules rules = hostsRules.get(host);
+        if (rules == null) {
+            if (debug) System.out.println("RobotTxtParser-No directives found for host " + host);   // Should not happen!
+            prefetch(host, url);
+            return false;
+        } else if (rules.isExpired(System.currentTimeMillis())) {
+            prefetch(host, url);    // Use the old rules until the new ones arrive
         }
-    }
 
+        String path = url.getFile();
+        if (path.isEmpty()) {
+            path = "/";
+        }
+        return rules.isAllowed(path);
+    }
 
     public boolean isUrlAllowed(String url) {
+        try {
+            return isUrlAllowed(new URL(url));
+        } catch (MalformedURLException e) {
+            if (debug) System.out.println("RobotTxtParser-Malformed URL: " + url);
+            return false;
+        }
+    }
 
-        RobotDirectives directives=null;
-        String host = getHost(url);
+    /**
+     * @param host	The host key, see Frontier.hostKey()
+     * @return the rules of the host, or null if they are not known yet
+     */
+    public RobotRules getRules(String host) {
+        return hostsRules.get(host);
+    }
 
-        if (hostsDirectives.containsKey(host))     // If host does not exists in the hash, then parse robots.txt
-            directives = hostsDirectives.get(host);
-        else
-            if (debug) System.out.println("RobotTxtParser-No directives found for host " + host);   // Should not happen!
+    /**
+     * @return the rules known for each host
+     */
+    public Map<String, RobotRules> getAllRules() {
+        return hostsRules;
+    }
 
-        if (directives != null) {
-            // Is the url specifically allowed?
-            for (String directive : directives.allowDirectives ) {
-                if (url.contains(directive))
-                    return true;
-            }
+    /**
+     * Remembers rules read elsewhere, e.g. from a checkpoint
+     */
+    public void putRules(String host, RobotRules rules) {
+        hostsRules.put(host, rules);
+    }
 
-            // Is the url specifically disallowed?
-            for (String directive : directives.disallowDirectives ) {
-                if (url.contains(directive))
-                    return false;
+    /**
+     * Loads the rules saved by save(), skipping those that have expired
+     * @param file	The cache file, nothing is loaded if it does not exist
+     * @return the number of hosts loaded
+     * @throws IOException if the file can't be read
+     */
+    public int load(File file) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        int loaded;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != CACHE_MAGIC || in.readInt() != CACHE_VERSION) {
+                throw new IOException("Not a robots.txt cache: " + file);
             }
+            loaded = readRules(in);
+        } finally {
+            in.close();
         }
+        if (debug) System.out.println("RobotTxtParser-Loaded robots.txt of " + loaded + " hosts from " + file);
+        return loaded;
+    }
 
-        return true;   // If we get here then no directives were found or the url is neither specifically allowed nor specifically disallowed
-                        // Then allow it!
+    /**
+     * Saves the rules of all hosts, replacing the file only once all of them have been written
+     * @param file	The cache file
+     * @throws IOException if the file can't be written
+     */
+    public void save(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(CACHE_MAGIC);
+            out.writeInt(CACHE_VERSION);
+            writeRules(out);
+        } finally {
+            out.close();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
     }
 
+    /**
+     * Writes the rules of all hosts in a form read back by readRules(), e.g. to a checkpoint
+     */
+    public void writeRules(DataOutput out) throws IOException {
+        List<Map.Entry<String, RobotRules>> entries = new ArrayList<Map.Entry<String, RobotRules>>(hostsRules.entrySet());
+        out.writeInt(entries.size());
+        for (Map.Entry<String, RobotRules> entry : entries) {
+            out.writeUTF(entry.getKey());
+            entry.getValue().writeTo(out);
+        }
+    }
+
+    /**
+     * Reads the rules written by writeRules(), skipping those that have expired
+     * @return the number of hosts read
+     */
+    public int readRules(DataInput in) throws IOException {
+        long now = System.currentTimeMillis();
+        int loaded = 0;
+        for (int n = in.readInt(); n > 0; n--) {
+            String host = in.readUTF();
+            RobotRules rules = RobotRules.readFrom(in);
+            if (!rules.isExpired(now)) {
+                hostsRules.put(host, rules);
+                loaded++;
+            }
+        }
+        return loaded;
+    }
 }
@@ -0,0 +1,40 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * The set of URLs the crawler has seen, so each URL is queued only once.
+ * Implementations must be safe to use from many threads.
+ */
+public interface SeenSet {
+
+    /**
+     * Logs the url as seen
+     * @param url	The canonical url
+     * @return true if the url had not been seen before
+     */
+    boolean add(String url);
+
+    /**
+     * @param url	The canonical url
+     * @return true if the url has been seen
+     */
+    boolean contains(String url);
+
+    /**
+     * @return the number of distinct urls added
+     */
+    long size();
+
+    /**
+     * Writes the set in a form read back by readFrom(), e.g. to a checkpoint.
+     * Urls added while the set is being written may or may not be included.
+     */
+    void writeTo(DataOutput out) throws IOException;
+
+    /**
+     * Adds everything written by writeTo() to this set
+     * @throws IOException if the data can't be read or was written by a different kind of set
+     */
+    void readFrom(DataInput in) throws IOException;
+}
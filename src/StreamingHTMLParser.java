@@ -0,0 +1,568 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * A streaming alternative to the jsoup DOM: a tokenizer that makes one pass over the bytes of a page
+ * and reports links (with their anchor text) and text chunks to a PageHandler as it finds them,
+ * without ever building a tree. The contents of <script> and <style> are skipped.
+ *
+ * The text follows jsoup's Element.text() closely: whitespace is collapsed to single spaces,
+ * common entities are decoded and block level elements separate the text around them.
+ * It is not a full HTML5 tokenizer, malformed markup is handled leniently.
+ *
+ * The parser keeps no state between pages, so a single instance can be shared by all workers.
+ *
+ * Only the parse streams: the raw bytes of the page are in memory before it starts, and parse(url, body, charset)
+ * collects the whole text and all the links into a ParsedPage (see ParsedPage.Builder), since the query matcher,
+ * the index and the duplicate check all take the whole text. What it saves is the DOM, several times the size
+ * of the page; the text and the bytes are both bounded by --max-body. Only <script> and <style> are skipped,
+ * e.g. <svg>, <template> and <noscript> count as text, as in jsoup's text().
+ */
+public class StreamingHTMLParser {
+    private static final int CHUNK_SIZE = 4096;         // Text is handed over in chunks of about this size
+    private static final int MAX_ANCHOR_TEXT = 256;     // Longer anchor texts are truncated
+    private static final int SNIFF_BYTES = 1024;        // Look this far for a <meta> charset
+
+    // Elements whose start and end separate the text around them, like jsoup's block elements
+    private static final String[] BLOCK_ELEMENTS = {
+        "address", "article", "aside", "blockquote", "body", "br", "caption", "dd", "div", "dl", "dt",
+        "fieldset", "figcaption", "figure", "footer", "form", "h1", "h2", "h3", "h4", "h5", "h6", "head",
+        "header", "hr", "html", "li", "main", "nav", "ol", "option", "p", "pre", "section", "table",
+        "tbody", "td", "tfoot", "th", "thead", "title", "tr", "ul"
+    };
+
+    /**
+     * Parses the page, reporting its links and text to the handler
+     * @param url		The URL of the page, used to resolve relative links
+     * @param body		The raw bytes of the page
+     * @param charset	The charset of the page, or null to detect it from the page
+     * @param handler	Receives the links and text
+     * @throws IOException if the page could not be decoded
+     */
+    public void parse(String url, byte[] body, String charset, PageHandler handler) throws IOException {
+        Charset decoder;
+        try {
+            decoder = Charset.forName(charset != null ? charset : detectCharset(body));
+        } catch (IllegalArgumentException e) {
+            decoder = StandardCharsets.UTF_8;   // Unknown or illegal charset name, like jsoup fall back to UTF-8
+        }
+        int offset = 0;
+        if (body.length >= 3 && (body[0] & 0xff) == 0xef && (body[1] & 0xff) == 0xbb && (body[2] & 0xff) == 0xbf) {
+            offset = 3;     // UTF-8 byte order mark
+        }
+        Reader reader = new InputStreamReader(new ByteArrayInputStream(body, offset, body.length - offset), decoder);
+        URL base;
+        try {
+            base = new URL(url);
+        } catch (MalformedURLException e) {
+            throw new IOException("Error parsing " + url + ": " + e.getMessage());
+        }
+        new Tokenizer(reader, base, handler).run();
+    }
+
+    /**
+     * Parses the page into a ParsedPage
+     */
+    public ParsedPage parse(String url, byte[] body, String charset) throws IOException {
+        ParsedPage.Builder builder = new ParsedPage.Builder(url);
+        parse(url, body, charset, builder);
+        return builder.build();
+    }
+
+    /**
+     * Detects the charset from a byte order mark or a <meta> tag near the start of the page
+     * @return the charset name, UTF-8 if none is found
+     */
+    static String detectCharset(byte[] body) {
+        if (body.length >= 2) {
+            if ((body[0] & 0xff) == 0xfe && (body[1] & 0xff) == 0xff) return "UTF-16BE";
+            if ((body[0] & 0xff) == 0xff && (body[1] & 0xff) == 0xfe) return "UTF-16LE";
+        }
+        String head = new String(body, 0, Math.min(body.length, SNIFF_BYTES), StandardCharsets.ISO_8859_1).toLowerCase();
+        int meta = head.indexOf("<meta");
+        while (meta >= 0) {
+            int end = head.indexOf('>', meta);
+            if (end < 0) {
+                break;
+            }
+            int at = head.indexOf("charset=", meta);
+            if (at >= 0 && at < end) {
+                int from = at + 8;
+                while (from < end && (head.charAt(from) == '"' || head.charAt(from) == '\'' || head.charAt(from) == ' ')) {
+                    from++;
+                }
+                int to = from;
+                while (to < end && (Character.isLetterOrDigit(head.charAt(to)) || head.charAt(to) == '-' || head.charAt(to) == '_')) {
+                    to++;
+                }
+                String name = head.substring(from, to);
+                if (!name.isEmpty() && Charset.isSupported(name)) {
+                    return name;
+                }
+            }
+            meta = head.indexOf("<meta", end);
+        }
+        return "UTF-8";
+    }
+
+    /**
+     * The state of parsing a single page
+     */
+    private static class Tokenizer {
+        private final Reader reader;
+        private final PageHandler handler;
+        private final char[] buffer = new char[8192];
+        private int position = 0;
+        private int limit = 0;
+        private int pushedBack = -1;                    // A character to read again, or -1
+
+        private URL base;                               // Links are resolved against this URL
+        private boolean baseSet = false;                // Only the first <base href> counts
+        private final StringBuilder text = new StringBuilder(CHUNK_SIZE + 64);
+        private boolean lastWasSpace = true;            // Collapses whitespace, and drops it at the start
+        private final StringBuilder name = new StringBuilder();         // Tag and attribute names
+        private final StringBuilder value = new StringBuilder();        // Attribute values and entity names
+
+        private String anchorUrl = null;                // The link of the <a> we are in, if any
+        private final StringBuilder anchorText = new StringBuilder();
+        private boolean anchorSpace = true;
+
+        Tokenizer(Reader reader, URL base, PageHandler handler) {
+            this.reader = reader;
+            this.base = base;
+            this.handler = handler;
+        }
+
+        private int read() throws IOException {
+            if (pushedBack >= 0) {
+                int c = pushedBack;
+                pushedBack = -1;
+                return c;
+            }
+            if (position == limit) {
+                limit = reader.read(buffer, 0, buffer.length);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return -1;
+                }
+            }
+            return buffer[position++];
+        }
+
+        private void unread(int c) {
+            pushedBack = c;
+        }
+
+        void run() throws IOException {
+            int c;
+            while ((c = read()) >= 0) {
+                if (c == '<') {
+                    markup();
+                } else if (c == '&') {
+                    appendText(entity());
+                } else {
+                    appendText((char) c);
+                }
+            }
+            endAnchor();
+            if (text.length() > 0) {
+                handler.text(text);
+                text.setLength(0);
+            }
+        }
+
+        private void appendText(int c) {
+            if (c < 0) {
+                return;
+            }
+            if (Character.isWhitespace(c) || c == '\u00a0') {
+                if (lastWasSpace) {
+                    return;
+                }
+                lastWasSpace = true;
+                c = ' ';
+            } else {
+                lastWasSpace = false;
+            }
+            text.appendCodePoint(c);
+            if (anchorUrl != null && anchorText.length() < MAX_ANCHOR_TEXT) {
+                if (c != ' ' || !anchorSpace) {
+                    anchorText.appendCodePoint(c);
+                }
+                anchorSpace = c == ' ';
+            }
+            if (text.length() >= CHUNK_SIZE) {
+                handler.text(text);
+                text.setLength(0);
+            }
+        }
+
+        private void separate() {
+            appendText(' ');
+        }
+
+        /**
+         * Handles what follows a '<': a tag, a comment, a doctype or just a '<' in the text
+         */
+        private void markup() throws IOException {
+            int c = read();
+            if (c == '!') {
+                c = read();
+                if (c == '-') {
+                    c = read();
+                    if (c == '-') {
+                        skipComment();
+                        return;
+                    }
+                }
+                unread(c);
+                skipUntil('>');
+            } else if (c == '?') {
+                skipUntil('>');
+            } else if (c == '/') {
+                c = read();
+                if (isLetter(c)) {
+                    readName(c);
+                    skipUntil('>');
+                    endTag();
+                } else {
+                    unread(c);
+                    skipUntil('>');     // A bogus comment, like </ >
+                }
+            } else if (isLetter(c)) {
+                readName(c);
+                startTag();
+            } else {
+                appendText('<');
+                unread(c);
+            }
+        }
+
+        private static boolean isLetter(int c) {
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+        }
+
+        /**
+         * Reads a tag name starting with c into name, in lower case
+         */
+        private void readName(int c) throws IOException {
+            name.setLength(0);
+            while (c >= 0 && c != '>' && c != '/' && !Character.isWhitespace(c)) {
+                name.append(Character.toLowerCase((char) c));
+                c = read();
+            }
+            unread(c);
+        }
+
+        private boolean nameIs(String tag) {
+            if (name.length() != tag.length()) {
+                return false;
+            }
+            for (int i = 0; i < tag.length(); i++) {
+                if (name.charAt(i) != tag.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean isBlock() {
+            for (String block : BLOCK_ELEMENTS) {
+                if (nameIs(block)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void startTag() throws IOException {
+            boolean anchor = nameIs("a");
+            boolean baseTag = !anchor && nameIs("base");
+            String rawText = anchor || baseTag ? null : nameIs("script") ? "script" : nameIs("style") ? "style" : null;
+            boolean block = !anchor && !baseTag && rawText == null && isBlock();
+            String href = attributes(anchor || baseTag);
+
+            if (anchor) {
+                endAnchor();
+                if (href != null) {
+                    String url = resolve(href);
+                    if (url != null && PageLink.isHttp(url)) {
+                        anchorUrl = url;
+                        anchorText.setLength(0);
+                        anchorSpace = true;
+                    }
+                }
+            } else if (baseTag) {
+                if (href != null && !baseSet) {
+                    String url = resolve(href);
+                    if (url != null) {
+                        base = new URL(url);
+                        baseSet = true;
+                    }
+                }
+            } else if (rawText != null) {
+                skipRawText(rawText);
+            } else if (block) {
+                separate();
+            }
+        }
+
+        private void endTag() {
+            if (nameIs("a")) {
+                endAnchor();
+            } else if (isBlock()) {
+                separate();
+            }
+        }
+
+        private void endAnchor() {
+            if (anchorUrl != null) {
+                int end = anchorText.length();
+                if (end > 0 && anchorText.charAt(end - 1) == ' ') {
+                    anchorText.setLength(end - 1);
+                }
+                handler.link(anchorUrl, anchorText.toString());
+                anchorUrl = null;
+            }
+        }
+
+        /**
+         * Reads the attributes of a tag up to and including the closing '>'
+         * @param wantHref	Keep the value of the href attribute
+         * @return the value of the href attribute, or null if not wanted or not present
+         */
+        private String attributes(boolean wantHref) throws IOException {
+            String href = null;
+            int c;
+            while (true) {
+                c = read();
+                while (c >= 0 && (Character.isWhitespace(c) || c == '/')) {
+                    c = read();
+                }
+                if (c < 0 || c == '>') {
+                    return href;
+                }
+                // The attribute name
+                name.setLength(0);
+                while (c >= 0 && c != '=' && c != '>' && c != '/' && !Character.isWhitespace(c)) {
+                    name.append(Character.toLowerCase((char) c));
+                    c = read();
+                }
+                boolean isHref = wantHref && nameIs("href");
+                while (c >= 0 && Character.isWhitespace(c)) {
+                    c = read();
+                }
+                if (c != '=') {
+                    unread(c);      // An attribute without a value
+                    continue;
+                }
+                // The attribute value, quoted or not
+                c = read();
+                while (c >= 0 && Character.isWhitespace(c)) {
+                    c = read();
+                }
+                value.setLength(0);
+                if (c == '"' || c == '\'') {
+                    int quote = c;
+                    while ((c = read()) >= 0 && c != quote) {
+                        if (isHref) appendValue(c);
+                    }
+                } else {
+                    while (c >= 0 && c != '>' && !Character.isWhitespace(c)) {
+                        if (isHref) appendValue(c);
+                        c = read();
+                    }
+                    unread(c);
+                }
+                if (isHref && href == null) {
+                    href = value.toString().trim();
+                }
+            }
+        }
+
+        /**
+         * Appends a character of an href value, decoding entities
+         */
+        private void appendValue(int c) throws IOException {
+            if (c == '&') {
+                int start = value.length();
+                value.append('&');
+                int decoded = entity(value);
+                if (decoded >= 0) {
+                    value.setLength(start);
+                    value.appendCodePoint(decoded);
+                }
+            } else {
+                value.append((char) c);
+            }
+        }
+
+        /**
+         * Decodes the entity after a '&' in the text
+         * @return the decoded character, or -1 if the raw characters were appended to the text instead
+         */
+        private int entity() throws IOException {
+            name.setLength(0);
+            int decoded = entity(name);
+            if (decoded < 0) {
+                appendText('&');
+                for (int i = 0; i < name.length(); i++) {
+                    appendText(name.charAt(i));
+                }
+            }
+            return decoded;
+        }
+
+        /**
+         * Reads the entity after a '&', appending the raw characters to raw
+         * @return the decoded character, or -1 if it is not a known entity
+         */
+        private int entity(StringBuilder raw) throws IOException {
+            int start = raw.length();
+            int c = read();
+            boolean numeric = c == '#';
+            if (numeric) {
+                raw.append('#');
+                c = read();
+            }
+            boolean hex = numeric && (c == 'x' || c == 'X');
+            if (hex) {
+                raw.append((char) c);
+                c = read();
+            }
+            while (c >= 0 && raw.length() - start < 12 && Character.isLetterOrDigit(c)) {
+                raw.append((char) c);
+                c = read();
+            }
+            int decoded = -1;
+            String digits = raw.substring(start + (numeric ? 1 : 0) + (hex ? 1 : 0));
+            if (numeric) {
+                try {
+                    decoded = Integer.parseInt(digits, hex ? 16 : 10);
+                    if (!Character.isValidCodePoint(decoded) || decoded == 0) {
+                        decoded = 0xfffd;
+                    }
+                } catch (NumberFormatException e) {
+                    decoded = -1;
+                }
+            } else {
+                decoded = namedEntity(digits);
+            }
+            if (c == ';' && decoded >= 0) {
+                return decoded;
+            }
+            unread(c);
+            if (c == ';' && decoded < 0) {
+                return -1;
+            }
+            return decoded;
+        }
+
+        private static int namedEntity(String name) {
+            switch (name) {
+                case "amp": return '&';
+                case "lt": return '<';
+                case "gt": return '>';
+                case "quot": return '"';
+                case "apos": return '\'';
+                case "nbsp": return '\u00a0';
+                case "copy": return '©';
+                case "reg": return '®';
+                case "ndash": return '–';
+                case "mdash": return '—';
+                case "hellip": return '…';
+                case "laquo": return '«';
+                case "raquo": return '»';
+                case "aacute": return 'á';
+                case "Aacute": return 'Á';
+                case "eacute": return 'é';
+                case "Eacute": return 'É';
+                case "iacute": return 'í';
+                case "Iacute": return 'Í';
+                case "oacute": return 'ó';
+                case "Oacute": return 'Ó';
+                case "uacute": return 'ú';
+                case "Uacute": return 'Ú';
+                case "yacute": return 'ý';
+                case "Yacute": return 'Ý';
+                case "eth": return 'ð';
+                case "ETH": return 'Ð';
+                case "thorn": return 'þ';
+                case "THORN": return 'Þ';
+                case "aelig": return 'æ';
+                case "AElig": return 'Æ';
+                case "ouml": return 'ö';
+                case "Ouml": return 'Ö';
+                default: return -1;
+            }
+        }
+
+        private void skipUntil(char end) throws IOException {
+            int c;
+            while ((c = read()) >= 0 && c != end) {
+                // Skip
+            }
+        }
+
+        /**
+         * Skips a comment, up to and including -->
+         */
+        private void skipComment() throws IOException {
+            int dashes = 0;
+            int c;
+            while ((c = read()) >= 0) {
+                if (c == '>' && dashes >= 2) {
+                    return;
+                }
+                dashes = c == '-' ? dashes + 1 : 0;
+            }
+        }
+
+        /**
+         * Skips the contents of a script or style element, up to and including its end tag
+         */
+        private void skipRawText(String tag) throws IOException {
+            int c = read();
+            while (c >= 0) {
+                if (c != '<') {
+                    c = read();
+                    continue;
+                }
+                c = read();
+                if (c != '/') {
+                    continue;       // c may start the end tag, check it again
+                }
+                int matched = 0;
+                c = read();
+                while (matched < tag.length() && c >= 0 && Character.toLowerCase((char) c) == tag.charAt(matched)) {
+                    matched++;
+                    c = read();
+                }
+                if (matched == tag.length() && (c == '>' || c == '/' || Character.isWhitespace(c))) {
+                    if (c != '>') {
+                        skipUntil('>');
+                    }
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return the absolute URL of the href, or null if it cannot be resolved
+         */
+        private String resolve(String href) {
+            try {
+                return new URL(base, href).toExternalForm();
+            } catch (MalformedURLException e) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+import java.util.Map;
+
+/**
+ * Folds text for matching: lower case, letters mapped to their English alphabet equivalents
+ * (e.g. Icelandic þ to th, see WebCrawler.IStoEN) and runs of whitespace collapsed to a single space.
+ * The folding of every Latin character is precomputed in a table when the folder is created,
+ * so folding a character is a single array lookup. Immutable, so it can be shared by all workers.
+ */
+public class TextFolder {
+    static final int TABLE_SIZE = 0x250;    // Basic Latin to Latin Extended-B, everything else is only lower cased
+
+    private final char[] single;            // The folded character, or 0 if it folds to more than one character
+    private final String[] multi;           // The folded characters where single[c] is 0
+
+    /**
+     * @param mappings	Maps (lower case) characters to the characters they fold to, e.g. "þ" to "th"
+     */
+    public TextFolder(Map<String, String> mappings) {
+        single = new char[TABLE_SIZE];
+        multi = new String[TABLE_SIZE];
+        for (int c = 0; c < TABLE_SIZE; c++) {
+            String folded;
+            if (Character.isWhitespace(c) || Character.isSpaceChar(c)) {
+                folded = " ";
+            } else {
+                char lower = Character.toLowerCase((char) c);
+                folded = mappings.get(String.valueOf(lower));
+                if (folded == null) {
+                    folded = String.valueOf(lower);
+                }
+            }
+            if (folded.length() == 1) {
+                single[c] = folded.charAt(0);
+            } else {
+                multi[c] = folded;
+            }
+        }
+    }
+
+    /**
+     * @param c	The character to fold
+     * @return the folded character, ' ' for whitespace, or 0 if the character folds to several characters
+     * (see multiFold()) or to none at all
+     */
+    public char fold(char c) {
+        if (c < TABLE_SIZE) {
+            return single[c];
+        }
+        return Character.isWhitespace(c) || Character.isSpaceChar(c) ? ' ' : Character.toLowerCase(c);
+    }
+
+    /**
+     * @param c	A character for which fold() returned 0
+     * @return the characters it folds to
+     */
+    public String multiFold(char c) {
+        return c < TABLE_SIZE && multi[c] != null ? multi[c] : "";
+    }
+
+    /**
+     * Folds a whole string, trimming it and collapsing whitespace to single spaces
+     * @param text	The text to fold
+     * @return the folded text
+     */
+    public String fold(CharSequence text) {
+        StringBuilder folded = new StringBuilder(text.length());
+        boolean space = true;               // Drops leading whitespace
+        for (int i = 0; i < text.length(); i++) {
+            char c = fold(text.charAt(i));
+            if (c == ' ') {
+                if (!space) {
+                    folded.append(' ');
+                }
+                space = true;
+            } else if (c != 0) {
+                folded.append(c);
+                space = false;
+            } else {
+                folded.append(multiFold(text.charAt(i)));
+                space = false;
+            }
+        }
+        int end = folded.length();
+        if (end > 0 && folded.charAt(end - 1) == ' ') {
+            folded.setLength(end - 1);
+        }
+        return folded.toString();
+    }
+}
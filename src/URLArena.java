@@ -0,0 +1,141 @@
+/*
+ URLs stored one after the other as UTF-8 bytes in a single growing byte array, each addressed by a long id
+ made of its offset and length, so a stored url costs its bytes and no objects.
+ URLs are only ever appended: removing a url leaves a hole, and the owner copies the live urls
+ to a new arena (see copyTo()) once the holes take up most of the space (see isSparse()).
+ Not thread safe, the owner guards it.
+*/
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class URLArena {
+    public static final int MAX_LENGTH = (1 << 24) - 1;    // The longest url (bytes) an id can address
+    private static final int LENGTH_BITS = 24;
+    private static final int MIN_SPARSE = 4096;             // Smaller arenas are not worth copying
+
+    private byte[] bytes;
+    private int used = 0;           // Bytes appended
+    private int removed = 0;        // Bytes of the urls removed since
+
+    /**
+     * @param capacity	The number of bytes to start with
+     */
+    public URLArena(int capacity) {
+        bytes = new byte[Math.max(16, capacity)];
+    }
+
+    /**
+     * Appends a url
+     * @param url	The url
+     * @return the id of the url
+     * @throws IllegalArgumentException if the url is longer than MAX_LENGTH bytes
+     */
+    public long add(String url) {
+        int length = url.length();
+        ensureRoom(length);
+        for (int i = 0; i < length; i++) {
+            char c = url.charAt(i);
+            if (c >= 0x80) {
+                return addEncoded(url);     // Canonical urls are ASCII, others are encoded the slow way
+            }
+            bytes[used + i] = (byte) c;
+        }
+        return append(length);
+    }
+
+    private long addEncoded(String url) {
+        byte[] utf8 = url.getBytes(StandardCharsets.UTF_8);
+        ensureRoom(utf8.length);
+        System.arraycopy(utf8, 0, bytes, used, utf8.length);
+        return append(utf8.length);
+    }
+
+    private long append(int length) {
+        if (length > MAX_LENGTH) {
+            throw new IllegalArgumentException("URL of " + length + " bytes is too long to store");
+        }
+        long id = (long) used << LENGTH_BITS | length;
+        used += length;
+        return id;
+    }
+
+    private void ensureRoom(int length) {
+        long needed = (long) used + length;
+        if (needed > bytes.length) {
+            if (needed > Integer.MAX_VALUE - 8) {
+                throw new IllegalArgumentException("URL arena full");
+            }
+            bytes = Arrays.copyOf(bytes, (int) Math.min(Integer.MAX_VALUE - 8, Math.max(needed, 2L * bytes.length)));
+        }
+    }
+
+    /**
+     * @param id	The id of a url in this arena
+     * @return the url
+     */
+    public String get(long id) {
+        return new String(bytes, offsetOf(id), lengthOf(id), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Marks the bytes of a url as free, the id must not be used again
+     * @param id	The id of a url in this arena
+     */
+    public void remove(long id) {
+        removed += lengthOf(id);
+    }
+
+    /**
+     * Copies a url to another arena
+     * @param id	The id of a url in this arena
+     * @param to	The arena to copy it to
+     * @return the id of the url in the other arena
+     */
+    public long copyTo(long id, URLArena to) {
+        int length = lengthOf(id);
+        to.ensureRoom(length);
+        System.arraycopy(bytes, offsetOf(id), to.bytes, to.used, length);
+        return to.append(length);
+    }
+
+    /**
+     * Removes all urls, and gives back the space of a large arena
+     */
+    public void clear() {
+        used = 0;
+        removed = 0;
+        if (bytes.length > MIN_SPARSE) {
+            bytes = new byte[256];
+        }
+    }
+
+    /**
+     * @return true if removed urls take up more than half of a large arena, so the live ones should be copied
+     */
+    public boolean isSparse() {
+        return used > MIN_SPARSE && removed > used / 2;
+    }
+
+    /**
+     * @return the number of bytes of the urls not removed
+     */
+    public int liveBytes() {
+        return used - removed;
+    }
+
+    /**
+     * @return the number of bytes held, live or not
+     */
+    public int capacity() {
+        return bytes.length;
+    }
+
+    private static int offsetOf(long id) {
+        return (int) (id >>> LENGTH_BITS);
+    }
+
+    private static int lengthOf(long id) {
+        return (int) id & MAX_LENGTH;
+    }
+}
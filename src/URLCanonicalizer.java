@@ -1,157 +1,238 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
  A class to convert an url to canonical (normalized) form.
+ The url is canonicalized by scanning its characters, without regular expressions, and the
+ canonicalizer keeps no state between urls, so a single instance can be shared by all workers.
+ Recently canonicalized urls are cached, since the same navigation links recur on every page of a site.
  */
 
 public class URLCanonicalizer {
-	
-	String prefix = "";
-	
+
+	private static final String HTTP = "http://";
+	private static final String HTTPS = "https://";
+	private static final String NOT_HTTP = new String("");	// Cached in place of null, compared by identity
+	private static final int CACHE_SEGMENTS = 16;			// Locks of the cache, a power of two
+
+	private final Map<String, String>[] cache;				// Segments of an LRU cache, raw url -> canonical url
+
+	public URLCanonicalizer() {
+		this(50000);
+	}
+
+	/**
+	 * @param cacheSize The maximum number of urls to cache, 0 for no cache
+	 */
+	@SuppressWarnings("unchecked")
+	public URLCanonicalizer(int cacheSize) {
+		if (cacheSize <= 0) {
+			cache = null;
+			return;
+		}
+		final int segmentSize = Math.max(1, cacheSize / CACHE_SEGMENTS);
+		cache = (Map<String, String>[]) new Map<?, ?>[CACHE_SEGMENTS];
+		for (int i = 0; i < CACHE_SEGMENTS; i++) {
+			cache[i] = new LinkedHashMap<String, String>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+					return size() > segmentSize;
+				}
+			};
+		}
+	}
+
 	/**
 	 * Processes the url passed as a parameter and returns a canonicalized
 	 * version of the url
 	 * @param url The url to be canonicalized
-	 * @return Canonicalized url
+	 * @return Canonicalized url, or null if the url is not a http(s) url
 	 */
     public String getCanonicalURL(String url) {
-    	
+
     	// Check if the passed url is null
     	if (url == null) {
     		return null;
     	}
-    	
-    	// Removes port 80, if necessary
-    	if (url.matches(".*:80(/.*)*")) {
-    		url = url.replace(":80", "");
+    	if (cache == null) {
+    		return canonicalize(url);
     	}
-    	
-    	// Canonicalize the prefix of the url
-    	url = canonPrefix(url);
 
-    	return canonicalize(url);
+    	Map<String, String> segment = cache[(url.hashCode() * 0x9E3779B9 >>> 28) & (CACHE_SEGMENTS - 1)];
+    	String canonical;
+    	synchronized (segment) {
+    		canonical = segment.get(url);
+    	}
+    	if (canonical == null) {
+    		canonical = canonicalize(url);
+    		synchronized (segment) {
+    			segment.put(url, canonical == null ? NOT_HTTP : canonical);
+    		}
+    	}
+    	return canonical == NOT_HTTP ? null : canonical;
     }
-    
+
     /**
-     * Processes the prefix of the url passed as a parameter and returns a 
-     * url with a canonicalized prefix
-     * @param The url which is being processed
-     * @return The url with a canonicalized prefix
+     * Canonicalizes the url:
+     * removes port 80, removes a leading www, adds http:// if the url has no protocol,
+     * lower cases the host, drops a trailing index.htm(l), fragment or query from the last
+     * path segment and ends the url with a slash.
+     * Urls of other protocols, and urls containing line breaks, are rejected.
+     * @param url The url which is being processed
+     * @return The canonicalized url, or null if the url is rejected
      */
- 	private String canonPrefix(String url) {
-     	
-     	String preURL = url;
-     	
-     	/* Check if the url matches certain patterns of prefixes and 
-     	canonicalize correspondingly */
-     	
-     	// Remove www, if necessary
-     	if (url.matches("http://www.*") || url.matches("https://www.*")) {
-     		preURL = preURL.replaceFirst("www.", "");
-     	}
-     	
-     	// Replace www with http(s)://, if missing
-     	else if(url.matches("www.*")) {
-     		preURL = preURL.replaceFirst("www.", "http://");
-     	}
-     	
-     	// Valid format
-     	else if(url.matches("http.*") || url.matches("https.*")) {
-     		return preURL;
-     	}
-     	
-     	// Not a http URL
-     	else if(url.matches("([a-z]|[A-Z])*:.*")) {
-     		return null;
-     	}
-     	
-     	// URL has no prefix
-     	else {
-     		preURL = "http://" + preURL;
-     	}
-     	
-     	return preURL;
-     }
-    
- 	/**
- 	 * Canonicalizes known patterns and returns a canonicalized url
- 	 * @param url The url which is being processed
- 	 * @return The canonicalized url
- 	 */
     private String canonicalize(String url) {
-		
-    	// Url is not http based on result from prefix canonicalization
-    	if (url == null) {
+    	// One pass to reject line breaks and to look for port 80,
+    	// which counts when ':80' is followed by a slash or the end of the url
+    	boolean port80 = false;
+    	int length = url.length();
+    	for (int i = 0; i < length; i++) {
+    		char c = url.charAt(i);
+    		if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+    			return null;
+    		}
+    		if (c == ':' && i + 2 < length && url.charAt(i + 1) == '8' && url.charAt(i + 2) == '0'
+    				&& (i + 3 == length || url.charAt(i + 3) == '/')) {
+    			port80 = true;
+    		}
+    	}
+    	if (port80) {
+    		url = removePort80(url);
+    	}
+
+    	// Canonicalize the prefix of the url, remembering where the part after the protocol starts
+    	String prefix;
+    	int start;
+    	if (url.startsWith("http://www")) {
+    		// Remove www, along with the character after it
+    		prefix = HTTP;
+    		start = url.length() > 10 ? 11 : 7;
+    	}
+    	else if (url.startsWith("https://www")) {
+    		prefix = HTTPS;
+    		start = url.length() > 11 ? 12 : 8;
+    	}
+    	else if (url.startsWith("www")) {
+    		// Replace www with http://, if missing
+    		if (url.length() > 3) {
+    			prefix = HTTP;
+    			start = 4;
+    		} else {
+    			prefix = "";
+    			start = 0;
+    		}
+    	}
+    	else if (url.startsWith(HTTP)) {
+    		prefix = HTTP;
+    		start = 7;
+    	}
+    	else if (url.startsWith(HTTPS)) {
+    		prefix = HTTPS;
+    		start = 8;
+    	}
+    	else if (url.startsWith("http")) {
+    		// Starts like a http url, but without ://, kept as it is
+    		prefix = "";
+    		start = 0;
+    	}
+    	else if (hasScheme(url)) {
+    		// Not a http URL
     		return null;
     	}
-		
-		String coreURL = "";
-    	
-		// Set the prefix type of the url
-		if(url.matches("http://.*")) {
-			prefix = "http://";
-		}
-		else if (url.matches("https://.*")) {
-			prefix = "https://";
-		}
-		
-		// Sanitize the prefix before 
-		coreURL = url.substring(prefix.length());
-		
-		// Split the core of the url into words
-		String[] wordList = coreURL.split("/");
-		wordList[0] = wordList[0].toLowerCase();
-		
-		// Certain patterns exclusive for the last word canonicalized 
-		int last = wordList.length-1; 
-		wordList[last] = lastWord(wordList[last]);
-		
-		// Assemble the words back into a single url and returns
-		return assembleURL(wordList);
-	}
+    	else {
+    		// URL has no prefix
+    		prefix = HTTP;
+    		start = 0;
+    	}
+
+    	// Trailing slashes are dropped, the rest of the core is split into the host, the middle and the last word
+    	int end = url.length();
+    	while (end > start && url.charAt(end - 1) == '/') {
+    		end--;
+    	}
+    	if (end == start && url.length() > start) {
+    		return null;	// Nothing but slashes, there is no host
+    	}
+    	int hostEnd = url.indexOf('/', start);
+    	if (hostEnd < 0 || hostEnd > end) {
+    		hostEnd = end;
+    	}
+    	int lastStart = url.lastIndexOf('/', end - 1) + 1;
+    	if (lastStart < start) {
+    		lastStart = start;
+    	}
+
+    	StringBuilder canonical = new StringBuilder(prefix.length() + end - start + 1);
+    	canonical.append(prefix);
+    	if (hostEnd == end) {
+    		// The host is also the last word
+    		String host = url.substring(start, end).toLowerCase();
+    		appendLastWord(canonical, host, 0, host.length());
+    	} else {
+    		canonical.append(url.substring(start, hostEnd).toLowerCase());
+    		canonical.append(url, hostEnd, lastStart);		// The middle, including its slashes
+    		appendLastWord(canonical, url, lastStart, end);
+    	}
+    	return canonical.toString();
+    }
+
+    /**
+     * Removes every occurrence of :80 from the url
+     */
+    private static String removePort80(String url) {
+    	StringBuilder removed = new StringBuilder(url.length());
+    	int from = 0;
+    	int at;
+    	while ((at = url.indexOf(":80", from)) >= 0) {
+    		removed.append(url, from, at);
+    		from = at + 3;
+    	}
+    	removed.append(url, from, url.length());
+    	return removed.toString();
+    }
+
+    /**
+     * @return true if the url starts with a protocol, letters followed by a colon
+     */
+    private static boolean hasScheme(String url) {
+    	for (int i = 0; i < url.length(); i++) {
+    		char c = url.charAt(i);
+    		if (c == ':') {
+    			return true;
+    		}
+    		if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z'))) {
+    			return false;
+    		}
+    	}
+    	return false;
+    }
 
-    
     /**
-     * Function specifically called on the last word of a url in order to
-     * canonicalize certain patterns exclusive to the last word
-     * @param word The last word of the url
-     * @return Last word canonicalized
+     * Appends the last word of a url, the characters from start to end, followed by a slash.
+     * Canonicalizes certain patterns exclusive to the last word: the word is left out
+     * if it is an index page or a page position, and a page position or db parameters are removed.
      */
-    private String lastWord(String word) {
+    private static void appendLastWord(StringBuilder canonical, String url, int start, int end) {
+    	int length = end - start;
     	// Remove index suffix
-    	if (word.equalsIgnoreCase("index.htm") || word.equalsIgnoreCase("index.html")) {
-    		return null;		// Requires removal of last word from URL
+    	if ((length == 9 || length == 10) && url.regionMatches(true, start, "index.html", 0, length)) {
+    		return;
     	}
-    	
+
     	// Remove page position related parameter
-    	if (word.contains("#")){
-			if (word.startsWith("#")) {
-				return null;	// Requires removal of last word from URL
-			}
-			else {
-				word = word.substring(0, word.indexOf("#"));
-			}
-		}
-    	
+    	int hash = url.indexOf('#', start);
+    	if (hash >= 0 && hash < end) {
+    		if (hash == start) {
+    			return;
+    		}
+    		end = hash;
+    	}
+
     	// Remove db parameters
-    	if (word.contains("?") && !word.startsWith("?")){
-    		word = word.substring(0, word.indexOf("?"));
-		}
-    	
-		return word;
-	}
-    
-    /**
-     * Assembles the words of a url back to a single url
-     * @param wordList List of the url words
-     * @return A single url string
-     */
-	private String assembleURL(String[] wordList) {
-		String assembledURL = prefix;
-		for (int i=0; i<wordList.length; i++) {
-			if (wordList[i] != null) {
-				assembledURL += wordList[i] + "/";
-			}
-		}
-		return assembledURL;
-	}
-	
+    	int query = url.indexOf('?', start);
+    	if (query > start && query < end) {
+    		end = query;
+    	}
+    	canonical.append(url, start, end).append('/');
+    }
 }
@@ -0,0 +1,37 @@
+/**
+ * 64-bit fingerprints of URL strings. With 64 bits the chance of two distinct URLs
+ * sharing a fingerprint is negligible even for crawls of billions of URLs, so sets
+ * can store the fingerprint instead of the string.
+ */
+public class URLFingerprint {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * FNV-1a over the chars of the url, followed by a final mix so all bits
+     * depend on all input, which the sets rely on when they split the fingerprint.
+     * @param url	The url
+     * @return the fingerprint
+     */
+    public static long of(String url) {
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < url.length(); i++) {
+            hash ^= url.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * The finalizer of MurmurHash3, a bijection on 64-bit values
+     */
+    public static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
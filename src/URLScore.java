@@ -4,30 +4,50 @@ import java.net.URL;
 /**
  * A data object for a URL and its score.
  *
- * Unmodified assignment code. 
+ * Assignment code, changed so the frontier does not keep one for each queued URL: the host queues
+ * hold the URLs as bytes and primitives (see HostQueue), and a URLScore is only made for a URL on its
+ * way out, to be fetched, spilled to disk or written to a checkpoint. The insertion index is handed
+ * out by the frontier, and the java.net.URL is only built when it is asked for, i.e. at fetch time.
  */
 public class URLScore implements Comparable<URLScore> {
-    private static int Counter=0;
-    private URL _url;
-    private double _score;
-    private int _index;
+    private final String _url;
+    private final double _score;
+    private final int _index;
+    private URL _parsed;        // Built by getURL(), null until then
 
-    public URLScore(String url, double score) throws MalformedURLException {
-        _url = new URL(url);
+    /**
+     * @param url	The url, one the frontier has checked (see Frontier.hostKey())
+     * @param score	Its score
+     * @param index	Its insertion index, which orders URLs with the same score
+     */
+    public URLScore(String url, double score, int index) {
+        _url = url;
         _score = score;
-        _index = Counter++;
+        _index = index;
     }
 
+    /**
+     * @return the url, parsed on the first call
+     */
     public URL getURL() {
-        return _url;
+        URL parsed = _parsed;
+        if (parsed == null) {
+            try {
+                parsed = new URL(_url);
+            } catch (MalformedURLException e) {
+                throw new IllegalStateException("Queued a malformed url: " + _url, e);
+            }
+            _parsed = parsed;
+        }
+        return parsed;
     }
-    
+
     public double getScore() {
         return _score;
     }
 
     public String getURLString() {
-        return _url.toString();
+        return _url;
     }
 
     public int getIndex() {
@@ -48,4 +68,3 @@ public class URLScore implements Comparable<URLScore> {
         }
     }
 }
-
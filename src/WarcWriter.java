@@ -0,0 +1,290 @@
+/*
+ Archives the fetched responses in WARC files (ISO 28500, WARC/1.1), so a crawl can be processed again offline
+ instead of fetched again. Each response is a response record holding the status line, headers and body,
+ compressed as a gzip member of its own so a reader can seek to any record. Each file starts with a warcinfo
+ record, and a new file is started once a file passes the maximum size.
+
+ The fetch workers only put the responses on a DropQueue of MAX_QUEUE_BYTES, so they never wait for the disk.
+ A writer thread takes the responses off the queue in batches, compresses the records of a batch into one
+ large buffer and writes it with a single sequential write.
+
+ The fetcher hands over the body decoded from the transfer encoding, so the record has a Content-Length header
+ for the body as stored in place of the Transfer-Encoding and Content-Length headers of the response.
+ The record is dated when the request was sent and names the URL the response came from, after any redirects.
+ A body the fetcher cut short (see FetchResult.isTruncated()) is marked with a WARC-Truncated: length header.
+*/
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+public class WarcWriter {
+    private static final long MAX_QUEUE_BYTES = 64 << 20;   // The memory responses waiting to be written may take, more are dropped
+    private static final int RECORD_OVERHEAD = 1024;    // About the bytes a response takes in memory, besides its body
+    private static final int BATCH_SIZE = 256;          // Max # of records written at once
+    private static final int BUFFER_SIZE = 4 << 20;     // The size the batch buffer starts at
+
+    private final File dir;
+    private final String prefix;                // The start of each file name
+    private final long maxFileSize;             // Start a new file after a file passes this size (bytes)
+    private final String software;              // Names the crawler in the warcinfo record
+    private final DropQueue<FetchResult> queue = new DropQueue<FetchResult>(MAX_QUEUE_BYTES, new DropQueue.Sizer<FetchResult>() {
+        @Override
+        public long sizeOf(FetchResult result) {
+            return (result.getBody() == null ? 0 : result.getBody().length) + RECORD_OVERHEAD;
+        }
+    });
+    private final Thread writer;
+    private volatile boolean closed = false;
+    private FileOutputStream out;               // The current file, null until the first record
+    private File file;
+    private long fileSize;
+    private int fileNumber = 0;
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile IOException failure;       // Stops the writer, set by the writer thread
+    private boolean debug = false;
+
+    /**
+     * @param dir			The directory to write the WARC files to, created if need be
+     * @param prefix		The start of each file name
+     * @param maxFileSize	Start a new file after a file passes this size (bytes)
+     * @param software		Names the crawler in the warcinfo record
+     * @param debug			Print diagnostic output
+     * @throws IOException if the directory can't be created
+     */
+    public WarcWriter(File dir, String prefix, long maxFileSize, String software, boolean debug) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        this.dir = dir;
+        this.prefix = prefix;
+        this.maxFileSize = maxFileSize;
+        this.software = software;
+        this.debug = debug;
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeAll();
+            }
+        }, "warc-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues the response to be archived, never waits
+     * @param result	The response
+     * @return false if the response was dropped because the writer is behind or has failed
+     */
+    public boolean add(FetchResult result) {
+        if (closed || failure != null || !queue.offer(result)) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private void writeAll() {
+        List<FetchResult> batch = new ArrayList<FetchResult>(BATCH_SIZE);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(BUFFER_SIZE);
+        try {
+            while (!closed || !queue.isEmpty()) {
+                FetchResult first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, BATCH_SIZE - 1);
+                for (FetchResult result : batch) {
+                    writeRecord(buffer, "response", result.getFinalURL(), new Date(result.getFetchTime()),
+                            "application/http;msgtype=response", result.isTruncated() ? "length" : null, httpBlock(result));
+                    if (fileSize + buffer.size() >= maxFileSize) {
+                        write(buffer);
+                        roll();     // The next record starts a new file
+                    }
+                }
+                write(buffer);
+                written.addAndGet(batch.size());
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            failure = e;
+            dropped.addAndGet(batch.size() + queue.clear());
+            System.out.println("Could not write the WARC file " + file + ": " + e.getMessage());
+        } finally {
+            try {
+                if (out != null) {
+                    out.close();
+                }
+            } catch (IOException e) {
+                if (failure == null) failure = e;
+            }
+        }
+    }
+
+    /**
+     * Writes the buffer to the current file in one go, starting a file if need be, and empties it
+     */
+    private void write(ByteArrayOutputStream buffer) throws IOException {
+        if (buffer.size() == 0) {
+            return;
+        }
+        if (out == null) {
+            open();
+        }
+        buffer.writeTo(out);
+        fileSize += buffer.size();
+        buffer.reset();
+    }
+
+    private void roll() throws IOException {
+        if (out != null) {
+            out.close();
+            if (debug) System.out.println("WarcWriter-Wrote " + file + ", " + fileSize + " bytes");
+            out = null;
+        }
+    }
+
+    private void open() throws IOException {
+        String time = timestamp("yyyyMMddHHmmss", new Date());
+        file = new File(dir, String.format("%s-%s-%05d.warc.gz", prefix, time, fileNumber++));
+        out = new FileOutputStream(file);
+        fileSize = 0;
+        ByteArrayOutputStream info = new ByteArrayOutputStream();
+        String fields = "software: " + software + "\r\n"
+                + "format: WARC File Format 1.1\r\n"
+                + "conformsTo: http://iipc.github.io/warc-specifications/specifications/warc-format/warc-1.1/\r\n";
+        writeRecord(info, "warcinfo", null, new Date(), "application/warc-fields", null, fields.getBytes(StandardCharsets.UTF_8));
+        out.write(info.toByteArray());
+        fileSize += info.size();
+    }
+
+    /**
+     * The HTTP response as it would have come over the wire, less the transfer encoding
+     */
+    private static byte[] httpBlock(FetchResult result) {
+        StringBuilder head = new StringBuilder(512);
+        head.append("HTTP/1.1 ").append(result.getStatus()).append(' ').append(reasonPhrase(result.getStatus())).append("\r\n");
+        for (Map.Entry<String, List<String>> header : result.getHeaders().entrySet()) {
+            String name = header.getKey();
+            if (name.equals("content-length") || name.equals("transfer-encoding") || name.startsWith(":")) {
+                continue;   // Replaced below, or an HTTP/2 pseudo header
+            }
+            for (String value : header.getValue()) {
+                head.append(name).append(": ").append(value).append("\r\n");
+            }
+        }
+        byte[] body = result.getBody() == null ? new byte[0] : result.getBody();
+        head.append("content-length: ").append(body.length).append("\r\n\r\n");
+        byte[] headBytes = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+        byte[] block = Arrays.copyOf(headBytes, headBytes.length + body.length);
+        System.arraycopy(body, 0, block, headBytes.length, body.length);
+        return block;
+    }
+
+    /**
+     * The fetcher is not told the reason phrase of the status line, so the usual one is written.
+     * It is only a label, readers go by the status code.
+     * @return the reason phrase of the status, empty if it is not a common one
+     */
+    static String reasonPhrase(int status) {
+        switch (status) {
+            case 200: return "OK";
+            case 201: return "Created";
+            case 202: return "Accepted";
+            case 203: return "Non-Authoritative Information";
+            case 204: return "No Content";
+            case 206: return "Partial Content";
+            case 300: return "Multiple Choices";
+            case 301: return "Moved Permanently";
+            case 302: return "Found";
+            case 303: return "See Other";
+            case 304: return "Not Modified";
+            case 307: return "Temporary Redirect";
+            case 308: return "Permanent Redirect";
+            case 400: return "Bad Request";
+            case 401: return "Unauthorized";
+            case 403: return "Forbidden";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 406: return "Not Acceptable";
+            case 408: return "Request Timeout";
+            case 410: return "Gone";
+            case 429: return "Too Many Requests";
+            case 500: return "Internal Server Error";
+            case 501: return "Not Implemented";
+            case 502: return "Bad Gateway";
+            case 503: return "Service Unavailable";
+            case 504: return "Gateway Timeout";
+            default: return "";
+        }
+    }
+
+    /**
+     * Appends a record, compressed as a gzip member of its own
+     * @param date		When the content of the record was captured
+     * @param truncated	Why the block is shorter than what was sent, null if it is not
+     */
+    private static void writeRecord(ByteArrayOutputStream to, String type, String uri, Date date, String contentType,
+                                    String truncated, byte[] block) throws IOException {
+        StringBuilder header = new StringBuilder(256);
+        header.append("WARC/1.1\r\n");
+        header.append("WARC-Type: ").append(type).append("\r\n");
+        header.append("WARC-Record-ID: <urn:uuid:").append(UUID.randomUUID()).append(">\r\n");
+        header.append("WARC-Date: ").append(timestamp("yyyy-MM-dd'T'HH:mm:ss'Z'", date)).append("\r\n");
+        if (uri != null) {
+            header.append("WARC-Target-URI: ").append(uri).append("\r\n");
+        }
+        if (truncated != null) {
+            header.append("WARC-Truncated: ").append(truncated).append("\r\n");
+        }
+        header.append("Content-Type: ").append(contentType).append("\r\n");
+        header.append("Content-Length: ").append(block.length).append("\r\n\r\n");
+        GZIPOutputStream gzip = new GZIPOutputStream(to, 1 << 16) {
+            {
+                def.setLevel(Deflater.BEST_SPEED);
+            }
+        };
+        gzip.write(header.toString().getBytes(StandardCharsets.UTF_8));
+        gzip.write(block);
+        gzip.write("\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        gzip.close();       // Frees the deflater, closing the buffer does nothing
+    }
+
+    private static String timestamp(String pattern, Date date) {
+        SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.ROOT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(date);
+    }
+
+    /**
+     * Writes the responses still queued and closes the file
+     */
+    public void close() {
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long writtenCount() {
+        return written.get();
+    }
+
+    public long droppedCount() {
+        return dropped.get();
+    }
+}
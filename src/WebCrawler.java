@@ -2,50 +2,131 @@
  * A simple Web Crawler written in Java
  * Partly based on http://cs.nyu.edu/courses/fall02/G22.3033-008/proj1.html and Assignment 4 skeleton (RU Web Mining 2013-3)
  * 
- * Our crawler is a mostly sequential, topical crawler.
- * It uses a priority queue for unvisited links.
+ * Our crawler is a concurrent, topical crawler. Pages are fetched and processed by a bounded pool of workers.
+ * It uses a priority queue of unvisited links for each host, and visits each host politely.
  * The links are scored based on relevance of the URL and the page that contained the link.
  * This crawler lists HTML pages that contain the phrase query in their <body> section.
  * 
  * Usage: From command line 
- *      java -jar HV-WebCrawler <URL> <TOPIC> <QUERY WORDS> <N>
+ *      java -jar HV-WebCrawler [OPTIONS] <URL> <TOPIC> <QUERY WORDS> <N>
+ *  or  java -jar HV-WebCrawler --profiles=FILE [OPTIONS] <URL> <N>
  * where  	URL is the url (seed) to start the crawl,
  * 			TOPIC is the topic we are interested in (used to quide the crawler to relevant links)
  * 			QUERY WORDS is the phrase we are interested in
  * 			N (optional) is the maximum number of pages to crawl
+ * and OPTIONS are any of
+ * 			--threads=T		the maximum number of pages fetched and processed at the same time
+ * 			--frontier-memory=M	the maximum number of queued urls kept in memory, the rest are spilled to disk
+ * 			--frontier-dir=DIR	the directory to spill queued urls to (default: a temporary directory)
+ * 			--expected-urls=U	the number of distinct urls the seen set is sized for
+ * 			--seen-offheap		keep the seen set outside the Java heap
+ * 			--seen-set=bloom	use a Bloom filter as the seen set, for very large crawls
+ * 			--false-positive-rate=P	the false positive rate of the Bloom filter (default: 0.001)
+ * 			--canonical-cache=C	the number of canonicalized links to cache, 0 to disable the cache
+ * 			--max-fetches=F		the maximum number of requests in flight (default: T)
+ * 			--connect-timeout=MS	the maximum time to connect to a host
+ * 			--read-timeout=MS	the maximum time to wait for a whole response, headers and body
+ * 			--max-body=KB		the maximum size of the body of a page, the rest is not downloaded (default: 2048)
+ * 			--skip-extensions=LIST	the comma separated extensions of links not to follow, e.g. pdf,jpg (default: files
+ * 						that are not pages, see ExtensionFilter), empty to follow all
+ * 			--parser=streaming	extract links and text in one pass instead of building a jsoup DOM
+ * 			--robots-ttl=S		the time (seconds) until robots.txt of a host is fetched again (default: a day)
+ * 			--robots-cache=FILE	the file to keep robots.txt rules in between crawls
+ * 			--checkpoint=FILE	write the crawl state to FILE now and then, so the crawl can be resumed
+ * 			--checkpoint-interval=S	the time (seconds) between checkpoints (default: 300)
+ * 			--resume			resume the crawl from the checkpoint instead of starting over
+ * 			--cluster=NODES		crawl as one node of a cluster, NODES is a comma separated list of host:port
+ * 			--node=HOST:PORT	the id of this node in the cluster, where it listens for links from the others
+ * 			--cluster-batch=B	the maximum number of links forwarded to another node in one message (default: 256)
+ * 			--cluster-idle=S	the time (seconds) without links from other nodes before an idle node stops (default: 30)
+ * 			--dns-ttl=S			the time (seconds) the address of a host is cached (default: 300)
+ * 			--dns-negative-ttl=S	the time (seconds) a host that could not be resolved is remembered (default: 60)
+ * 			--dns-cache=H		the maximum number of hosts whose address is cached
+ * 			--page-store=FILE	recrawl: remember each page fetched in FILE, fetch pages known from earlier crawls
+ * 						with conditional requests, and revisit those most likely to have changed first
+ * 			--rate-control=fixed	wait a fixed time between requests to a host, instead of adapting the rate of each host
+ * 						to its response times (AIMD) and backing off on 429 and 503
+ * 			--min-host-delay=MS	the least time between two requests to a host, however well it copes (default: 50)
+ * 			--max-host-fetches=N	the maximum number of fetches from one host at the same time (default: 4)
+ * 			--slow-response=MS	back a host off when its response takes longer to start (default: 2000)
+ * 			--max-bandwidth=KB	the maximum download rate of the whole crawl (KB per second)
+ * 			--warc=DIR			archive every response fetched in compressed WARC files in DIR
+ * 			--warc-file-size=MB	the size (MB) after which a new WARC file is started (default: 1024)
+ * 			--index=DIR			index the text of the pages crawled in DIR, to look up other phrases later with IndexQuery
+ * 			--index-memory=MB	the memory (MB) the pages not yet written to the index may take (default: 64)
+ * 			--profiles=FILE		look for many topics and queries in one crawl, instead of TOPIC and QUERY WORDS: each line
+ * 						of FILE is a topic and a query separated by a tab. Each page is fetched and scanned once for all
+ * 						of them, a link is scored by the profile it is best for, and the pages found are counted for each
+ * 			--duplicate-distance=D	the most bits the SimHashes of near duplicate pages differ in, -1 to keep duplicates (default: 3)
+ * 			--metrics-port=P	serve live crawl metrics at http://127.0.0.1:P/metrics
+ * 			--jmx				expose live crawl metrics as an MBean over JMX
  * 
  * Helga Gudmundsdottir and Vignir Orn Gudmundsson, Reykjavik University, Fall 2013
  */
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.net.InetAddress;
+import java.net.URL;
 import java.io.*;
-
-import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
+import javax.management.JMException;
 
 public class WebCrawler {
     private final int SEARCH_LIMIT = 10000;  	// Absolute max # of pages crawled. Respect this, be polite!
-    private final int MILLISECOND_WAIT = 300; // Wait between url requests, be polite!
+    private final int MILLISECOND_WAIT = 300; // Wait between url requests to the same host, be polite!
     private final boolean DEBUG = false;     // To control debugging output
     private final String userAgent = "RuBot"; 	// Reykjavik University bot
+    private final int DEFAULT_THREADS = 64;  	// Default max # of pages fetched and processed at the same time
+    private final int CONNECT_TIMEOUT = 10000;	// Default max time (ms) to connect to a host
+    private final int READ_TIMEOUT = 30000;		// Default max time (ms) to wait for a whole response
+    private final int ROBOTS_TTL = 86400;		// Default time (s) until robots.txt of a host is fetched again
+    private final int CHECKPOINT_INTERVAL = 300;	// Default time (s) between checkpoints
+    private final int DNS_TTL = 300;			// Default time (s) the address of a host is cached
+    private final int DNS_NEGATIVE_TTL = 60;	// Default time (s) a host that could not be resolved is remembered
+    private final int DNS_THREADS = 8;			// Max # of host lookups at the same time
+    private final int DUPLICATE_DISTANCE = 3;	// Default max # of bits the SimHashes of near duplicate pages differ in
+    private final int DUPLICATE_MIN_WORDS = 50;	// Pages with fewer words are only compared exactly
+    private final int CLUSTER_BATCH = 256;		// Default max # of links forwarded to another node in one message
+    private final int MIN_HOST_DELAY = 50;		// Default least time (ms) between requests to a host that copes well
+    private final int MAX_HOST_FETCHES = 4;		// Default max # of fetches from one host at the same time
+    private final int SLOW_RESPONSE = 2000;		// Default time (ms) to the first byte above which a host is backed off
+    private final int CLUSTER_IDLE = 30;		// Default time (s) without links from other nodes before an idle node stops
+    private final int WARC_FILE_SIZE = 1024;	// Default size (MB) after which a new WARC file is started
+    private final int INDEX_MEMORY = 64;		// Default memory (MB) the pages not yet written to the index may take
+    private final int MAX_BODY = 2048;			// Default max size (KB) of the body of a page, the rest is not downloaded
 
     Frontier frontier;      					// The frontier, the list of pages yet to be crawled (visited)
-    Hashtable<String, Integer> visitedURLs;    	// The list of visited URLs
-    URLCanonicalizer canonicalizer; 			// Used to transform URLs to canonical form
+    URLCanonicalizer canonicalizer; 			// Used to transform URLs to canonical form, shared by all workers
+    ExtensionFilter extensionFilter;			// Skips links to files that are not pages, shared by all workers
     int maxPages;           					// max number of pages to crawl, may be supplied by the user
+    Map<String, String> options;				// the --name=value options supplied by the user
     
-    String topic;           					// the topic we are interested in
-    String topicEN = "";						// the topic we are interested in, converted to English alphabet characters
-    String queryString = "";    				// the query string we are interested in
-    String[] queryWords;   						// individual words of the query string
-    String queryStringEN = "";    				// the query string in English alphabet characters we are interested in
-    String[] queryWordsEN;   					// individual English words of the query string
-    boolean usingTopicEN = false;				// controls topic-related actions based on the language used (IS or EN)
-    boolean usingQueryEN = false;				// controls query-related actions based on the language used (IS or EN)
-    int scoreIncrement = 1;						// the increment step used by the scoring function
+    List<QueryProfile> profiles;				// the topics and queries we are interested in, just one unless the user supplies a file of them
+    QueryMatcher matcher;						// finds the query words, phrases and topics of all profiles, shared by all workers
 
     RobotTxtParser robotParser; // A robots.txt parser
-    HTMLParser htmlParser;  	// A HTMLParser
-    int totalRelevant=0;    	// Total number of pages containing our query string
+    DnsCache dns;				// Looks up each host in the background as soon as it is found
+    PageFetcher fetcher;    	// Fetches the pages, reusing connections to each host
+    HTMLParser htmlParser;  	// A HTMLParser, shared by all workers
+    WorkerPool workers;     	// The workers fetching and processing pages
+    AtomicInteger totalRelevant = new AtomicInteger();    	// Total number of pages containing our query string
+    AtomicInteger pagesCrawled = new AtomicInteger();    	// Total number of pages crawled
+    Checkpoint checkpoint;		// Writes the crawl state now and then, null unless the user asks for checkpoints
+    ClusterNode cluster;		// This node of the cluster, null unless crawling as part of a cluster
+    CrawlMetrics metrics;		// Counters and latencies of each stage of the crawl
+    DuplicateIndex duplicates;	// The content fingerprints of the pages crawled, null if duplicates are not skipped
+    PageStore pageStore;		// What earlier crawls learned about each page, null unless recrawling
+    WarcWriter warc;			// Archives the responses fetched, null unless the user asks for an archive
+    PageIndex index;			// Indexes the text of the pages crawled, null unless the user asks for an index
+    HostRateController rateControl;	// Adapts the rate of each host to how it copes, null for a fixed delay
+    BandwidthLimiter bandwidth;	// Caps the bytes downloaded per second, null unless the user asks for a cap
+    Set<String> retried = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());	// Pages fetched again after a 429 or 503
     
     // A hashmap which maps Icelandic characters to English synonym characters
     static final Map<String, String> IStoEN;
@@ -68,215 +149,722 @@ public class WebCrawler {
 	    }
 	}
 
-    public void initialize(String[] argv) {
+    public void initialize(String[] argv, Map<String, String> options) {
         String url;
-        robotParser = new RobotTxtParser(userAgent, DEBUG);
-        htmlParser = new HTMLParser();
-        canonicalizer= new URLCanonicalizer();
+        this.options = options;
+        dns = new DnsCache(HostResolver.SYSTEM, getLongOption("dns-ttl", DNS_TTL) * 1000,
+        		getLongOption("dns-negative-ttl", DNS_NEGATIVE_TTL) * 1000, getIntOption("dns-cache", 100000), DNS_THREADS, DEBUG);
+        dns.install();		// Before anything is looked up
+        workers = new WorkerPool(getIntOption("threads", DEFAULT_THREADS), DEBUG);
+        fetcher = new HttpClientFetcher(userAgent, getIntOption("connect-timeout", CONNECT_TIMEOUT),
+        		getIntOption("read-timeout", READ_TIMEOUT), getIntOption("max-fetches", workers.getMaxInFlight()),
+        		getIntOption("max-body", MAX_BODY) * 1024, DEBUG);
+        robotParser = new RobotTxtParser(userAgent, fetcher, getLongOption("robots-ttl", ROBOTS_TTL) * 1000, DEBUG);
+        loadRobotsCache();
+        htmlParser = new HTMLParser("streaming".equals(options.get("parser")));
+        canonicalizer= new URLCanonicalizer(getIntOption("canonical-cache", 50000));
+        String skipExtensions = options.get("skip-extensions");
+        extensionFilter = new ExtensionFilter(skipExtensions == null ? ExtensionFilter.DEFAULT_EXTENSIONS : skipExtensions);
+        int duplicateDistance = getIntOption("duplicate-distance", DUPLICATE_DISTANCE);
+        if (duplicateDistance >= 0) {
+        	duplicates = new DuplicateIndex(duplicateDistance, DUPLICATE_MIN_WORDS);
+        }
 
-        visitedURLs = new Hashtable<String, Integer>();
-        frontier = new Frontier(DEBUG);
+        String frontierDir = options.get("frontier-dir");
+        boolean adaptive = !"fixed".equals(options.get("rate-control"));
+        long minHostDelay = adaptive ? getLongOption("min-host-delay", MIN_HOST_DELAY) : MILLISECOND_WAIT;
+        frontier = new Frontier(minHostDelay, getIntOption("frontier-memory", Frontier.DEFAULT_MAX_IN_MEMORY),
+        		frontierDir == null ? null : new File(frontierDir), newSeenSet(), DEBUG);
+        if (adaptive) {
+        	rateControl = new HostRateController(frontier, MILLISECOND_WAIT, minHostDelay,
+        			getIntOption("max-host-fetches", MAX_HOST_FETCHES), getLongOption("slow-response", SLOW_RESPONSE), DEBUG);
+        }
+        if (options.containsKey("max-bandwidth")) {
+        	bandwidth = new BandwidthLimiter(getLongOption("max-bandwidth", 0) * 1024);
+        }
+        startMetrics();
+        frontier.setHostGate(new Frontier.HostGate() {
+        	@Override
+        	public void hostAdded(final String host, final URL url) {
+        		// Don't fetch from the host before we know what robots.txt allows, and how often.
+        		// The host is looked up first, so neither robots.txt nor the pages wait for DNS
+        		dns.prefetch(url.getHost()).thenCompose(new Function<InetAddress[], CompletableFuture<RobotRules>>() {
+        			@Override
+        			public CompletableFuture<RobotRules> apply(InetAddress[] addresses) {
+        				return robotParser.prefetch(host, url);
+        			}
+        		}).thenAccept(new Consumer<RobotRules>() {
+        			@Override
+        			public void accept(RobotRules rules) {
+        				openHost(host, rules);
+        			}
+        		});
+        	}
+        });
+        robotParser.setRulesListener(new RobotTxtParser.RulesListener() {
+        	@Override
+        	public void rulesRefreshed(String host, RobotRules rules) {
+        		openHost(host, rules);	// The Crawl-delay may have changed
+        	}
+        });
 
         url = argv[0];                  							// The seed URL supplied by the user
-        topic = argv[1].toLowerCase();  							// The topic
-        queryString = argv[2].toLowerCase().replaceAll("\\s+", " ");// The query words supplied by the user
-        queryWords = queryString.split("\\s");    					// Assume space between query words
-        scoreIncrement = queryWords.length;							// Use the number of words in the query as the increment factor
-        
-        topicToEN();												// Maps characters of the topic to EN version, if any
-        queryWordsToEN(); 											// Maps characters of the query words to EN version, if any
+        int limitArg = 3;											// Where N is, if the user supplies it
+        String profilesFile = options.get("profiles");
+        if (profilesFile != null) {
+        	try {
+        		setProfiles(QueryProfile.load(new File(profilesFile)));
+        	} catch (IOException e) {
+        		System.out.println("Could not read the profiles: " + e.getMessage());
+        		System.exit(1);
+        	}
+        	limitArg = 1;
+        } else {
+        	setQuery(argv[1], argv[2]);
+        }
+
+        String checkpointFile = options.get("checkpoint");
+        if (checkpointFile != null) {
+        	checkpoint = new Checkpoint(new File(checkpointFile), frontier, robotParser, pagesCrawled, totalRelevant, profiles, DEBUG);
+        	if (options.containsKey("resume")) {
+        		resume(new File(checkpointFile));
+        	}
+        } else if (options.containsKey("resume")) {
+        	System.out.println("--resume needs the checkpoint to resume from, see --checkpoint");
+        	System.exit(1);
+        }
+
+        String pageStoreFile = options.get("page-store");
+        if (pageStoreFile != null) {
+        	List<String> queries = new ArrayList<String>();
+        	for (QueryProfile profile : profiles) {
+        		queries.add(profile.getQuery());
+        	}
+        	pageStore = new PageStore(queries, DEBUG);
+        	try {
+        		pageStore.load(new File(pageStoreFile));
+        	} catch (IOException e) {
+        		System.out.println("Could not load the page store: " + e.getMessage());
+        	}
+        }
+
+        String warcDir = options.get("warc");
+        if (warcDir != null) {
+        	try {
+        		warc = new WarcWriter(new File(warcDir), "RuBot", getLongOption("warc-file-size", WARC_FILE_SIZE) << 20, userAgent, DEBUG);
+        	} catch (IOException e) {
+        		System.out.println("Could not start the WARC archive: " + e.getMessage());
+        		System.exit(1);
+        	}
+        }
+
+        String indexDir = options.get("index");
+        if (indexDir != null) {
+        	try {
+        		index = new PageIndex(new File(indexDir), new TextFolder(IStoEN), getLongOption("index-memory", INDEX_MEMORY) << 20, DEBUG);
+        	} catch (IOException e) {
+        		System.out.println("Could not open the page index: " + e.getMessage());
+        		System.exit(1);
+        	}
+        }
+
+        String clusterNodes = options.get("cluster");
+        if (clusterNodes != null) {
+        	startCluster(clusterNodes);
+        }
 
         String canonicalUrl = canonicalizer.getCanonicalURL(url);	// Canonicalize the URL
-        frontier.add(canonicalUrl, 0.0);                            // The seed has score 0.0
+        if (cluster == null || canonicalUrl == null || cluster.isLocal(canonicalUrl)) {
+        	frontier.add(canonicalUrl, 0.0);                        // The seed has score 0.0
+        } else {
+        	cluster.handOff(canonicalUrl, 0.0);						// Every node gets the seed, its owner crawls it
+        }
+
+        if (pageStore != null) {
+        	queueKnownPages();
+        }
 
         maxPages = SEARCH_LIMIT;
-        if (argv.length > 3) { // Does the user override the search limit?
-            int iPages = Integer.parseInt(argv[3]);
+        if (argv.length > limitArg) { // Does the user override the search limit?
+            int iPages = Integer.parseInt(argv[limitArg]);
             if (iPages < maxPages)
                 maxPages = iPages;
         }
 
         System.out.println("--------------------------------------------------------");
         System.out.println("Starting crawl, seed: " + canonicalUrl);
-        
-        if(usingTopicEN) {
-        	System.out.println("Topic: " + topic + " has been converted to: " + topicEN);
-        }
-        else {
-        	System.out.println("Topic: " + topic);
-        }
-        
-        if(usingQueryEN) {
-        	System.out.println("Query string: " + queryString + " has been converted to: " + queryStringEN);
-        }
-        else {
-        	System.out.println("Query string: " + queryString);
-        }
+        printProfiles(new TextFolder(IStoEN));
         System.out.println("Maximum number of pages to visit: " + maxPages);
+        System.out.println("Maximum number of pages in flight: " + workers.getMaxInFlight()
+        		+ (workers.usesVirtualThreads() ? " (virtual threads)" : " (platform threads)"));
+        if (cluster != null) {
+        	System.out.println("Cluster node " + cluster.getId() + " of " + cluster.size());
+        }
         System.out.println("--------------------------------------------------------");
    }   
 
     /**
-     * Topic is converted from IS to EN, by using the static hashmap above
-     * which maps any IS characters found to its EN character sequence
+     * Prints the topic and the query of each profile, and what their IS characters are converted to, if any
+     * @param folder	Folds the IS characters to EN
      */
-    private void topicToEN() {
-    	for (int i=0; i<topic.length(); i++) {
-			String strIS = String.valueOf(topic.charAt(i));
-			if(IStoEN.containsKey(strIS)) {
-				String strEN = IStoEN.get(strIS);
-				topicEN = topic.replace(strIS, strEN);
-				usingTopicEN = true;
-			}
-		}	
-    	
-    	if (!usingTopicEN) {
-    		topicEN = topic;
+    private void printProfiles(TextFolder folder) {
+    	if (profiles.size() > 1) {
+    		System.out.println("Profiles: " + profiles.size() + " topics and queries, each page is fetched and scanned once for all");
+    		for (QueryProfile profile : profiles) {
+    			System.out.println("  " + profile);
+    		}
+    		return;
     	}
-	}
-    
+    	String topic = profiles.get(0).getTopic();
+    	String topicEN = folder.fold(topic);
+    	if (!topicEN.equals(topic.trim())) {
+    		System.out.println("Topic: " + topic + " has been converted to: " + topicEN);
+    	}
+    	else {
+    		System.out.println("Topic: " + topic);
+    	}
+
+    	String queryString = profiles.get(0).getQuery();
+    	String queryStringEN = folder.fold(queryString);
+    	if (!queryStringEN.equals(queryString.trim())) {
+    		System.out.println("Query string: " + queryString + " has been converted to: " + queryStringEN);
+    	}
+    	else {
+    		System.out.println("Query string: " + queryString);
+    	}
+    }
+
+    /**
+     * Restores the state of a crawl from its checkpoint, the crawl starts from the seed if there is none
+     * @param file	The checkpoint file
+     */
+    private void resume(File file) {
+    	if (!file.exists()) {
+    		System.out.println("No checkpoint at " + file + ", starting from the seed");
+    		return;
+    	}
+    	try {
+    		long start = System.currentTimeMillis();
+    		int queued = checkpoint.restore();
+    		System.out.println("Resumed from " + file + " in " + (System.currentTimeMillis() - start) + " ms: "
+    				+ pagesCrawled.get() + " pages crawled, " + queued + " urls queued");
+    	} catch (IOException e) {
+    		System.out.println("Could not resume from " + file + ": " + e.getMessage());
+    		System.exit(1);
+    	}
+    }
+
     /**
-     * Query words are converted from IS to EN, by using the static hashmap above
-     * which maps any IS characters found in each word to its EN character sequence
+     * Queues the pages fetched by earlier crawls, those most likely to have changed since first.
+     * A page certain to have changed counts as much as a link from a relevant page.
      */
-	private void queryWordsToEN() {
-        queryWordsEN = queryWords;  					// Assume space between query words
-    	for (int i=0; i<queryWords.length; i++) {
-    		for (int j=0; j<queryWords[i].length(); j++) {
-    			String strIS = String.valueOf(queryWords[i].charAt(j));
-    			if(IStoEN.containsKey(strIS)) {
-    				String strEN = IStoEN.get(strIS);
-    				queryWordsEN[i] = queryWords[i].replace(strIS, strEN);
-    				usingQueryEN = true;
+    private void queueKnownPages() {
+    	long now = System.currentTimeMillis();
+    	int queued = 0;
+    	int gone = 0;
+    	for (Map.Entry<String, PageStore.Page> known : pageStore.getPages().entrySet()) {
+    		String url = known.getKey();
+    		if (cluster != null && !cluster.isLocal(url)) {
+    			continue;		// The owner of the host queues it
+    		}
+    		PageStore.Page page = known.getValue();
+    		if (page.isGone()) {
+    			gone++;
+    			continue;
+    		}
+    		double[] rel = new double[profiles.size()];
+    		double changed = page.getChangeProbability(now);
+    		for (int i=0; i<rel.length; i++) {
+    			int scoreIncrement = profiles.get(i).getScoreIncrement();
+    			rel[i] = (page.isRelevant(i) ? 3*scoreIncrement : 0) + 3*scoreIncrement * changed;
+    		}
+    		double score = rateURL(url, rel);
+    		frontier.add(url, score);
+    		queued++;
+    	}
+    	System.out.println("Revisiting " + queued + " pages known from earlier crawls"
+    			+ (gone > 0 ? ", skipping " + gone + " answered with an error" : ""));
+    }
+
+    /**
+     * Starts collecting metrics, and serves them if the user asks for it
+     */
+    private void startMetrics() {
+    	metrics = new CrawlMetrics(frontier, fetcher, workers, pagesCrawled);
+    	if (options.containsKey("jmx")) {
+    		try {
+    			metrics.registerMBean();
+    		} catch (JMException e) {
+    			System.out.println("Could not register the metrics MBean: " + e.getMessage());
+    		}
+    	}
+    	if (options.containsKey("metrics-port")) {
+    		try {
+    			metrics.startServer(getIntOption("metrics-port", 0));
+    		} catch (IOException e) {
+    			System.out.println("Could not serve the metrics: " + e.getMessage());
+    		}
+    	}
+    }
+
+    /**
+     * Joins the cluster of crawlers, this node crawls the hosts it owns and forwards links to the others
+     * @param nodes	The comma separated host:port of the nodes of the cluster, or of some of them when joining
+     */
+    private void startCluster(String nodes) {
+    	String self = options.get("node");
+    	if (self == null) {
+    		System.out.println("--cluster needs the id of this node, see --node");
+    		System.exit(1);
+    	}
+    	List<String> members = new ArrayList<String>();
+    	for (String node : nodes.split(",")) {
+    		if (!node.trim().isEmpty()) {
+    			members.add(node.trim());
+    		}
+    	}
+    	cluster = new ClusterNode(self, members, getIntOption("cluster-batch", CLUSTER_BATCH),
+    			getLongOption("cluster-idle", CLUSTER_IDLE) * 1000, new ClusterNode.LinkSink() {
+    		@Override
+    		public void received(String url, double score) {
+    			frontier.add(url, score);
+    		}
+    	}, DEBUG);
+    	try {
+    		cluster.start();
+    	} catch (IOException e) {
+    		System.out.println("Could not listen on " + self + ": " + e.getMessage());
+    		System.exit(1);
+    	}
+    }
+
+    /**
+     * Loads the robots.txt rules saved by an earlier crawl, if the user asks for a robots.txt cache
+     */
+    private void loadRobotsCache() {
+    	String cache = options.get("robots-cache");
+    	if (cache != null) {
+    		try {
+    			robotParser.load(new File(cache));
+    		} catch (IOException e) {
+    			System.out.println("Could not load the robots.txt cache: " + e.getMessage());
+    		}
+    	}
+    }
+
+    private void saveRobotsCache() {
+    	String cache = options.get("robots-cache");
+    	if (cache != null) {
+    		try {
+    			robotParser.save(new File(cache));
+    		} catch (IOException e) {
+    			System.out.println("Could not save the robots.txt cache: " + e.getMessage());
+    		}
+    	}
+    }
+
+    /**
+     * Creates the set of seen urls, an exact fingerprint set unless the user asks for a Bloom filter
+     * @return the seen set
+     */
+    private SeenSet newSeenSet() {
+    	long expectedUrls = getLongOption("expected-urls", 1000000);
+    	if ("bloom".equals(options.get("seen-set"))) {
+    		String rate = options.get("false-positive-rate");
+    		return new BloomSeenSet(expectedUrls, rate == null ? 0.001 : Double.parseDouble(rate));
+    	}
+    	return new FingerprintSet(expectedUrls, options.containsKey("seen-offheap"));
+    }
+
+    /**
+     * @param name			The name of the option, without the leading --
+     * @param defaultValue	The value to use if the option was not supplied
+     * @return the integer value of the option
+     */
+    private int getIntOption(String name, int defaultValue) {
+    	String value = options.get(name);
+    	return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    private long getLongOption(String name, long defaultValue) {
+    	String value = options.get(name);
+    	return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    /**
+     * Splits the command line into positional arguments and --name=value options.
+     * An option without a value (--name) is stored with the value "true".
+     * @param argv		The command line arguments
+     * @param options	The map to put the options into
+     * @return the positional arguments
+     */
+    static String[] parseOptions(String[] argv, Map<String, String> options) {
+    	List<String> positional = new ArrayList<String>();
+    	for (String arg : argv) {
+    		if (arg.startsWith("--")) {
+    			int eq = arg.indexOf('=');
+    			if (eq < 0) {
+    				options.put(arg.substring(2), "true");
+    			} else {
+    				options.put(arg.substring(2, eq), arg.substring(eq + 1));
     			}
+    		} else {
+    			positional.add(arg);
     		}
-    		queryStringEN += queryWordsEN[i] + " ";
     	}
-	}
+    	return positional.toArray(new String[positional.size()]);
+    }
 
-	/**
-	 * Retrieve the links (href) from the given url
-	 * @param url	The URL to parse links from
-	 * @return		A collection of link Elements
-	 */
-    private Elements getLinks(String url) {
-        Elements links;
-        try {
-            links = htmlParser.getLinks();      // Retrieve the <a href> links
-        }
-        catch (IOException e) {
-            if (DEBUG) System.out.println("Could not get links from " + url);
-            links = new Elements();             // Empty elements
+    /**
+     * Sets the topic and the query the crawl is looking for
+     * @param topic			The topic
+     * @param query			The query words supplied by the user
+     */
+    void setQuery(String topic, String query) {
+        setProfiles(Collections.singletonList(new QueryProfile(topic, query)));
+    }
+
+    /**
+     * Sets the topics and queries the crawl is looking for, all of them at once.
+     * The query words, the query phrase and the topic of every profile are compiled into a single matcher,
+     * so each text is scanned once for all of them. The IS characters of each are converted to their
+     * EN character sequence, by using the static hashmap above, and so are the characters of the texts
+     * they are matched against.
+     * @param profiles		The topics and queries
+     */
+    void setProfiles(List<QueryProfile> profiles) {
+        this.profiles = profiles;
+        QueryMatcher.Builder builder = new QueryMatcher.Builder(new TextFolder(IStoEN));
+        for (QueryProfile profile : profiles) {
+        	profile.addTo(builder);
         }
-        return links;
+        matcher = builder.build();
     }
 
 	/**
      * Does a case-insensitive comparison in searching for 
-     * the phrase query in the given text.
+     * the phrase query in the given text, IS characters match their EN version.
      * Does not implement stemming.
      * 
      * @param text	The text to search for the query phrase in
-     * @return true if our phrase query is found in the given text, otherwise false.
-     */
-    private boolean isRelevantText(String text) {
-    	return text.toLowerCase().contains(queryStringEN) ? true : false; 
-    }
-    
-    /**
-     * Retrieves the text in the body of the last retrieved document.
-     * Decides whether or not the url is relevant, based on whether
-     * or not it contains the phrase query. 
-     * 
-     * @return 		true if the body of the page corresponding to the url is relevant.
+     * @return true if the phrase query of any profile is found in the given text, otherwise false.
      */
-    private boolean isRelevantUrl() {
-    	return isRelevantText(htmlParser.getBody());
+    boolean isRelevantText(String text) {
+    	QueryMatcher.Scan found = matcher.scan(text);
+    	for (QueryProfile profile : profiles) {
+    		if (profile.isRelevant(found)) {
+    			return true;
+    		}
+    	}
+    	return false;
     }
-    
+
     /**
      * Calculates the rating of the given URL. Most weight is given based on whether or not
      * the URL was found on a page that was relevant (determined by the rel parameter).
      * For each query word that appears in the URL, the score is incremented by 1.
      * If the topic appears in the URL, increment the score as is if all query words had
-     * appeared in the URL.  
+     * appeared in the URL.
+     * With many profiles the URL is rated for each of them, and gets the best of their ratings.
      * @param url	The URL to rate
-     * @param rel	The relevance score, 2 if it comes from a relevant site, otherwise 0
+     * @param rel	The relevance score for each profile, 3 times its increment if it comes from a page
+     * 				relevant to the profile, otherwise 0, plus what the text of the links to the URL adds
      * @return	the score
      */
-    private Double rateURL(String url, double rel) {
-    	Double score = rel;
-    	String lowerUrl = url.toLowerCase();
-    	
-    	// Increment score for every query word found in the url
-    	// If all words are found, this corresponds to one 'scoreIncrement'
-    	for (int i=0; i<queryWordsEN.length; i++) {            
-            if (lowerUrl.contains(queryWordsEN[i])) {        
-                score += 1.0;
-            }
-    	}
-    	// If the topic is found in the url, also increment the score
-    	if (lowerUrl.contains(topicEN)) {
-			score += scoreIncrement;
-		}
-		return score;
-	}    
+    double rateURL(String url, double[] rel) {
+    	QueryMatcher.Scan found = matcher.scan(url);	// One scan for all profiles
+    	double score = 0;
+    	for (int i=0; i<rel.length; i++) {
+    		score = Math.max(score, rel[i] + profiles.get(i).rate(found));
+    	}
+    	return score;
+    }
+
+    /**
+     * Rates the anchor text of a link the way rateURL() rates the URL: each query word
+     * in the text counts 1, the topic as much as all the query words.
+     * @param anchorText	The text of the link
+     * @param rel			The relevance score of the page the link is on, for each profile
+     * @return	the score for each profile, added to its relevance score
+     */
+    double[] rateAnchor(String anchorText, double[] rel) {
+    	double[] scores = rel.clone();
+    	if (anchorText.isEmpty()) {
+    		return scores;
+    	}
+    	QueryMatcher.Scan found = matcher.scan(anchorText);
+    	for (int i=0; i<scores.length; i++) {
+    		scores[i] += profiles.get(i).rate(found);
+    	}
+    	return scores;
+    }
 
     /**
      * Adds the retrieved links to the frontier and scores them.
-     * @param links			The collection of links
-     * @param fromRelevant	Relevance scores to factor into the score
+     * A URL still queued when it is found again is scored again and raised, see Frontier, so a URL
+     * linked to from many relevant pages is crawled before one linked to from a single page.
+     * @param links			The links found on a page
+     * @param fromRelevant	Relevance scores to factor into the score, for each profile
      */
-    private void addLinks(Elements links, int fromRelevant) {
-    	for (Element link : links) {
+    private void addLinks(List<PageLink> links, final double[] fromRelevant) {
+    	long start = System.nanoTime();
+    	final long[] scoring = new long[1];		// The time (ns) spent scoring
+    	final Map<String, double[]> linkScores = new LinkedHashMap<String, double[]>();	// What the page says about each URL, for each profile
+    	for (PageLink link : links) {
     		// Get the canonicalized version of the absolute URL
-    		String url = canonicalizer.getCanonicalURL(link.attr("abs:href"));
-    		Double score = rateURL(url, fromRelevant);
-    		
-    		synchronized (frontier) {	// Take a lock on the frontier while adding the URL to the queue
-    			frontier.add(url, score);
-			}
-    		
+    		String url = canonicalizer.getCanonicalURL(link.getURL());
+    		if (url == null) {
+    			continue;
+    		}
+    		if (extensionFilter.isSkipped(url)) {
+    			metrics.linksSkipped.increment();	// Not worth a request, it would not be parsed
+    			continue;
+    		}
+    		long scoreStart = System.nanoTime();
+    		double[] linkScore = rateAnchor(link.getAnchorText(), fromRelevant);
+    		scoring[0] += System.nanoTime() - scoreStart;
+    		double[] before = linkScores.get(url);
+    		if (before == null) {
+    			linkScores.put(url, linkScore);
+    		} else {
+    			for (int i=0; i<before.length; i++) {
+    				before[i] = Math.max(before[i], linkScore[i]);	// A page linking to a URL twice only counts once
+    			}
+    		}
     	}
+    	Frontier.Scorer scorer = new Frontier.Scorer() {
+    		@Override
+    		public double score(String url) {
+    			long scoreStart = System.nanoTime();
+    			double score = rateURL(url, linkScores.get(url));
+    			scoring[0] += System.nanoTime() - scoreStart;
+    			return score;
+    		}
+
+    		@Override
+    		public double rescore(String url) {
+    			// Only links from relevant pages or with the query in their text add to what is known
+    			for (double linkScore : linkScores.get(url)) {
+    				if (linkScore > 0) {
+    					return score(url);
+    				}
+    			}
+    			return 0;
+    		}
+    	};
+    	List<String> urls = new ArrayList<String>(linkScores.size());
+    	for (String url : linkScores.keySet()) {
+    		if (cluster != null && !cluster.isLocal(url)) {
+    			cluster.forward(url, scorer);	// Another node crawls this host
+    		} else {
+    			urls.add(url);
+    		}
+    	}
+    	// Only the links not seen before are scored, those still queued are raised, all in one go
+    	frontier.addAll(urls, scorer);
+    	metrics.linksFound.add(links.size());
+    	metrics.score.record(scoring[0]);
+    	metrics.enqueue.record(System.nanoTime() - start - scoring[0]);
     }
 
     /**
-     * Spawns a thread that processes the given url, including connecting to it,
+     * Starts fetching the given url and hands the response to a worker that processes it,
      * extracting its links and deciding if it's relevant.
-     * @param url	The URL to process
-     * @return		The thread that is processing it.
+     * Blocks if the maximum number of pages are already being fetched or processed.
+     * The URL is marked done in the frontier when the worker is finished with it.
+     * @param currentUrl	The URL to process
+     * @throws InterruptedException if interrupted while waiting for a free worker
      */
-    private Thread processUrl(final String url) {
-    	// Define the thread
-    	Thread thread = new Thread(new Runnable() {
-			@Override
-			public void run() {
-				// Connect to the URL
-				try {
-		    		htmlParser.connect(url, userAgent);
-		    		
-		    	} catch (IOException e) {
-		    		if (DEBUG) {
-		    			System.out.println(e.getMessage() + ": " + url);
-		    			return;
-		    		}
-				}
-				// Process it and decide if it's relevant
-		    	int relevance = 0;
-				
-				if (isRelevantUrl()) {
-					totalRelevant++;
-		    		System.out.println("Query found in page: " + url);
-		    		
-		    		// If the query is found in the page, we give it lots of 'relevance points'
-		    		// which are used to score the links found on the page
-		    		relevance = 3*scoreIncrement;		
-		    	}
-				addLinks(getLinks(url), relevance);
-			}
+    private void processUrl(final URLScore currentUrl) throws InterruptedException {
+    	workers.acquireSlot();		// Held from now until the page has been processed
+    	final String url = currentUrl.getURLString();
+    	final long sent = System.nanoTime();
+    	fetcher.fetchPage(url, conditionalHeaders(url)).whenComplete(new BiConsumer<FetchResult, Throwable>() {
+    		@Override
+    		public void accept(final FetchResult result, Throwable error) {
+    			String host = Frontier.hostKey(currentUrl.getURLString());
+    			if (error != null) {
+    				if (DEBUG) System.out.println(error.getMessage() + ": " + url);
+    				metrics.fetchErrors.increment();
+    				if (rateControl != null) {
+    					rateControl.failed(host, sent);
+    				}
+    				workers.releaseSlot();
+    				frontier.done(currentUrl);
+    				return;
+    			}
+    			metrics.fetched(result, sent);
+    			if (bandwidth != null && result.getBody() != null) {
+    				bandwidth.consume(result.getBody().length);
+    			}
+    			if (rateControl != null && rateControl.responded(host, sent, result) && retried.add(url)) {
+    				// The host asked us to come back later, fetch the page again once (when the frontier lets us)
+    				frontier.release(currentUrl);
+    				frontier.requeue(currentUrl);
+    				pagesCrawled.decrementAndGet();
+    				workers.releaseSlot();
+    				frontier.done(currentUrl);
+    				return;
+    			}
+    			frontier.release(currentUrl);	// Another page of the host may be fetched while this one is processed
+    			if (warc != null && !result.isDropped()) {
+    				warc.add(result);	// Never waits, dropped if the writer is behind
+    			}
+    			try {
+    				workers.runInSlot(new Runnable() {
+    					@Override
+    					public void run() {
+    						try {
+    							processPage(result);
+    						} finally {
+    							frontier.done(currentUrl);
+    						}
+    					}
+    				});
+    			} catch (RejectedExecutionException e) {
+    				// The workers are shut down, runInSlot() gave the slot back, the page is not processed
+    				if (DEBUG) System.out.println("Not processed, workers shut down: " + url);
+    				frontier.done(currentUrl);
+    			}
+    		}
     	});
-    	thread.start();
-    	return thread;
+    }
+
+    /**
+     * Lets the frontier fetch from a host as often as its robots.txt allows, again when the rules are refreshed
+     * @param host	The host key, see Frontier.hostKey()
+     * @param rules	The robots.txt rules of the host
+     */
+    private void openHost(String host, RobotRules rules) {
+    	if (rateControl != null) {
+    		rateControl.open(host, rules.getCrawlDelay());
+    	} else {
+    		frontier.openHost(host, rules.getCrawlDelay());
+    	}
+    }
+
+    /**
+     * @param url	The URL to fetch
+     * @return the headers asking for the page only if it changed since it was last fetched, if it was
+     */
+    private Map<String, String> conditionalHeaders(String url) {
+    	Map<String, String> headers = new HashMap<String, String>();
+    	PageStore.Page known = pageStore == null ? null : pageStore.get(url);
+    	if (known != null && known.isRelevanceKnown()) {	// Else the page is parsed again for the queries of this crawl
+    		if (known.getEtag() != null) {
+    			headers.put("If-None-Match", known.getEtag());
+    		}
+    		if (known.getLastModified() != null) {
+    			headers.put("If-Modified-Since", known.getLastModified());
+    		}
+    	}
+    	return headers;
+    }
+
+    /**
+     * Counts a page that hasn't changed since the last crawl, without parsing it again.
+     * Its links were followed when it was last parsed.
+     * @param url	The URL of the page
+     * @param known	What the last crawl learned about the page
+     */
+    private void unchanged(String url, PageStore.Page known) {
+    	metrics.unchangedPages.increment();
+    	StringBuilder found = null;		// The profiles whose query was found in the page
+    	for (int i=0; i<profiles.size(); i++) {
+    		if (known.isRelevant(i)) {
+    			profiles.get(i).found();
+    			found = found == null ? new StringBuilder(" (") : found.append(", ");
+    			found.append(profiles.get(i));
+    		}
+    	}
+    	if (found != null) {
+    		totalRelevant.incrementAndGet();
+    		System.out.println("Query found in page: " + url + (profiles.size() > 1 ? found.append(")") : ""));
+    	}
+    }
+
+    /**
+     * Parses a fetched page, decides if it's relevant and adds its links to the frontier
+     * @param result	The response to the fetch
+     */
+    private void processPage(FetchResult result) {
+    	String url = result.getURL();
+    	PageStore.Page known = pageStore == null ? null : pageStore.get(url);
+    	if (known != null && result.getStatus() == 304) {
+    		pageStore.notModified(url, System.currentTimeMillis());
+    		metrics.notModifiedPages.increment();
+    		unchanged(url, known);
+    		return;
+    	}
+    	if (!result.isSuccess() || !result.isHtml()) {
+    		if (DEBUG) System.out.println("Skipping " + url + ": status " + result.getStatus() + ", " + result.getMimeType());
+    		if (pageStore != null && !result.isSuccess()) {
+    			pageStore.failed(url, result.getStatus());	// Not queued again by the next crawl if it is gone
+    		}
+    		return;
+    	}
+    	long bodyHash = 0;
+    	if (pageStore != null) {
+    		bodyHash = PageStore.hashOf(result.getBody());
+    		if (known != null && known.isRelevanceKnown() && known.getBodyHash() == bodyHash) {
+    			// The server sent the page again, but it is the same page
+    			pageStore.unchanged(url, result.getHeader("etag"), result.getHeader("last-modified"), System.currentTimeMillis());
+    			unchanged(url, known);
+    			return;
+    		}
+    	}
+    	ParsedPage page;
+    	long start = System.nanoTime();
+    	try {
+    		page = htmlParser.parse(result.getFinalURL(), result.getBody(), result.getCharset());
+    	} catch (IOException e) {
+    		if (DEBUG) System.out.println(e.getMessage() + ": " + url);
+    		return;
+    	}
+    	long parsed = System.nanoTime();
+    	metrics.parse.record(parsed - start);
+    	// Process it and decide if it's relevant
+    	double[] relevance = new double[profiles.size()];
+    	BitSet relevantTo = new BitSet(profiles.size());	// The profiles whose query is found in the page, for the page store
+    	StringBuilder found = null;		// The profiles whose query is found in the page
+    	QueryMatcher.Scan scan = matcher.scan(page.getBody());	// One pass over the body for all profiles
+    	for (int i=0; i<relevance.length; i++) {
+    		QueryProfile profile = profiles.get(i);
+    		if (profile.isRelevant(scan)) {
+    			// If the query is found in the page, we give it lots of 'relevance points'
+    			// which are used to score the links found on the page
+    			relevance[i] = 3*profile.getScoreIncrement();
+    			profile.found();
+    			relevantTo.set(i);
+    			found = found == null ? new StringBuilder(" (") : found.append(", ");
+    			found.append(profile);
+    		}
+    	}
+    	boolean relevant = found != null;
+    	metrics.match.record(System.nanoTime() - parsed);
+
+    	if (relevant) {
+    		totalRelevant.incrementAndGet();
+    		System.out.println("Query found in page: " + url + (profiles.size() > 1 ? found.append(")") : ""));
+    	}
+    	if (pageStore != null) {
+    		pageStore.fetched(url, result.getHeader("etag"), result.getHeader("last-modified"), bodyHash, relevantTo, System.currentTimeMillis());
+    	}
+    	if (index != null) {
+    		index.add(page);	// Never waits, dropped if the indexer is behind
+    	}
+    	if (duplicates != null) {
+    		// Mirrors and other copies of a page crawled before would only offer the same links again
+    		long checked = System.nanoTime();
+    		int seen = duplicates.check(ContentFingerprint.of(page.getBody()));
+    		metrics.dedup.record(System.nanoTime() - checked);
+    		if (seen != DuplicateIndex.NEW) {
+    			if (DEBUG) System.out.println((seen == DuplicateIndex.EXACT ? "Duplicate of a page crawled: " : "Near duplicate of a page crawled: ") + url);
+    			metrics.duplicatePages.increment();
+    			return;
+    		}
+    	}
+    	addLinks(page.getLinks(), relevance);
     }
 
     /**
@@ -284,68 +872,220 @@ public class WebCrawler {
      */
     private void crawl()
     {
-    	List<Thread> threads = new ArrayList<Thread>();
     	long startTime = System.currentTimeMillis();
-        for (int i = 0; i < maxPages; i++) {        // Visit maxPages
-        	URLScore currentUrl = null;
+    	if (checkpoint != null) {
+    		checkpoint.start(getLongOption("checkpoint-interval", CHECKPOINT_INTERVAL));
+    	}
+        while (pagesCrawled.get() < maxPages) {        // Visit maxPages
+        	URLScore currentUrl;
         	
-        	// Retrieve the next URL from the frontier which may be temporarily empty
-        	// if other threads have taken all the available URLS
-			while (currentUrl == null) {
-				synchronized (frontier) {	 // Lock the frontier while removing
-					if (!frontier.isEmpty()) {
-						currentUrl = frontier.removeNext();
-					} 
-				}
+        	// Retrieve the next URL from the frontier, waiting while it is temporarily empty
+        	// or has no host that we may politely fetch from yet
+        	long takeStart;
+        	try {
+        		if (bandwidth != null) {
+        			bandwidth.acquire();	// Wait while over the bandwidth cap
+        		}
+        		takeStart = System.nanoTime();
+        		currentUrl = frontier.take(MILLISECOND_WAIT, TimeUnit.MILLISECONDS);
+        	} catch (InterruptedException e) {
+        		if (DEBUG) e.printStackTrace();
+        		break;
+        	}
+        	if (currentUrl == null) {
+        		if (frontier.isExhausted()) {
+        			if (cluster == null || cluster.isIdle()) {
+        				break;		// No pages left and none being processed, nothing more will be found
+        			}
+        			try {
+        				Thread.sleep(MILLISECOND_WAIT);	// take() doesn't wait while exhausted, wait for the other nodes
+        			} catch (InterruptedException e) {
+        				break;
+        			}
+        		}
+        		continue;
         	}
+        	metrics.dequeue.record(System.nanoTime() - takeStart);
+        	if (cluster != null && !cluster.isLocal(currentUrl.getURLString())) {
+        		// The host was taken over by a node that joined since the url was queued
+        		cluster.handOff(currentUrl.getURLString(), currentUrl.getScore());
+        		frontier.done(currentUrl);
+        		continue;
+        	}
+			if (dns.isUnresolvable(currentUrl.getURL().getHost())) {
+				frontier.done(currentUrl);	// Don't wait for a lookup we know will fail
+				continue;
+			}
+			String host = Frontier.hostKey(currentUrl.getURL());
+			if (robotParser.getRules(host) == null) {
+				// Should not happen, the host is opened once its robots.txt is known. Put the url back
+				// once it is rather than hold up the dispatcher
+				final URLScore waiting = currentUrl;
+				robotParser.prefetch(host, currentUrl.getURL()).thenAccept(new Consumer<RobotRules>() {
+					@Override
+					public void accept(RobotRules rules) {
+						frontier.release(waiting);
+						frontier.requeue(waiting);
+						frontier.done(waiting);
+					}
+				});
+				continue;
+			}
 			// Check if we are allowed to parse and process the URL
-			if (robotParser.isUrlAllowed(currentUrl.getURLString())) { 
-				threads.add(processUrl(currentUrl.getURLString()));	// Designate the actual work to a thread
-				wait(MILLISECOND_WAIT);									// Be polite
+			long robotsStart = System.nanoTime();
+			boolean allowed = robotParser.isUrlAllowed(currentUrl.getURL());
+			metrics.robots.record(System.nanoTime() - robotsStart);
+			if (allowed) {
+				try {
+					processUrl(currentUrl);	// Designate the actual work to a worker
+				} catch (InterruptedException e) {
+					if (DEBUG) e.printStackTrace();
+					break;
+				}
+				pagesCrawled.incrementAndGet();
 			} else {
-				i--;	// Don't count this as a crawled page if we weren't allowed to crawl it
+				frontier.done(currentUrl);	// Don't count this as a crawled page if we weren't allowed to crawl it
 			}
         }
         
-        // Clean up any remaining for any remaining threads
-        for (Thread t :  threads) {
+        // Wait for the pages still being fetched or processed
+        workers.shutdown();
+        fetcher.close();
+        dns.close();
+        if (warc != null) {
+        	warc.close();
+        }
+        if (index != null) {
+        	index.close();
+        }
+        if (pageStore != null) {
         	try {
-        		t.join();
-        	} catch (InterruptedException e) {
-        		if (DEBUG) e.printStackTrace();
-			}
+        		pageStore.save(new File(options.get("page-store")));
+        	} catch (IOException e) {
+        		System.out.println("Could not save the page store: " + e.getMessage());
+        	}
+        }
+        if (cluster != null) {
+        	cluster.close();
+        }
+        saveRobotsCache();
+        if (checkpoint != null) {
+        	checkpoint.stop();
+        	try {
+        		checkpoint.write();
+        	} catch (IOException e) {
+        		System.out.println("Could not write the last checkpoint: " + e.getMessage());
+        	}
         }
         double elapsedTime = (System.currentTimeMillis() - startTime) / 1000.0;
         
         System.out.println("--------------------------------------------------------");
-        System.out.println("Search complete, " + maxPages + " pages crawled");
-        System.out.println("Search query " + queryString + " found in " + totalRelevant + " pages");
+        System.out.println("Search complete, " + pagesCrawled.get() + " pages crawled");
+        if (profiles.size() > 1) {
+        	System.out.println("Search queries of " + profiles.size() + " profiles found in " + totalRelevant.get() + " pages");
+        	for (QueryProfile profile : profiles) {
+        		System.out.println(String.format("  %-40s %d pages", profile, profile.getRelevant().get()));
+        	}
+        } else {
+        	System.out.println("Search query " + profiles.get(0).getQuery() + " found in " + totalRelevant.get() + " pages");
+        }
         System.out.println("Total distinctive urls found: " + frontier.totalCount());
+        System.out.println("Total distinctive hosts found: " + frontier.hostCount());
+        System.out.println("Queued urls raised by links found later: " + frontier.raisedCount());
+        System.out.println("Host lookups: " + dns.lookupCount() + ", failed: " + dns.failureCount());
+        if (pageStore != null) {
+        	System.out.println("Pages unchanged since the last crawl: " + metrics.getUnchangedPages()
+        			+ " (" + metrics.getNotModifiedPages() + " answered 304 Not Modified)");
+        }
+        if (rateControl != null && rateControl.decreaseCount() > 0) {
+        	System.out.println("Hosts backed off: " + rateControl.decreaseCount() + " times, "
+        			+ rateControl.throttledCount() + " responses 429 or 503");
+        }
+        if (warc != null) {
+        	System.out.println("Responses archived: " + warc.writtenCount()
+        			+ (warc.droppedCount() > 0 ? ", dropped: " + warc.droppedCount() : ""));
+        }
+        if (index != null) {
+        	System.out.println("Pages indexed: " + index.indexedCount() + " in " + index.segmentCount() + " segments"
+        			+ (index.droppedCount() > 0 ? ", dropped: " + index.droppedCount() : ""));
+        }
+        if (metrics.getLinksSkipped() + metrics.getDroppedBodies() + metrics.getTruncatedBodies() > 0) {
+        	System.out.println("Not pages: " + metrics.getLinksSkipped() + " links skipped by extension, "
+        			+ metrics.getDroppedBodies() + " bodies dropped by content type; bodies truncated: " + metrics.getTruncatedBodies());
+        }
+        if (duplicates != null) {
+        	System.out.println("Duplicate pages not expanded: " + duplicates.exactCount() + " exact, " + duplicates.nearCount() + " near");
+        }
+        if (cluster != null) {
+        	System.out.println("Links forwarded to other nodes: " + cluster.forwardedCount()
+        			+ ", received from other nodes: " + cluster.receivedCount()
+        			+ (cluster.droppedCount() > 0 ? ", dropped: " + cluster.droppedCount() : ""));
+        }
         System.out.println("Seconds elapsed during crawl: " + elapsedTime);
+        System.out.println("Latency by stage (ms, median / 99th percentile / max):");
+        for (String stage : metrics.getStages()) {
+        	System.out.println(String.format("  %-12s %9.3f / %9.3f / %9.3f", stage, metrics.getLatencyMillis(stage, 50),
+        			metrics.getLatencyMillis(stage, 99), metrics.getLatencyMillis(stage, 100)));
+        }
+        metrics.stop();
         System.out.println("--------------------------------------------------------");
     }
     
-    private void wait(int milliseconds)	// Halt execution for the specified number of milliseconds
-    {
-        try {
-            Thread.currentThread().sleep(milliseconds);
-        }
-        catch (InterruptedException e) {
-                e.printStackTrace();
-        }
-    }
-
     public static void main(String[] argv)
     {
         WebCrawler wc = new WebCrawler();
-        if (argv.length < 3) {
-        	System.out.println("Usage: java -jar HV-WebCrawler.jar <URL> <TOPIC> <QUERY WORDS> <N>");
+        Map<String, String> options = new HashMap<String, String>();
+        argv = parseOptions(argv, options);
+        if (argv.length < (options.containsKey("profiles") ? 1 : 3)) {
+        	System.out.println("Usage: java -jar HV-WebCrawler.jar [OPTIONS] <URL> <TOPIC> <QUERY WORDS> <N>");
+        	System.out.println("   or: java -jar HV-WebCrawler.jar --profiles=<FILE> [OPTIONS] <URL> <N>");
         	System.out.println("<URL>\t\tSeed page");
         	System.out.println("<TOPIC>\t\tTopic to guide the crawler to relevant links");
         	System.out.println("<QUERY WORDS>\tQuery phrase to search for");
         	System.out.println("<N>(optional)\tMaximum number of pages to crawl");
+        	System.out.println("Options:");
+        	System.out.println("--threads=<T>\tMaximum number of pages fetched and processed at the same time");
+        	System.out.println("--frontier-memory=<M>\tMaximum number of queued urls kept in memory");
+        	System.out.println("--frontier-dir=<DIR>\tDirectory to spill queued urls to");
+        	System.out.println("--expected-urls=<U>\tNumber of distinct urls the seen set is sized for");
+        	System.out.println("--seen-offheap\tKeep the seen set outside the Java heap");
+        	System.out.println("--seen-set=bloom\tUse a Bloom filter as the seen set");
+        	System.out.println("--false-positive-rate=<P>\tFalse positive rate of the Bloom filter");
+        	System.out.println("--canonical-cache=<C>\tNumber of canonicalized links to cache");
+        	System.out.println("--max-fetches=<F>\tMaximum number of requests in flight");
+        	System.out.println("--connect-timeout=<MS>\tMaximum time to connect to a host");
+        	System.out.println("--read-timeout=<MS>\tMaximum time to wait for a whole response, headers and body");
+        	System.out.println("--max-body=<KB>\tMaximum size of the body of a page, the rest is not downloaded");
+        	System.out.println("--skip-extensions=<LIST>\tComma separated extensions of links not to follow, empty to follow all");
+        	System.out.println("--parser=streaming\tExtract links and text without building a DOM");
+        	System.out.println("--robots-ttl=<S>\tSeconds until robots.txt of a host is fetched again");
+        	System.out.println("--robots-cache=<FILE>\tFile to keep robots.txt rules in between crawls");
+        	System.out.println("--checkpoint=<FILE>\tWrite the crawl state to FILE now and then");
+        	System.out.println("--checkpoint-interval=<S>\tSeconds between checkpoints");
+        	System.out.println("--resume\tResume the crawl from the checkpoint");
+        	System.out.println("--cluster=<HOST:PORT,...>\tCrawl as one node of a cluster of crawlers");
+        	System.out.println("--node=<HOST:PORT>\tId of this node in the cluster");
+        	System.out.println("--cluster-batch=<B>\tMaximum number of links forwarded in one message");
+        	System.out.println("--cluster-idle=<S>\tSeconds without links from other nodes before an idle node stops");
+        	System.out.println("--dns-ttl=<S>\tSeconds the address of a host is cached");
+        	System.out.println("--dns-negative-ttl=<S>\tSeconds a host that could not be resolved is remembered");
+        	System.out.println("--dns-cache=<H>\tMaximum number of hosts whose address is cached");
+        	System.out.println("--page-store=<FILE>\tRecrawl: remember pages in FILE and fetch known pages conditionally");
+        	System.out.println("--rate-control=fixed\tWait a fixed time between requests to a host instead of adapting to its response times");
+        	System.out.println("--min-host-delay=<MS>\tLeast time between two requests to a host");
+        	System.out.println("--max-host-fetches=<N>\tMaximum number of fetches from one host at the same time");
+        	System.out.println("--slow-response=<MS>\tBack a host off when its response takes longer to start");
+        	System.out.println("--max-bandwidth=<KB>\tMaximum download rate of the whole crawl, KB per second");
+        	System.out.println("--warc=<DIR>\tArchive every response fetched in compressed WARC files in DIR");
+        	System.out.println("--warc-file-size=<MB>\tSize (MB) after which a new WARC file is started");
+        	System.out.println("--index=<DIR>\tIndex the text of the pages crawled in DIR, look up other phrases with IndexQuery");
+        	System.out.println("--index-memory=<MB>\tMemory (MB) the pages not yet written to the index may take");
+        	System.out.println("--profiles=<FILE>\tLook for many topics and queries at once, one per line of FILE: <TOPIC><tab><QUERY WORDS>");
+        	System.out.println("--duplicate-distance=<D>\tMost bits the SimHashes of near duplicate pages differ in, -1 to keep duplicates");
+        	System.out.println("--metrics-port=<P>\tServe live crawl metrics at http://127.0.0.1:P/metrics");
+        	System.out.println("--jmx\tExpose live crawl metrics as an MBean over JMX");
         } else {
-        	wc.initialize(argv);
+        	wc.initialize(argv, options);
             wc.crawl();
         }
     }
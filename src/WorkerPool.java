@@ -0,0 +1,136 @@
+/*
+ A bounded pool of workers that process fetched URLs.
+ On JDKs with virtual threads each task gets its own virtual thread, otherwise a fixed pool of
+ platform threads is used. In both cases at most maxInFlight tasks run (or wait to run) at any time,
+ and submit() blocks the dispatcher until a slot is free. A slot can also be reserved up front and
+ filled later, so a page holds its slot from the moment it is dispatched until it has been processed.
+*/
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+public class WorkerPool {
+    private final ExecutorService executor;
+    private final Semaphore slots;          // One permit for each task allowed in flight
+    private final int maxInFlight;
+    private final boolean virtualThreads;   // true if the executor runs each task in a virtual thread
+    private boolean debug = false;
+
+    public WorkerPool(int maxInFlight, boolean debug) {
+        this.maxInFlight = maxInFlight;
+        this.debug = debug;
+        slots = new Semaphore(maxInFlight);
+
+        ExecutorService virtualExecutor = newVirtualThreadExecutor();
+        if (virtualExecutor != null) {
+            executor = virtualExecutor;
+            virtualThreads = true;
+        } else {
+            executor = Executors.newFixedThreadPool(maxInFlight);
+            virtualThreads = false;
+        }
+    }
+
+    /**
+     * Looks up Executors.newVirtualThreadPerTaskExecutor() reflectively, so the crawler
+     * still compiles and runs on JDKs that predate virtual threads.
+     * @return the executor or null if virtual threads are not available
+     */
+    private ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (Exception e) {
+            if (debug) System.out.println("WorkerPool-Virtual threads not available, using platform threads");
+            return null;
+        }
+    }
+
+    /**
+     * Runs the task on a worker, waiting for a free slot if maxInFlight tasks are already running
+     * @param task	The work to do
+     * @throws InterruptedException if interrupted while waiting for a slot
+     */
+    public void submit(Runnable task) throws InterruptedException {
+        acquireSlot();
+        runInSlot(task);
+    }
+
+    /**
+     * Reserves a slot for a task that is not ready to run yet, e.g. a page still being fetched.
+     * The slot must later be handed to runInSlot() or given back with releaseSlot().
+     * @throws InterruptedException if interrupted while waiting for a slot
+     */
+    public void acquireSlot() throws InterruptedException {
+        slots.acquire();
+    }
+
+    /**
+     * Gives back a slot reserved with acquireSlot() without running a task in it
+     */
+    public void releaseSlot() {
+        slots.release();
+    }
+
+    /**
+     * Runs the task on a worker in a slot reserved with acquireSlot(), the slot is released
+     * when the task finishes. Never blocks, so it may be called from any thread.
+     * @param task	The work to do
+     * @throws RejectedExecutionException if the pool is shut down, the slot is released all the same
+     */
+    public void runInSlot(final Runnable task) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        slots.release();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            slots.release();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of tasks currently running or waiting to run
+     */
+    public int inFlight() {
+        return maxInFlight - slots.availablePermits();
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public boolean usesVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Waits for all reserved slots to be released, then stops accepting work and waits for all tasks to finish
+     */
+    public void shutdown() {
+        try {
+            while (!slots.tryAcquire(maxInFlight, 1, TimeUnit.SECONDS)) {
+                if (debug) System.out.println("WorkerPool-Waiting for " + inFlight() + " tasks to finish");
+            }
+            slots.release(maxInFlight);
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                if (debug) System.out.println("WorkerPool-Waiting for the workers to stop");
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}